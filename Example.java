@@ -32,6 +32,15 @@ public class Example {
             System.err.println("Failure configuring listener!");
             return;
         }
+        /* One may also watch further directories from the same listener, each POSTing to its own path within the database.
+           Here C:/data/reports and every subdirectory within it (e.g. C:/data/reports/2019/05) are watched, POSTing to "~/reports/2019/05" etc. */
+        try {
+            listener.addDirectory(Paths.get("C:/data/reports"), "reports", true);
+        }
+        catch (IOException e) {
+            System.err.println("Failure adding directory to listener!");
+            return;
+        }
         // Now open a new thread, and call runListener from that thread to run the listener indefinitely asynchronously.
         new Thread(() -> {
             listener.runListener();
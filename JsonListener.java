@@ -1,65 +1,134 @@
 /*
-    Listens for the creation of .json files in a given directory,
+    Listens for the creation of .json files in one or more directories (optionally including their subdirectories),
     and automatically uploads them to a Google Firebase, utilising FirebasePostJson.
     Reference: https://github.com/omarathon/firebase-post-json/
 
     Author: Omar Tanner, 2019 -- open source.
 */
 
-import lib.firebasepostjson.FirebasePostJson;
 import lib.firebasepostjson.lib.FirebaseConnection;
-import net.thegreshams.firebase4j.error.FirebaseException;
-import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import lib.firebasepostjson.lib.JsonTransform;
+import lib.jsonlistener.AsyncLogHandler;
+import lib.jsonlistener.Backfill;
+import lib.jsonlistener.ContentHashCache;
+import lib.jsonlistener.DirectoryReconciler;
+import lib.jsonlistener.FileArchiver;
+import lib.jsonlistener.ListenerMetrics;
+import lib.jsonlistener.MetricsListener;
+import lib.jsonlistener.ProcessedIndex;
+import lib.jsonlistener.RetryJournal;
+import lib.jsonlistener.RetryScheduler;
+import lib.jsonlistener.UploadJob;
+import lib.jsonlistener.UploadListener;
+import lib.jsonlistener.UploadPipeline;
+import lib.jsonlistener.WatchedRoot;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
 public class JsonListener {
     // FirebaseConnection object which provides a firebase4j connection to the database
     private FirebaseConnection dbConnection;
-    // The directory to watch
+    // The directory the listener was constructed with
     private Path dir;
-    // The directory in the database to add the JSON files to
+    // The directory in the database to add the JSON files of dir to
     private String dbDirectory;
-    // The WatchKey object which generates the FILE_CREATE events
-    private WatchKey key;
-    // Maximum number of threads that may be opened
+    // Every directory being watched, including dir, keyed by its path
+    private final Map<Path, WatchedRoot> roots = new ConcurrentHashMap<>();
+    // The WatchService shared by every watched directory, which signals their WatchKeys when events are pending
+    private volatile WatchService watcher;
+    // The directory watched through each WatchKey object generating FILE_CREATE events (the roots, and their subdirectories if recursive)
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    // Maximum number of threads that may be opened by the upload pipeline
     private int maxThreads = 100;
-    // Number of tries polling a locked file before give up
-    private int maxLockedFileTries = 100;
-    // Number of milliseconds between each poll on the directory
-    private int pollCooldown = 100;
-    // Number of milliseconds between each poll for a locked file
-    private int lockedFilePollCooldown = 100;
-    // The JSON files that failed to upload
+    // The directory the logs, journal and indexes are generated in
+    private Path logDirectory;
+    // Maximum number of content hashes remembered to skip byte-identical uploads (0 disables deduplication), and whether they're persisted across runs
+    private int dedupCacheSize = 0;
+    private boolean dedupPersistent = false;
+    // Whether ENTRY_MODIFY events are watched too, so that files still being written are never deemed ready to upload
+    private boolean watchModifications = false;
+    // Optional batching window in milliseconds, over which a burst of events is coalesced before processing (0 processes events immediately)
+    private int pollCooldown = 0;
+    // The pipeline which waits for each new file to unlock, parses it and POSTs it on bounded worker pools
+    private UploadPipeline pipeline;
+    // The persistent journal of files awaiting a retry of their upload, and the scheduler retrying them with backoff
+    private RetryJournal retryJournal;
+    private RetryScheduler retryScheduler;
+    // The persistent index of files already processed, and the reconciler which rescans the directory for files never processed
+    private ProcessedIndex processedIndex;
+    private DirectoryReconciler reconciler;
+    // Whether the JSON files already within the directories on start are uploaded by a parallel backfill, rather than by the reconciler's startup rescan
+    private boolean backfillEnabled = false;
+    // The backfill which uploads the files already present on start, and the thread it runs on whilst submitting them
+    private Backfill backfill;
+    private Thread backfillThread;
+    // Deletes or archives each file once uploaded, and quarantines each file given up on, if configured
+    private FileArchiver archiver;
+    // The metrics of each stage and of what happened to files, published over JMX whilst the listener runs
+    private ListenerMetrics metrics;
+    // The JMX name the metrics are registered under, whilst registered
+    private ObjectName metricsName;
+    // The JSON files that failed to upload, and were given up on
     private PriorityQueue<File> failedFiles;
     // The Logger object which shall be used to send log messages to
     private Logger log;
+    // The handler writing the log file
+    private FileHandler fileHandler;
+    // Whether log records are handed to a bounded buffer and written by a single thread, rather than written by the thread logging them
+    private boolean asyncLogging = false;
+    // Number of log records buffered when logging asynchronously
+    private int logBufferSize = 8192;
+    // What happens to a log record when the buffer is full
+    private AsyncLogHandler.OverflowPolicy logOverflowPolicy = AsyncLogHandler.OverflowPolicy.DROP_NEWEST;
+    // Interval over which log rate limits apply, after which suppressed records are summarised, in milliseconds
+    private int logSummaryInterval = 10000;
+    // Maximum number of log records of each level written per summary interval when logging asynchronously
+    private final Map<Level, Integer> logRateLimits = new ConcurrentHashMap<>();
+    // The handler logging asynchronously, whilst running
+    private AsyncLogHandler asyncLogHandler;
     // The PrintWriter object used to write to the file storing the failed JSON uploads
     private PrintWriter failedFilesLog;
     // An idle flag, which indicates if events are being processed or not
-    private boolean idle;
+    private volatile boolean idle;
     // A listening flag, which may be toggled to stop the listener and indicates if the listener is ready to receive events.
-    private boolean listen;
+    private volatile boolean listen;
 
     /* One constructs a JsonListener with a FirebaseConnection object (used to post to the database),
        the Path object storing the local directory of JSON files,
        the directory within the database to which the obtained JSON files shall be POSTed to
        and the directory to which the .log file shall be generated to. */
     public JsonListener(FirebaseConnection con, Path path, String dbDirectory, Path logDirectory) throws IOException {
+        this(con, path, dbDirectory, logDirectory, false);
+    }
+
+    // As above, additionally specifying whether the subdirectories of the directory (including those created later) are watched too
+    public JsonListener(FirebaseConnection con, Path path, String dbDirectory, Path logDirectory, boolean recursive) throws IOException {
         // Firstly set the dbConnection object to the one passed if it wasn't null.
         if (con != null) this.dbConnection = con;
         else throw new IllegalArgumentException("Provided FirebaseConnection is null.");
         // Set the passed path and dbDirectory as dir and dbDirectory respectfully.
         this.dir = path;
         this.dbDirectory = dbDirectory;
+        this.roots.put(path, new WatchedRoot(path, dbDirectory, recursive));
+        this.logDirectory = logDirectory;
         // Initialise failedFiles as an empty priority queue.
         failedFiles = new PriorityQueue<>();
         // Initialise failedFilesLog as a PrintWriter at the given logDirectory
@@ -67,12 +136,62 @@ public class JsonListener {
         this.failedFilesLog = new PrintWriter(f);
         // Initialise the log as the given logDirectory
         this.log = Logger.getLogger("JsonListenerLog");
-        FileHandler fh;
+        // When logging asynchronously, per-file INFO records beyond 1,000 per summary interval are summarised rather than written
+        this.logRateLimits.put(Level.INFO, 1000);
         // Configure the logger with handler and formatter
-        fh = new FileHandler(logDirectory + "/json-listener-log.log");
-        this.log.addHandler(fh);
+        this.fileHandler = new FileHandler(logDirectory + "/json-listener-log.log");
+        this.log.addHandler(fileHandler);
         SimpleFormatter formatter = new SimpleFormatter();
-        fh.setFormatter(formatter);
+        fileHandler.setFormatter(formatter);
+        // Open the retry journal within the logDirectory, which replays any retries outstanding from a previous run
+        this.retryJournal = new RetryJournal(logDirectory.resolve("json-listener-retry-journal.txt"));
+        if (retryJournal.getSkippedEntries() > 0) log.warning("Skipped " + retryJournal.getSkippedEntries() + " malformed entries of the retry journal, whose files may be found by the startup rescan instead.");
+        this.retryScheduler = new RetryScheduler(retryJournal, this::resubmit, log);
+        // Initialise the upload pipeline, which reports back each file that was uploaded or failed to upload
+        this.pipeline = new UploadPipeline(con, log, new UploadListener() {
+            @Override
+            public void uploaded(UploadJob job) {
+                log.log(Level.INFO, "[SUCCESS] Successfully posted file {0} to database!", job);
+                retryScheduler.uploaded(job);
+                reconciler.processed(job.getFile());
+                backfill.processed(job.getFile());
+                archiver.uploaded(job);
+            }
+
+            @Override
+            public void skipped(UploadJob job) {
+                log.log(Level.INFO, "[SKIPPED] File {0} is already held by the database or no longer on disk, no upload required.", job);
+                retryScheduler.skipped(job);
+                reconciler.processed(job.getFile());
+                backfill.processed(job.getFile());
+                archiver.uploaded(job);
+            }
+
+            @Override
+            public void failed(UploadJob job, Throwable cause) {
+                // Transient failures are retried with backoff, otherwise the file is given up on and stored in failedFiles
+                if (retryScheduler.failed(job, cause)) {
+                    metrics.count(MetricsListener.Counter.RETRIED, 1);
+                    log.log(Level.WARNING, "[RETRY] Failed to post file {0} to database, shall retry. {1}", new Object[] { job, cause });
+                    return;
+                }
+                metrics.count(MetricsListener.Counter.FAILED, 1);
+                log.log(Level.SEVERE, "[FAILURE} Failed to post file {0} to database! {1}", new Object[] { job, cause });
+                recordFailure(job.getFile());
+                reconciler.processed(job.getFile());
+                backfill.processed(job.getFile());
+                archiver.failed(job);
+            }
+        });
+        // Collect metrics from the pipeline
+        this.metrics = new ListenerMetrics(pipeline, retryScheduler);
+        this.pipeline.setMetricsListener(metrics);
+        // Open the index of processed files within the logDirectory, and the reconciler which rescans the directory on startup and OVERFLOW
+        this.processedIndex = new ProcessedIndex(logDirectory.resolve("json-listener-index.txt"));
+        if (processedIndex.getSkippedEntries() > 0) log.warning("Skipped " + processedIndex.getSkippedEntries() + " malformed entries of the processed file index, whose files may be uploaded again.");
+        this.reconciler = new DirectoryReconciler(processedIndex, retryJournal, pipeline, this::dbPathFor, log);
+        this.backfill = new Backfill(processedIndex, retryJournal, pipeline, this::dbPathFor, log);
+        this.archiver = new FileArchiver(processedIndex, log);
         // The listener is initially idle
         this.idle = true;
         // The listener is not initially listening
@@ -82,142 +201,409 @@ public class JsonListener {
     /* The main listener method, which listen indefinitely.
        Therefore, one is advised to run this method on a new thread. */
     public void runListener() {
-        // Construct a WatchService object, and register to the directory the watcher and the ENTRY_CREATE event. Obtain a WatchKey for the directory, and set this to the key attribute for the object.
+        // Construct a single WatchService object, and register to every watched directory the watcher and the ENTRY_CREATE event, obtaining a WatchKey for each.
+        synchronized (this) {
+            try {
+                this.watcher = FileSystems.getDefault().newWatchService();
+                for (WatchedRoot root : roots.values()) register(root, root.getDir(), false);
+            }
+            catch (IOException e) { // Failed to construct WatchKey, so terminate
+                log.severe("[FATAL ERROR] Failed to construct WatchKey! " + e.toString());
+                closeWatcher();
+                return;
+            }
+        }
+        // Open the content hash cache if deduplicating, persisted within the logDirectory if configured
+        ContentHashCache dedupCache = null;
+        if (dedupCacheSize > 0) {
+            try {
+                dedupCache = new ContentHashCache(dedupCacheSize, dedupPersistent ? logDirectory.resolve("json-listener-dedup.txt") : null);
+            }
+            catch (IOException e) { // Failed to open the cache, so terminate
+                log.severe("[FATAL ERROR] Failed to open the content hash cache! " + e.toString());
+                closeWatcher();
+                return;
+            }
+        }
+        pipeline.setDedupCache(dedupCache);
+        /* Start the upload pipeline's worker pools, within the thread budget (excluding this listening thread, the retry thread, the reconcile thread, and the backfill and archive threads if used).
+           The backfill's scanning threads only live until the directories have been scanned, before which the pipeline has little to do. */
         try {
-            WatchService watcher = FileSystems.getDefault().newWatchService();
-            this.key = dir.register(watcher, ENTRY_CREATE);
+            pipeline.start(maxThreads - 3 - (backfillEnabled ? 1 : 0) - (archiver.isEnabled() ? 1 : 0));
         }
-        catch (IOException e) { // Failed to construct WatchKey, so terminate
-            log.severe("[FATAL ERROR] Failed to construct WatchKey!");
+        catch (IllegalStateException e) { // Pipeline would exceed maximum threads, so terminate
+            log.severe("[FATAL ERROR] Cannot start upload pipeline - " + e.getMessage());
             return;
         }
+        // Start disposing of the files finished with, if configured
+        try {
+            archiver.start();
+        }
+        catch (IOException | IllegalStateException e) { // Failed to create the archive or quarantine directory, so terminate
+            log.severe("[FATAL ERROR] Cannot start archiving files - " + e.toString());
+            try {
+                pipeline.shutdown();
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        // Log asynchronously whilst running, if configured
+        startAsyncLogging();
+        // Publish the metrics over JMX whilst running
+        registerMetrics();
+        // Start retrying failed uploads, beginning with those left in the retry journal
+        retryScheduler.start();
+        // Now that the directories are watched, rescan them for files created whilst the listener wasn't running, or backfill them if configured
+        reconciler.start(!backfillEnabled);
+        startBackfill();
         // The WatchKey is now polling events, therefore the listener is ready to recieve events
         this.listen = true;
         while (listen) {
-            // Firstly attempt to delay for the given pollCooldown
+            // Block until the WatchService signals a key with pending events, rather than sleeping between polls
+            List<WatchKey> signalled = new ArrayList<>();
             try {
-                Thread.sleep(pollCooldown);
+                signalled.add(watcher.take());
+                // If a batching window is configured, let a burst of events accumulate for pollCooldown ms so they're processed together
+                if (pollCooldown > 0) awaitBatchingWindow(signalled);
+            }
+            catch (ClosedWatchServiceException e) { // stop() closed the WatchService, so exit the loop cleanly
+                break;
             }
             catch (InterruptedException e) { // Thread interrupted, fatal error so exit the listener.
-                log.severe("[FATAL ERROR] Thread interrupted when attempting to sleep the main polling loop!");
+                log.severe("[FATAL ERROR] Thread interrupted when awaiting events in the main polling loop!");
                 break;
             }
-            // Iterate over each event polled by the WatchKey
-            for (WatchEvent<?> event: key.pollEvents()) {
-                // Not idle, since processing an event
-                idle = false;
-                WatchEvent.Kind<?> kind = event.kind();
-                // If an event is lost or discarded, an OVERFLOW event is generatated, in which case skip the event.
-                if (kind == OVERFLOW) continue;
-
-                WatchEvent<Path> ev = (WatchEvent<Path>)event;
-                // context of the WatchEvent is the new filename (because the event must be an ENTRY_CREATE event)
-                Path filename = ev.context();
-                // The above filename Path object is just the name of the file in the directory - we require the full path including the directory.
-                Path child = dir.resolve(filename);
-                log.info("Found new file: " + child.toString());
-                // Construct PathMatcher object that matches any JSON file, to check the file extension
-                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*.json");
-                if (!matcher.matches(filename)) { // Matcher failed to match, therefore not a JSON.
-                    log.warning("New file: " + child.toString() + " is not a JSON file, aborting attempt to upload.");
-                    continue;
-                }
-                else { // File is a JSON...
-                    log.info("New file: " + child.toString() + " resolved to be a JSON file.");
-                    // Obtain File object from the Path object to the JSON file
-                    File newJson = child.toFile();
-                    /* Check if file is locked, in which case cannot extract data and upload it.
-                       Therefore we poll to wait until it's unlocked. */
-                    if (isFileLocked(newJson)) { // Is locked
-                        log.warning("New file: " + child.toString() + " is locked!");
-                        // Check if the opening of a new Thread shall exceed max threads, otherwise open new Thread to poll the locked file until it's unlocked and then upload it.
-                        if (Thread.activeCount() >= maxThreads) {
-                            log.severe("[FATAL ERROR] Cannot open new thread - shall exceed maximum threads!");
-                            throw new RuntimeException("Cannot open new thread - shall exceed maximum threads!");
-                        }
-                        new Thread(() -> {
-                            log.info("Opened new thread to poll locked file: " + child.toString());
-                            pollUntilUnlockedAndUpload(newJson);
-                        }).start();
-                    }
-                    else { // File is unlocked, so attempt to upload
-                        log.info("New file: " + child.toString() + " is unlocked, attempting to POST...");
-                        // Attempt to post the file to the database, at the directory in the database given by dbDirectory.
-                        try {
-                            FirebasePostJson.post(dbConnection, newJson, dbDirectory);
-                            log.info("[SUCCESS] Successfully posted file " + child.toString() + " to database!");
-                        }
-                        catch (IOException | JacksonUtilityException | FirebaseException e) { // Failed to upload to database, so store in failedFiles, and handle next CREATE event
-                            log.severe("[FAILURE} Failed to post file " + child.toString() + " to database!");
-                            failedFilesLog.println(child);
-                            failedFiles.add(newJson);
-                            continue;
-                        }
-                    }
-                }
+            // Not idle, since processing events
+            idle = false;
+            // Process the events of each signalled key, then reset it. If the key is no longer valid, its directory is inaccessible so stop watching it.
+            for (WatchKey k : signalled) {
+                if (!processEvents(k)) invalidated(k);
             }
             // Now may be idle, as have processed all events
             idle = true;
-            // Reset the key. If the key is no longer valid, the directory is inaccessible so exit the loop.
-            boolean valid = key.reset();
-            if (!valid) {
-                log.severe("[FATAL ERROR] Directory inaccessible, key invalidated, exiting main poll loop!");
+            // If every directory is inaccessible, exit the loop.
+            if (keys.isEmpty()) {
+                if (listen) log.severe("[FATAL ERROR] Every directory inaccessible, keys invalidated, exiting main poll loop!");
                 break;
             }
         }
         // Finished running listener, therefore not ready to recieve events
         this.listen = false;
+        synchronized (this) {
+            closeWatcher();
+        }
+        /* Stop retrying, then let the files already within the pipeline finish uploading before returning.
+           Retries still waiting, and files which fail whilst draining, remain in the retry journal for the next run. */
+        try {
+            stopBackfill();
+            reconciler.stop();
+            retryScheduler.stop();
+            pipeline.shutdown();
+            archiver.stop();
+            retryJournal.sync();
+            processedIndex.sync();
+            if (dedupCache != null) dedupCache.close();
+        }
+        catch (InterruptedException e) {
+            log.severe("[FATAL ERROR] Thread interrupted when awaiting the upload pipeline to drain!");
+        }
+        catch (IOException e) {
+            log.severe("[FATAL ERROR] Failed to sync the retry journal, index or content hash cache! " + e.toString());
+        }
+        finally {
+            unregisterMetrics();
+            stopAsyncLogging();
+        }
     }
 
-    /* Polls a file until it becomes unlocked for a specified number of tries.
-       When it becomes unlocked, it's uploaded.
-       Returns true if the file became unlocked, false if it remained locked during the duration of the polling. */
-    private void pollUntilUnlockedAndUpload(File f) {
-        // Main polling loop, iterate for maximum of maxLockedFileTries times
-        for (int i = 0; i < maxLockedFileTries; i++) {
-            // Delay for the given locked file polling cooldown
+    /* If backfilling, uploads the JSON files already within the watched directories (and not yet processed) on a thread of its own,
+       whilst events for files created meanwhile are processed as usual. */
+    private void startBackfill() {
+        if (!backfillEnabled) return;
+        List<Path> dirs = new ArrayList<>(keys.values());
+        backfillThread = new Thread(() -> {
             try {
-                Thread.sleep(lockedFilePollCooldown);
+                backfill.run(dirs);
             }
-            catch (InterruptedException e) { // Thread interrupted, fatal error so stop polling the locked file, and store it in failedFiles
-                log.severe("[FATAL ERROR] Thread interrupted when attempting to sleep the locked file polling loop for file: " + f.toString());
-                failedFilesLog.println(f);
-                failedFiles.add(f);
-                break;
+            catch (InterruptedException e) { // Stopping, the files not yet submitted are found by the next run's backfill
+                log.info("[BACKFILL] Stopped before every file was submitted, the rest shall be uploaded on the next run.");
+            }
+            catch (IllegalStateException e) { // Pipeline stopped meanwhile
+                log.warning("[BACKFILL] Stopped as the upload pipeline isn't running.");
+            }
+        }, "json-listener-backfill");
+        backfillThread.setDaemon(true);
+        backfillThread.start();
+    }
+
+    // Stops the backfill submitting files, if it's still doing so, and waits for its thread to exit
+    private void stopBackfill() throws InterruptedException {
+        Thread t = backfillThread;
+        if (t == null) return;
+        t.interrupt();
+        t.join();
+        backfillThread = null;
+    }
+
+    // If logging asynchronously, puts an AsyncLogHandler writing through the log file's handler in its place
+    private void startAsyncLogging() {
+        if (!asyncLogging) return;
+        asyncLogHandler = new AsyncLogHandler(fileHandler, logBufferSize, logOverflowPolicy, logSummaryInterval);
+        for (Map.Entry<Level, Integer> limit : logRateLimits.entrySet()) asyncLogHandler.setRateLimit(limit.getKey(), limit.getValue());
+        log.addHandler(asyncLogHandler);
+        log.removeHandler(fileHandler);
+        // The console handler writes synchronously, so only the log file is written to whilst logging asynchronously
+        log.setUseParentHandlers(false);
+    }
+
+    // Restores synchronous logging, once the AsyncLogHandler has written every record it buffered
+    private void stopAsyncLogging() {
+        if (asyncLogHandler == null) return;
+        log.addHandler(fileHandler);
+        log.removeHandler(asyncLogHandler);
+        log.setUseParentHandlers(true);
+        asyncLogHandler.close();
+        asyncLogHandler = null;
+    }
+
+    /* Collects any further keys signalled within the pollCooldown batching window.
+       A key isn't re-signalled until it's reset, so events for already signalled keys keep accumulating on them meanwhile. */
+    private void awaitBatchingWindow(List<WatchKey> signalled) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollCooldown);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            WatchKey next = watcher.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next != null) signalled.add(next);
+        }
+    }
+
+    /* Processes every event pending on a signalled key, submitting each new JSON file to the upload pipeline,
+       and watching each new subdirectory of a recursive root. Returns the result of resetting the key: false if the key is no longer valid. */
+    private boolean processEvents(WatchKey k) {
+        // The directory the key watches, and the root it belongs to
+        Path dir = keys.get(k);
+        WatchedRoot root = dir == null ? null : rootOf(dir);
+        if (root == null) { // Directory no longer watched
+            k.cancel();
+            return false;
+        }
+        String dbPath = root.dbPathFor(dir);
+        // Iterate over each event polled by the WatchKey
+        for (WatchEvent<?> event: k.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+            // A modification means the file is still being written, which the pipeline's ready-check stage must know of
+            if (kind == ENTRY_MODIFY) {
+                pipeline.touched(dir.resolve((Path) event.context()).toFile());
+                continue;
+            }
+            // If an event is lost or discarded, an OVERFLOW event is generatated, in which case rescan the directories for the files whose events were lost.
+            if (kind == OVERFLOW) {
+                log.warning("Events overflowed, reconciling directory " + dir.toString() + " to find the files whose events were lost.");
+                // Subdirectories whose creation was lost must be watched too
+                if (root.isRecursive()) watchSubdirectories(root, dir);
+                reconciler.requestScan();
+                continue;
+            }
+
+            WatchEvent<Path> ev = (WatchEvent<Path>)event;
+            // context of the WatchEvent is the new filename (because the event must be an ENTRY_CREATE event)
+            Path filename = ev.context();
+            // The above filename Path object is just the name of the file in the directory - we require the full path including the directory.
+            Path child = dir.resolve(filename);
+            // If a subdirectory was created within a recursive root, watch it (and anything already created within it), unless it's where files are archived
+            if (root.isRecursive() && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                if (archiver.isArchiveDirectory(child)) continue;
+                log.log(Level.INFO, "Found new directory: {0}, watching it.", child);
+                watchSubdirectories(root, child);
+                continue;
+            }
+            log.log(Level.INFO, "Found new file: {0}", child);
+            // Construct PathMatcher object that matches any JSON file, to check the file extension
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*.json");
+            if (!matcher.matches(filename)) { // Matcher failed to match, therefore not a JSON.
+                log.log(Level.WARNING, "New file: {0} is not a JSON file, aborting attempt to upload.", child);
+                continue;
             }
-            // Check if file is locked
-            if (!isFileLocked(f)) { // File is unlocked, so attempt to upload it.
-                log.info("File " + f.toString() + " is now unlocked. Attempting to POST...");
-                // Attempt to post the file to the database, at the directory in the database given by dbDirectory.
+            else { // File is a JSON...
+                log.log(Level.INFO, "New file: {0} resolved to be a JSON file.", child);
+                // Obtain File object from the Path object to the JSON file, and hand it to the pipeline which shall wait for it to unlock, parse and POST it.
+                File newJson = child.toFile();
                 try {
-                    FirebasePostJson.post(dbConnection, f, dbDirectory);
-                    // Successful, so leave polling loop.
-                    log.info("[SUCCESS] Successfully posted file " + f.toString() + " to database!");
-                    break;
+                    pipeline.submit(new UploadJob(newJson, dbPath));
                 }
-                catch (IOException | JacksonUtilityException | FirebaseException e) { // Failed to upload to database, so stop polling
-                    log.severe("[FAILURE} Failed to post file " + f.toString() + " to database!");
-                    failedFilesLog.println(f);
-                    failedFiles.add(f);
+                catch (InterruptedException e) { // Thread interrupted while waiting for the pipeline, fatal error so exit the listener.
+                    log.severe("[FATAL ERROR] Thread interrupted when attempting to submit file " + child.toString() + " to the upload pipeline!");
+                    listen = false;
                     break;
                 }
             }
         }
+        // Reset the key so it may be signalled again
+        return k.reset();
+    }
+
+    /* Adds a further directory to watch, whose JSON files shall be POSTed to the given directory within the database,
+       sharing the listener's WatchService, thread and upload pipeline. If recursive, its subdirectories (including those created later) are watched too,
+       their files being POSTed beneath the same relative path within the database.
+       May be called before or whilst the listener runs. If the listener is running, the directory's existing JSON files not yet processed are uploaded. */
+    public synchronized void addDirectory(Path path, String dbDirectory, boolean recursive) throws IOException {
+        if (path == null || !Files.isDirectory(path)) throw new IllegalArgumentException("Provided Path is not a directory.");
+        if (roots.containsKey(path)) throw new IllegalArgumentException("Directory " + path.toString() + " is already watched.");
+        WatchedRoot root = new WatchedRoot(path, dbDirectory, recursive);
+        roots.put(path, root);
+        // If not yet running, the directory is registered when the listener starts
+        if (watcher == null) return;
+        try {
+            register(root, path, true);
+        }
+        catch (ClosedWatchServiceException e) { // Stopping, so the directory is registered on the next run
+        }
+    }
+
+    // As above, without watching subdirectories
+    public void addDirectory(Path path, String dbDirectory) throws IOException {
+        addDirectory(path, dbDirectory, false);
+    }
+
+    /* Registers a directory of the given root with the WatchService, along with every subdirectory if the root is recursive, and adds each to the reconciler.
+       If scan is true, each directory newly registered is rescanned, as files may have been created within it before it was registered. */
+    private synchronized void register(WatchedRoot root, Path start, boolean scan) throws IOException {
+        if (!root.isRecursive()) {
+            registerDirectory(start, scan);
+            return;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                // The archive and quarantine directories are never watched, as files moved into them would be uploaded again
+                if (archiver.isArchiveDirectory(d)) return FileVisitResult.SKIP_SUBTREE;
+                registerDirectory(d, scan);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException e) {
+                // A subdirectory removed since listed, or unreadable, is skipped rather than abandoning the rest of the tree
+                log.warning("Cannot watch " + f.toString() + ": " + e.toString());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Registers a single directory with the WatchService, unless it's already registered
+    private void registerDirectory(Path d, boolean scan) throws IOException {
+        WatchKey k = watchModifications ? d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY) : d.register(watcher, ENTRY_CREATE);
+        // Registering a directory again returns its existing key
+        if (keys.put(k, d) != null) return;
+        reconciler.addDirectory(d);
+        if (scan) reconciler.scanDirectory(d);
+    }
+
+    // Watches a newly found subdirectory of a recursive root, and every subdirectory within it
+    private void watchSubdirectories(WatchedRoot root, Path d) {
+        try {
+            register(root, d, true);
+        }
+        catch (ClosedWatchServiceException e) { // Stopping
+        }
+        catch (IOException e) {
+            log.warning("Failed to watch directory " + d.toString() + ": " + e.toString());
+        }
+    }
+
+    // Called when a key is no longer valid, as its directory was deleted or became inaccessible, to stop watching the directory
+    private void invalidated(WatchKey k) {
+        Path d = keys.remove(k);
+        if (d == null) return;
+        reconciler.removeDirectory(d);
+        if (roots.containsKey(d)) log.severe("Directory " + d.toString() + " inaccessible, key invalidated, no longer watching it!");
+        else log.info("Directory " + d.toString() + " removed, no longer watching it.");
+    }
+
+    // Returns the watched root containing the given directory, or null if there is none
+    private WatchedRoot rootOf(Path d) {
+        // Roots may be nested within one another, so the closest root containing the directory applies
+        for (Path p = d; p != null; p = p.getParent()) {
+            WatchedRoot root = roots.get(p);
+            if (root != null) return root;
+        }
+        return null;
     }
 
-    // Determines whether a file is locked
-    private static boolean isFileLocked(File f) {
-        // Attempt to rename the file to itself. If returned true, then it was successful so file is unlocked, if false then it was unsuccessful so file is locked.
-        return !f.renameTo(new File(f.getAbsolutePath()));
+    // Returns the directory in the database for the files within the given local directory
+    private String dbPathFor(Path d) {
+        WatchedRoot root = rootOf(d);
+        return root == null ? dbDirectory : root.dbPathFor(d);
+    }
+
+    // Registers the metrics with the platform MBeanServer, named after the directory the listener was constructed with
+    private void registerMetrics() {
+        try {
+            ObjectName name = new ObjectName("lib.jsonlistener:type=JsonListener,name=" + ObjectName.quote(dir.toString()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            this.metricsName = name;
+        }
+        catch (JMException e) { // e.g. another listener on the same directory, the listener still runs without JMX
+            log.warning("Failed to publish metrics over JMX: " + e.toString());
+        }
+    }
+
+    // Unregisters the metrics from the platform MBeanServer
+    private void unregisterMetrics() {
+        if (metricsName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        }
+        catch (JMException e) {
+            log.warning("Failed to unpublish metrics from JMX: " + e.toString());
+        }
+        metricsName = null;
+    }
+
+    // Closes the WatchService, so no directories remain watched
+    private void closeWatcher() {
+        WatchService w = this.watcher;
+        if (w == null) return;
+        try {
+            w.close();
+        }
+        catch (IOException e) {
+            log.warning("Failed to close WatchService: " + e.toString());
+        }
+        this.watcher = null;
+        keys.clear();
+    }
+
+    // Called by the retry scheduler to upload a file again
+    private void resubmit(UploadJob job) {
+        try {
+            pipeline.submit(job);
+        }
+        catch (InterruptedException e) { // Stopping, the file remains in the retry journal
+            Thread.currentThread().interrupt();
+        }
+        catch (IllegalStateException e) { // Pipeline not running, the file remains in the retry journal
+            log.warning("Cannot retry file " + job.toString() + " as the listener isn't running.");
+        }
+    }
+
+    // Called when a file failed to upload and was given up on, stores it in failedFiles
+    private synchronized void recordFailure(File f) {
+        failedFilesLog.println(f);
+        failedFilesLog.flush();
+        failedFiles.add(f);
     }
 
     /*
         Getter and setter methods.
     */
 
-    // Setter for database directory
+    // Setter for database directory, of the directory the listener was constructed with
     public void setDbDirectory(String x) {
         this.dbDirectory = x;
+        roots.put(dir, new WatchedRoot(dir, x, roots.get(dir).isRecursive()));
     }
 
     // Setter for max threads
@@ -228,20 +614,252 @@ public class JsonListener {
 
     // Setter for max locked file poll tries
     public void setMaxLockedFileTries(int x) {
-        if (x < 1) throw new IllegalArgumentException("Maximum tries for locked files must be at least 1.");
-        this.maxLockedFileTries = x;
+        pipeline.setMaxLockedFileTries(x);
+    }
+
+    // Setter for watching modifications, which takes effect on the next runListener()
+    public void setWatchModifications(boolean x) {
+        this.watchModifications = x;
+    }
+
+    // Setter for the number of content hashes remembered to skip byte-identical uploads (0 disables deduplication), which takes effect on the next runListener()
+    public void setDedupCacheSize(int x) {
+        if (x < 0) throw new IllegalArgumentException("Dedup cache size must be at least 0.");
+        this.dedupCacheSize = x;
+    }
+
+    // Setter for whether the content hashes are persisted within the log directory, to survive a restart
+    public void setDedupPersistent(boolean x) {
+        this.dedupPersistent = x;
+    }
+
+    // Setter for delta uploads, where each file is written to a location named after it and later versions send only their changes, which takes effect on the next runListener()
+    public void setDeltaUploads(boolean x) {
+        pipeline.setDeltaUploads(x);
     }
 
-    // Setter for directory poll cooldown
+    // Setter for the number of previous versions held to compute deltas against, which takes effect on the next runListener()
+    public void setDeltaCacheSize(int x) {
+        pipeline.setDeltaCacheSize(x);
+    }
+
+    // Setter for directory poll cooldown (the batching window)
     public void setPollCooldown(int x) {
-        if (x <= 0) throw new IllegalArgumentException("Directory poll cooldown must be greater than 0 ms.");
+        if (x < 0) throw new IllegalArgumentException("Directory poll cooldown must be at least 0 ms.");
         this.pollCooldown = x;
     }
 
+    // Setter for batch size, the maximum number of files uploaded together in one request (1 disables batching)
+    public void setBatchSize(int x) {
+        pipeline.setBatchSize(x);
+    }
+
+    // Setter for batch bytes, the maximum total size of the files uploaded together in one request
+    public void setBatchBytes(long x) {
+        pipeline.setBatchBytes(x);
+    }
+
+    // Setter for batch linger time, the longest a file waits for its batch to fill, in milliseconds
+    public void setBatchLinger(int x) {
+        pipeline.setBatchLinger(x);
+    }
+
     // Setter for locked file poll cooldown
     public void setLockedFilePollCooldown(int x) {
-        if (x <= 0) throw new IllegalArgumentException("Locked file poll cooldown must be greater than 0 ms.");
-        this.lockedFilePollCooldown = x;
+        pipeline.setLockedFilePollCooldown(x);
+    }
+
+    // Setter for streaming uploads, where files are validated by streaming through them and their bytes are sent straight from disk, rather than being parsed into a Map
+    public void setStreamingUploads(boolean x) {
+        pipeline.setStreamingUploads(x);
+    }
+
+    // Setter for asynchronous uploads, sent through the connection's asynchronous transport so tens of uploads may be in flight on a handful of threads
+    public void setAsyncUploads(boolean x) {
+        pipeline.setAsyncUploads(x);
+    }
+
+    /* Setter for the memory budget: the number of heap bytes the documents being parsed and uploaded may occupy at once (0 for no limit), which takes effect on the next runListener().
+       Each file reserves its size times the memory expansion before it's parsed, waiting for room whilst the budget is exhausted. */
+    public void setMemoryBudget(long x) {
+        pipeline.setMemoryBudget(x);
+    }
+
+    // Setter for the estimated ratio of the memory a parsed document occupies to the size of its file
+    public void setMemoryExpansion(double x) {
+        pipeline.setMemoryExpansion(x);
+    }
+
+    // Setter for memory spilling, where a file which doesn't fit within the memory budget is streamed from disk rather than waiting for room, where it may be
+    public void setMemorySpill(boolean x) {
+        pipeline.setMemorySpill(x);
+    }
+
+    /* Setter for the transform reshaping each document as it's parsed, keeping only the fields included (and not excluded), renamed and filtered by its rules (null uploads documents as they are).
+       Documents are then always parsed, even when streaming uploads, and a document left empty isn't uploaded. */
+    public void setTransform(JsonTransform x) {
+        pipeline.setTransform(x);
+    }
+
+    // Setter for the size in bytes at which a file is split along its keys and uploaded as many parts in parallel, rather than in one request (0 disables)
+    public void setFanOutThreshold(long x) {
+        pipeline.setFanOutThreshold(x);
+    }
+
+    // Setter for the depth of keys a large file is split along (1 splits by top-level key)
+    public void setFanOutDepth(int x) {
+        pipeline.getFanOut().setDepth(x);
+    }
+
+    // Setter for the target size in bytes of each part of a large file
+    public void setFanOutPartBytes(int x) {
+        pipeline.getFanOut().setPartBytes(x);
+    }
+
+    // Setter for the number of retries of each part of a large file, before the file is retried as a whole
+    public void setFanOutRetries(int x) {
+        pipeline.getFanOut().setMaxRetries(x);
+    }
+
+    // Setter for gzip compression of the parts of large files
+    public void setFanOutGzip(boolean x) {
+        pipeline.getFanOut().setGzip(x);
+    }
+
+    // Setter for adaptive limiting, where the requests sent concurrently adapt to how the database is coping (see AdaptiveLimiter)
+    public void setAdaptiveLimiting(boolean x) {
+        dbConnection.getLimiter().setEnabled(x);
+    }
+
+    // Setter for the least number of requests the adaptive limit may fall to
+    public void setMinConcurrency(int x) {
+        dbConnection.getLimiter().setMinLimit(x);
+    }
+
+    // Setter for the most number of requests the adaptive limit may rise to
+    public void setMaxConcurrency(int x) {
+        dbConnection.getLimiter().setMaxLimit(x);
+    }
+
+    // Setter for the multiple of the usual latency beyond which a response counts as a sign of strain (0 ignores latency)
+    public void setLatencyTolerance(double x) {
+        dbConnection.getLimiter().setLatencyTolerance(x);
+    }
+
+    // Setter for the rate cap of requests to the given path in the database (and every path within it), in requests per second with bursts of up to burst requests (0 removes the cap)
+    public void setPathRateLimit(String path, double perSecond, int burst) {
+        dbConnection.getLimiter().setPathRate(path, perSecond, burst);
+    }
+
+    // Setter for asynchronous logging, where the listener's threads hand log records to a bounded buffer written to the log file by a single thread
+    public void setAsyncLogging(boolean x) {
+        this.asyncLogging = x;
+    }
+
+    // Setter for the number of log records buffered when logging asynchronously
+    public void setLogBufferSize(int x) {
+        if (x < 1) throw new IllegalArgumentException("Log buffer size must be at least 1.");
+        this.logBufferSize = x;
+    }
+
+    // Setter for what happens to a log record when the buffer is full
+    public void setLogOverflowPolicy(AsyncLogHandler.OverflowPolicy x) {
+        if (x == null) throw new IllegalArgumentException("Provided OverflowPolicy is null.");
+        this.logOverflowPolicy = x;
+    }
+
+    // Setter for the interval over which log rate limits apply, after which suppressed records are summarised
+    public void setLogSummaryInterval(int x) {
+        if (x <= 0) throw new IllegalArgumentException("Log summary interval must be greater than 0 ms.");
+        this.logSummaryInterval = x;
+    }
+
+    // Setter for the maximum number of log records of the given level written per summary interval when logging asynchronously (0 removes the limit)
+    public void setLogRateLimit(Level level, int x) {
+        if (level == null) throw new IllegalArgumentException("Provided Level is null.");
+        if (x < 0) throw new IllegalArgumentException("Log rate limit must not be negative.");
+        if (x == 0) logRateLimits.remove(level);
+        else logRateLimits.put(level, x);
+    }
+
+    // Setter for the maximum number of retries of a file which failed to upload, before it's given up on
+    public void setMaxRetries(int x) {
+        retryScheduler.setMaxRetries(x);
+    }
+
+    // Setter for the backoff before the first retry, which doubles for each further retry
+    public void setRetryBaseDelay(int x) {
+        retryScheduler.setRetryBaseDelay(x);
+    }
+
+    // Setter for the maximum backoff between retries
+    public void setRetryMaxDelay(int x) {
+        retryScheduler.setRetryMaxDelay(x);
+    }
+
+    // Setter for the interval between each fsync of the retry journal
+    public void setJournalSyncInterval(int x) {
+        retryScheduler.setJournalSyncInterval(x);
+    }
+
+    // Setter for backfilling, where the files already within the directories on start are scanned in parallel and uploaded in the backfill order, which takes effect on the next runListener()
+    public void setBackfill(boolean x) {
+        this.backfillEnabled = x;
+    }
+
+    // Setter for the order in which backfilled files are uploaded
+    public void setBackfillOrder(Backfill.Order x) {
+        backfill.setOrder(x);
+    }
+
+    // Setter for the number of threads scanning the directories when backfilling
+    public void setBackfillThreads(int x) {
+        backfill.setThreads(x);
+    }
+
+    // Setter for what happens to each file once uploaded (or skipped): KEEP leaves it, DELETE deletes it and ARCHIVE moves it into the archive directory
+    public void setDisposition(FileArchiver.Disposition x) {
+        archiver.setDisposition(x);
+    }
+
+    // Setter for the directory uploaded files are archived within, which should be on the same file system as the watched directories
+    public void setArchiveDirectory(Path x) {
+        archiver.setArchiveDirectory(x);
+    }
+
+    // Setter for the directory files given up on are moved into (null leaves them within the watched directory)
+    public void setQuarantineDirectory(Path x) {
+        archiver.setQuarantineDirectory(x);
+    }
+
+    // Setter for how the archive and quarantine directories are divided into subdirectories
+    public void setArchiveSharding(FileArchiver.Sharding x) {
+        archiver.setSharding(x);
+    }
+
+    // Setter for the interval between periodic rescans of the directory for files never processed (0 disables periodic rescans)
+    public void setReconcileInterval(int x) {
+        reconciler.setReconcileInterval(x);
+    }
+
+    // Setter for the number of threads parsing JSON files
+    public void setParseThreads(int x) {
+        pipeline.setParseThreads(x);
+    }
+
+    // Setter for the number of concurrent uploads
+    public void setUploadThreads(int x) {
+        pipeline.setUploadThreads(x);
+    }
+
+    // Setter for the capacity of the queue in front of each pipeline stage
+    public void setStageQueueCapacity(int x) {
+        pipeline.setStageQueueCapacity(x);
+    }
+
+    // Setter for the maximum number of files waiting to become unlocked
+    public void setMaxPendingFiles(int x) {
+        pipeline.setMaxPendingFiles(x);
     }
 
     // Getter for database directory
@@ -249,6 +867,11 @@ public class JsonListener {
         return this.dbDirectory;
     }
 
+    // Getter for every directory being watched
+    public List<WatchedRoot> getDirectories() {
+        return new ArrayList<>(roots.values());
+    }
+
     // Getter for max threads
     public int getMaxThreads() {
         return this.maxThreads;
@@ -256,7 +879,32 @@ public class JsonListener {
 
     // Setter for max locked file poll tries
     public int getMaxLockedFileTries() {
-        return this.maxLockedFileTries;
+        return pipeline.getMaxLockedFileTries();
+    }
+
+    // Getter for watching modifications
+    public boolean isWatchModifications() {
+        return this.watchModifications;
+    }
+
+    // Getter for dedup cache size
+    public int getDedupCacheSize() {
+        return this.dedupCacheSize;
+    }
+
+    // Getter for whether content hashes are persisted
+    public boolean isDedupPersistent() {
+        return this.dedupPersistent;
+    }
+
+    // Getter for delta uploads
+    public boolean isDeltaUploads() {
+        return pipeline.isDeltaUploads();
+    }
+
+    // Getter for delta cache size
+    public int getDeltaCacheSize() {
+        return pipeline.getDeltaCacheSize();
     }
 
     // Getter for directory poll cooldown
@@ -264,14 +912,235 @@ public class JsonListener {
         return this.pollCooldown;
     }
 
+    // Getter for batch size
+    public int getBatchSize() {
+        return pipeline.getBatchSize();
+    }
+
+    // Getter for batch bytes
+    public long getBatchBytes() {
+        return pipeline.getBatchBytes();
+    }
+
+    // Getter for batch linger time
+    public int getBatchLinger() {
+        return pipeline.getBatchLinger();
+    }
+
     // Getter for locked file poll cooldown
     public int getLockedFilePollCooldown() {
-        return this.lockedFilePollCooldown;
+        return pipeline.getLockedFilePollCooldown();
+    }
+
+    // Getter for streaming uploads
+    public boolean isStreamingUploads() {
+        return pipeline.isStreamingUploads();
+    }
+
+    // Getter for asynchronous uploads
+    public boolean isAsyncUploads() {
+        return pipeline.isAsyncUploads();
+    }
+
+    // Getter for the memory budget
+    public long getMemoryBudget() {
+        return pipeline.getMemoryBudget();
+    }
+
+    // Getter for the memory expansion
+    public double getMemoryExpansion() {
+        return pipeline.getMemoryExpansion();
+    }
+
+    // Getter for memory spilling
+    public boolean isMemorySpill() {
+        return pipeline.isMemorySpill();
+    }
+
+    // Getter for the number of bytes of the memory budget currently reserved
+    public long getMemoryReserved() {
+        return pipeline.getMemoryReserved();
+    }
+
+    // Getter for the transform reshaping each document
+    public JsonTransform getTransform() {
+        return pipeline.getTransform();
+    }
+
+    // Getter for the fan-out threshold
+    public long getFanOutThreshold() {
+        return pipeline.getFanOutThreshold();
+    }
+
+    // Getter for the depth of keys a large file is split along
+    public int getFanOutDepth() {
+        return pipeline.getFanOut().getDepth();
+    }
+
+    // Getter for the target size of each part of a large file
+    public int getFanOutPartBytes() {
+        return pipeline.getFanOut().getPartBytes();
+    }
+
+    // Getter for the number of retries of each part of a large file
+    public int getFanOutRetries() {
+        return pipeline.getFanOut().getMaxRetries();
+    }
+
+    // Getter for gzip compression of the parts of large files
+    public boolean isFanOutGzip() {
+        return pipeline.getFanOut().isGzip();
+    }
+
+    // Getter for adaptive limiting
+    public boolean isAdaptiveLimiting() {
+        return dbConnection.getLimiter().isEnabled();
+    }
+
+    // Getter for the least number of requests the adaptive limit may fall to
+    public int getMinConcurrency() {
+        return dbConnection.getLimiter().getMinLimit();
+    }
+
+    // Getter for the most number of requests the adaptive limit may rise to
+    public int getMaxConcurrency() {
+        return dbConnection.getLimiter().getMaxLimit();
+    }
+
+    // Getter for the current adaptive limit of requests sent concurrently
+    public int getConcurrencyLimit() {
+        return dbConnection.getLimiter().getLimit();
+    }
+
+    // Getter for the latency tolerance
+    public double getLatencyTolerance() {
+        return dbConnection.getLimiter().getLatencyTolerance();
+    }
+
+    // Getter for asynchronous logging
+    public boolean isAsyncLogging() {
+        return this.asyncLogging;
+    }
+
+    // Getter for the number of log records buffered when logging asynchronously
+    public int getLogBufferSize() {
+        return this.logBufferSize;
+    }
+
+    // Getter for what happens to a log record when the buffer is full
+    public AsyncLogHandler.OverflowPolicy getLogOverflowPolicy() {
+        return this.logOverflowPolicy;
+    }
+
+    // Getter for the log summary interval
+    public int getLogSummaryInterval() {
+        return this.logSummaryInterval;
+    }
+
+    // Getter for the maximum number of log records of the given level written per summary interval (0 if unlimited)
+    public int getLogRateLimit(Level level) {
+        Integer limit = logRateLimits.get(level);
+        return limit == null ? 0 : limit;
+    }
+
+    // Getter for max retries
+    public int getMaxRetries() {
+        return retryScheduler.getMaxRetries();
+    }
+
+    // Getter for retry base delay
+    public int getRetryBaseDelay() {
+        return retryScheduler.getRetryBaseDelay();
     }
 
-    // Getter for the idle status of the listener
+    // Getter for retry max delay
+    public int getRetryMaxDelay() {
+        return retryScheduler.getRetryMaxDelay();
+    }
+
+    // Getter for journal sync interval
+    public int getJournalSyncInterval() {
+        return retryScheduler.getJournalSyncInterval();
+    }
+
+    // Getter for backfilling
+    public boolean isBackfill() {
+        return this.backfillEnabled;
+    }
+
+    // Getter for the order in which backfilled files are uploaded
+    public Backfill.Order getBackfillOrder() {
+        return backfill.getOrder();
+    }
+
+    // Getter for the number of threads scanning the directories when backfilling
+    public int getBackfillThreads() {
+        return backfill.getThreads();
+    }
+
+    // Getter for whether backfilled files remain to be processed
+    public boolean isBackfilling() {
+        return backfill.isRunning();
+    }
+
+    // Getter for what happens to each file once uploaded
+    public FileArchiver.Disposition getDisposition() {
+        return archiver.getDisposition();
+    }
+
+    // Getter for the archive directory
+    public Path getArchiveDirectory() {
+        return archiver.getArchiveDirectory();
+    }
+
+    // Getter for the quarantine directory
+    public Path getQuarantineDirectory() {
+        return archiver.getQuarantineDirectory();
+    }
+
+    // Getter for how the archive and quarantine directories are divided
+    public FileArchiver.Sharding getArchiveSharding() {
+        return archiver.getSharding();
+    }
+
+    // Getter for reconcile interval
+    public int getReconcileInterval() {
+        return reconciler.getReconcileInterval();
+    }
+
+    // Getter for the number of threads parsing JSON files
+    public int getParseThreads() {
+        return pipeline.getParseThreads();
+    }
+
+    // Getter for the number of concurrent uploads
+    public int getUploadThreads() {
+        return pipeline.getUploadThreads();
+    }
+
+    // Getter for the capacity of the queue in front of each pipeline stage
+    public int getStageQueueCapacity() {
+        return pipeline.getStageQueueCapacity();
+    }
+
+    // Getter for the maximum number of files waiting to become unlocked
+    public int getMaxPendingFiles() {
+        return pipeline.getMaxPendingFiles();
+    }
+
+    // Getter for the metrics of the listener, also published over JMX whilst it runs
+    public ListenerMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    // Adds a listener which is notified of each metric as it's recorded, e.g. to export the metrics elsewhere
+    public void addMetricsListener(MetricsListener l) {
+        metrics.addListener(l);
+    }
+
+    // Getter for the idle status of the listener, idle only when no events are being processed and the pipeline is empty
     public boolean isIdle() {
-        return this.idle;
+        return this.idle && pipeline.isDrained();
     }
 
     // Getter for the listening status of the listener
@@ -279,8 +1148,16 @@ public class JsonListener {
         return this.listen;
     }
 
-    // Stops the listener by setting listen flag to false
+    // Stops the listener by setting listen flag to false, and closing the WatchService to wake the listener if it's awaiting events
     public void stop() {
         this.listen = false;
+        WatchService w = this.watcher;
+        if (w == null) return;
+        try {
+            w.close();
+        }
+        catch (IOException e) {
+            log.warning("Failed to close WatchService when stopping the listener: " + e.toString());
+        }
     }
 }
@@ -0,0 +1,430 @@
+/*
+    An end-to-end load generator and soak test for JsonListener, giving the listener's capacity on a machine before it's deployed there.
+    JSON files are written into a watched directory at a steady rate, with sizes drawn from a distribution, either renamed into place at once
+    or written slowly in chunks whilst holding a lock, as a crawler still writing a file does. The listener uploads them to a FirebaseStub,
+    which may add latency to each request and fail a fraction of them. Each document carries an id, so the stub tells which arrived, and when.
+    Once every file has arrived (or the drain timeout passes), the harness reports the end-to-end latency from each file being completely written
+    until the stub received it, the throughput, the files lost or duplicated, and the heap and garbage collection of the run.
+
+    Options are passed as --name=value, e.g.
+        java -cp target/benchmarks.jar LoadHarness --rate=500 --duration=300 --sizes=lognormal:16k:1.0 --write=slow --latency=20-80 --errors=0.01
+     - rate: files written per second (default 100).
+     - duration: seconds to write files for (default 60).
+     - sizes: fixed:SIZE, uniform:MIN-MAX or lognormal:MEDIAN:SIGMA, sizes in bytes with an optional k or m suffix (default fixed:4k).
+     - write: atomic, renaming each file into place once written, or slow, writing it in chunks whilst locked (default atomic).
+     - write-time: milliseconds over which a slow write is spread (default 500), and write-chunks: the chunks it's written in (default 4).
+     - writers: threads writing files (default 4).
+     - latency: MIN-MAX milliseconds added to each response of the stub (default 0-0), and stub-threads: threads answering requests (default 64).
+     - errors: fraction of requests the stub fails (default 0), and error-status: the HTTP status it fails them with (default 503).
+     - upload-threads, parse-threads, batch-size, max-pending: passed to the listener when given.
+     - async-uploads, streaming, async-logging, watch-modifications: true or false, passed to the listener (default false).
+     - dispose: keep or delete files once uploaded (default delete, so a long soak doesn't fill the disk).
+     - drain: seconds to wait for the last files to arrive once writing stops (default 60).
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+import benchmarks.Documents;
+import benchmarks.FirebaseStub;
+import lib.firebasepostjson.lib.FirebaseConnection;
+import lib.jsonlistener.FileArchiver;
+import lib.jsonlistener.LatencyHistogram;
+import lib.jsonlistener.LatencySnapshot;
+import lib.jsonlistener.ListenerMetrics;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+public class LoadHarness {
+    // The id embedded within each document, found within the bodies the stub receives
+    private static final Pattern LOAD_ID = Pattern.compile("\"loadId\"\\s*:\\s*\"L(\\d+)\"");
+    // Interval at which the heap is sampled, in milliseconds
+    private static final int SAMPLE_INTERVAL = 100;
+    // Sizes are rounded up to a multiple of this, so only one body is generated per bucket
+    private static final int SIZE_BUCKET = 1024;
+
+    // The options, by name
+    private final Map<String, String> options;
+    // Number of files written in total
+    private final int total;
+    // When each file was completely written, by id (0 until it is), in nanoseconds
+    private final AtomicLongArray written;
+    // Number of times each file was received by the stub, by id
+    private final AtomicIntegerArray received;
+    // Latency from a file being completely written until the stub first received it, in nanoseconds
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    // Number of files written, received at least once, received more than once, and received before they were completely written
+    private final LongAdder filesWritten = new LongAdder();
+    private final LongAdder filesReceived = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder early = new LongAdder();
+    // Bytes of the files written, and the number of files which failed to be written
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    // Counted down as each write finishes, successfully or not
+    private final CountDownLatch writes;
+    // When the last file was received, in nanoseconds
+    private final AtomicLong lastReceived = new AtomicLong();
+    // Largest heap used, sampled throughout the run, in bytes
+    private final AtomicLong peakHeap = new AtomicLong();
+    // The body of a document of each size bucket, without its id
+    private final Map<Integer, String> bodies = new ConcurrentHashMap<>();
+
+    // One constructs a LoadHarness with its options
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+        long n = (long) Math.ceil(doubleOption("rate", 100) * intOption("duration", 60));
+        if (n <= 0 || n > Integer.MAX_VALUE) throw new IllegalArgumentException("Rate and duration must give between 1 and " + Integer.MAX_VALUE + " files.");
+        this.total = (int) n;
+        this.written = new AtomicLongArray(total);
+        this.received = new AtomicIntegerArray(total);
+        this.writes = new CountDownLatch(total);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) throw new IllegalArgumentException("Expected an option of the form --name=value but was " + arg);
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new LoadHarness(options).run();
+    }
+
+    // Runs the load test and prints its report
+    private void run() throws Exception {
+        Path root = Files.createTempDirectory("json-listener-load");
+        Path watched = Files.createDirectories(root.resolve("watched"));
+        Path staging = Files.createDirectories(root.resolve("staging"));
+        Path logs = Files.createDirectories(root.resolve("logs"));
+        // The listener logs every file, which would drown the report
+        Logger.getLogger("JsonListenerLog").setUseParentHandlers(false);
+
+        FirebaseStub stub = new FirebaseStub(intOption("stub-threads", 64));
+        String[] latency = option("latency", "0-0").split("-");
+        stub.setLatency(Integer.parseInt(latency[0]), Integer.parseInt(latency[latency.length - 1]));
+        stub.setErrorRate(doubleOption("errors", 0), intOption("error-status", 503));
+        stub.setRequestListener(this::receive);
+
+        FirebaseConnection connection = new FirebaseConnection(stub.getBaseUrl());
+        JsonListener listener = new JsonListener(connection, watched, "load", logs);
+        configure(listener);
+        Thread listenerThread = new Thread(listener::runListener, "load-listener");
+        listenerThread.start();
+        while (!listener.isListening()) {
+            if (!listenerThread.isAlive()) throw new IllegalStateException("Listener failed to start, see " + logs.resolve("json-listener-log.log"));
+            Thread.sleep(10);
+        }
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+        long gcCount = gcCount(), gcTime = gcTime();
+
+        System.out.println("Writing " + total + " files into " + watched + " over " + intOption("duration", 60) + "s...");
+        long start = System.nanoTime();
+        generate(watched, staging);
+        long writeEnd = System.nanoTime();
+        System.out.println("Written in " + seconds(writeEnd - start) + "s, draining...");
+
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(intOption("drain", 60));
+        ListenerMetrics metrics = listener.getMetrics();
+        while (filesReceived.sum() + metrics.getFilesFailed() < filesWritten.sum() && System.nanoTime() < drainDeadline) Thread.sleep(SAMPLE_INTERVAL);
+
+        listener.stop();
+        listenerThread.join();
+        sampler.shutdown();
+        sampler.awaitTermination(1, TimeUnit.SECONDS);
+        report(metrics, stub, start, writeEnd, gcCount(gcCount), gcTime(gcTime));
+        connection.close();
+        stub.stop();
+        delete(root);
+    }
+
+    // Applies the listener's options
+    private void configure(JsonListener listener) {
+        if (options.containsKey("upload-threads")) listener.setUploadThreads(intOption("upload-threads", 0));
+        if (options.containsKey("parse-threads")) listener.setParseThreads(intOption("parse-threads", 0));
+        if (options.containsKey("batch-size")) listener.setBatchSize(intOption("batch-size", 0));
+        if (options.containsKey("max-pending")) listener.setMaxPendingFiles(intOption("max-pending", 0));
+        listener.setAsyncUploads(booleanOption("async-uploads"));
+        listener.setStreamingUploads(booleanOption("streaming"));
+        listener.setAsyncLogging(booleanOption("async-logging"));
+        listener.setWatchModifications(booleanOption("watch-modifications"));
+        switch (option("dispose", "delete")) {
+            case "keep":
+                listener.setDisposition(FileArchiver.Disposition.KEEP);
+                break;
+            case "delete":
+                listener.setDisposition(FileArchiver.Disposition.DELETE);
+                break;
+            default:
+                throw new IllegalArgumentException("Option dispose must be keep or delete.");
+        }
+    }
+
+    // Writes every file at the configured rate, each started on time by a writer thread, then waits for the writes to finish
+    private void generate(Path watched, Path staging) throws InterruptedException {
+        ScheduledExecutorService writers = Executors.newScheduledThreadPool(intOption("writers", 4));
+        IntSupplier sizes = sizes(option("sizes", "fixed:4k"));
+        boolean slow;
+        switch (option("write", "atomic")) {
+            case "atomic":
+                slow = false;
+                break;
+            case "slow":
+                slow = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Option write must be atomic or slow.");
+        }
+        int chunks = Math.max(1, intOption("write-chunks", 4));
+        long chunkDelay = TimeUnit.MILLISECONDS.toNanos(intOption("write-time", 500)) / chunks;
+        double interval = 1e9 / doubleOption("rate", 100);
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            // Each file is due at a fixed offset from the start, so a late file doesn't delay those after it
+            long due = start + (long) (i * interval);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            int id = i;
+            byte[] document = document(id, sizes.getAsInt());
+            if (slow) writers.execute(() -> writeSlowly(watched.resolve("load-" + id + ".json"), id, document, chunks, chunkDelay, writers));
+            else writers.execute(() -> writeAtomically(watched, staging, id, document));
+        }
+        // Slow writes schedule their remaining chunks, so the writers are only shut down once every write has finished
+        writes.await();
+        writers.shutdown();
+    }
+
+    // Writes a file into the staging directory, then renames it into the watched directory so it appears whole
+    private void writeAtomically(Path watched, Path staging, int id, byte[] document) {
+        String name = "load-" + id + ".json";
+        try {
+            Files.write(staging.resolve(name), document);
+            Files.move(staging.resolve(name), watched.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            written(id, document.length);
+        }
+        catch (IOException e) {
+            writeErrors.increment();
+        }
+        writes.countDown();
+    }
+
+    // Writes a file in the watched directory in chunks spread over the write time, holding a lock on it until the last is written
+    private void writeSlowly(Path file, int id, byte[] document, int chunks, long chunkDelay, ScheduledExecutorService writers) {
+        FileChannel channel;
+        FileLock lock;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            lock = channel.lock();
+        }
+        catch (IOException e) {
+            writeErrors.increment();
+            writes.countDown();
+            return;
+        }
+        int chunk = (document.length + chunks - 1) / chunks;
+        new Runnable() {
+            // Index of the next chunk to write
+            int next = 0;
+
+            @Override
+            public void run() {
+                try {
+                    int from = next * chunk, to = Math.min(document.length, from + chunk);
+                    channel.write(ByteBuffer.wrap(document, from, to - from));
+                    if (++next < chunks && to < document.length) {
+                        writers.schedule(this, chunkDelay, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+                    lock.release();
+                    channel.close();
+                    written(id, document.length);
+                }
+                catch (IOException e) {
+                    writeErrors.increment();
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+                writes.countDown();
+            }
+        }.run();
+    }
+
+    // Records that a file was completely written
+    private void written(int id, int bytes) {
+        written.set(id, System.nanoTime());
+        filesWritten.increment();
+        bytesWritten.add(bytes);
+    }
+
+    // Records the documents within the body of a request the stub answered successfully
+    private void receive(byte[] body) {
+        long now = System.nanoTime();
+        Matcher m = LOAD_ID.matcher(new String(body, StandardCharsets.UTF_8));
+        while (m.find()) {
+            int id = Integer.parseInt(m.group(1));
+            if (id >= total) continue;
+            if (received.getAndIncrement(id) > 0) {
+                duplicates.increment();
+                continue;
+            }
+            filesReceived.increment();
+            lastReceived.accumulateAndGet(now, Math::max);
+            long completed = written.get(id);
+            if (completed == 0) early.increment();
+            else endToEnd.record(now - completed);
+        }
+    }
+
+    // Returns a document of roughly the given size, carrying the given id
+    private byte[] document(int id, int size) {
+        int bucket = Math.max(1, (size + SIZE_BUCKET - 1) / SIZE_BUCKET);
+        String body = bodies.computeIfAbsent(bucket, b -> Documents.generate(b * SIZE_BUCKET));
+        return ("{\"loadId\":\"L" + id + "\"," + body.substring(1)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Prints the report of the run
+    private void report(ListenerMetrics metrics, FirebaseStub stub, long start, long writeEnd, long gcCount, long gcTime) {
+        long files = filesWritten.sum(), receivedFiles = filesReceived.sum();
+        long end = Math.max(writeEnd, lastReceived.get());
+        LatencySnapshot latency = endToEnd.snapshot();
+        System.out.println();
+        System.out.println("Files written:     " + files + " (" + megabytes(bytesWritten.sum()) + " MB, " + writeErrors.sum() + " failed to write)");
+        System.out.println("Write rate:        " + rate(files, writeEnd - start) + " files/s");
+        System.out.println("Files received:    " + receivedFiles + " (" + duplicates.sum() + " duplicates, " + early.sum() + " before completely written)");
+        System.out.println("Files lost:        " + (files - receivedFiles) + " (" + metrics.getFilesFailed() + " given up on by the listener)");
+        System.out.println("Throughput:        " + rate(receivedFiles, end - start) + " files/s");
+        System.out.printf("End-to-end (ms):   p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f, mean %.1f%n",
+                latency.getP50() / 1000.0, latency.getP90() / 1000.0, latency.getP99() / 1000.0, latency.getP999() / 1000.0, latency.getMax() / 1000.0, latency.getMean() / 1000.0);
+        System.out.println("Requests:          " + stub.getServed() + " served, " + stub.getErrors() + " failed by the stub, " + metrics.getRetries() + " retries");
+        System.out.println("Batches, spilled:  " + metrics.getBatches() + ", " + metrics.getFilesSpilled());
+        System.out.println("Peak heap:         " + megabytes(peakHeap.get()) + " MB");
+        System.out.println("GC:                " + gcCount + " collections, " + gcTime + " ms");
+        System.out.println();
+        System.out.println("Listener metrics:");
+        System.out.println(metrics);
+    }
+
+    // Returns a supplier of file sizes drawn from the given distribution
+    private static IntSupplier sizes(String spec) {
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "fixed": {
+                int size = bytes(parts[1]);
+                return () -> size;
+            }
+            case "uniform": {
+                String[] range = parts[1].split("-");
+                int min = bytes(range[0]), max = bytes(range[1]);
+                if (max < min) throw new IllegalArgumentException("Uniform sizes must satisfy min <= max.");
+                return () -> min + ThreadLocalRandom.current().nextInt(max - min + 1);
+            }
+            case "lognormal": {
+                int median = bytes(parts[1]);
+                double sigma = Double.parseDouble(parts[2]);
+                Random random = new Random();
+                return () -> (int) Math.min(Integer.MAX_VALUE / 2, Math.max(1, median * Math.exp(sigma * random.nextGaussian())));
+            }
+            default:
+                throw new IllegalArgumentException("Option sizes must be fixed:SIZE, uniform:MIN-MAX or lognormal:MEDIAN:SIGMA.");
+        }
+    }
+
+    // Parses a size in bytes, with an optional k or m suffix
+    private static int bytes(String s) {
+        s = s.trim().toLowerCase();
+        if (s.endsWith("k")) return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024;
+        if (s.endsWith("m")) return Integer.parseInt(s.substring(0, s.length() - 1)) * 1024 * 1024;
+        return Integer.parseInt(s);
+    }
+
+    // Returns the number of garbage collections since startup, less the given number
+    private static long gcCount(long since) {
+        return gcCount() - since;
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).filter(c -> c > 0).sum();
+    }
+
+    // Returns the time spent collecting garbage since startup, less the given time, in milliseconds
+    private static long gcTime(long since) {
+        return gcTime() - since;
+    }
+
+    private static long gcTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(t -> t > 0).sum();
+    }
+
+    // Deletes a directory and everything within it
+    private static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    // Formats a number of bytes in megabytes
+    private static String megabytes(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    // Formats a number of events over a period in nanoseconds as a rate per second
+    private static String rate(long n, long nanos) {
+        return String.format("%.1f", n / Math.max(1e-9, nanos / 1e9));
+    }
+
+    // Formats a period in nanoseconds in seconds
+    private static String seconds(long nanos) {
+        return String.format("%.1f", nanos / 1e9);
+    }
+
+    // Returns the value of an option, or the default if it isn't given
+    private String option(String name, String def) {
+        return options.getOrDefault(name, def);
+    }
+
+    private int intOption(String name, int def) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : def;
+    }
+
+    private double doubleOption(String name, double def) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : def;
+    }
+
+    private boolean booleanOption(String name) {
+        return Boolean.parseBoolean(options.getOrDefault(name, "false"));
+    }
+}
@@ -0,0 +1,41 @@
+/*
+    Generates JSON documents of a given size for the benchmarks, shaped like typical crawler output:
+    an object of records, each with a few scalar fields, a nested object and an array.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class Documents {
+    // Returns a JSON object of roughly the given size in bytes
+    public static String generate(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes + 256);
+        sb.append('{');
+        for (int i = 0; sb.length() < bytes; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("\"record").append(i).append("\":{")
+              .append("\"id\":").append(i).append(',')
+              .append("\"name\":\"Record number ").append(i).append("\",")
+              .append("\"score\":").append(i * 0.25).append(',')
+              .append("\"active\":").append(i % 2 == 0).append(',')
+              .append("\"location\":{\"lat\":51.5").append(i % 10).append(",\"lng\":-0.1").append(i % 10).append("},")
+              .append("\"tags\":[\"a\",\"b\",\"c\"]}");
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    // Writes a JSON object of roughly the given size in bytes to a new temporary file
+    static File write(int bytes) throws IOException {
+        File f = Files.createTempFile("benchmark", ".json").toFile();
+        f.deleteOnExit();
+        Files.write(f.toPath(), generate(bytes).getBytes(StandardCharsets.UTF_8));
+        return f;
+    }
+}
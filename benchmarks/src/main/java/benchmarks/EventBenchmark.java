@@ -0,0 +1,117 @@
+/*
+    Benchmarks the work the listener does for every file creation event, before the file reaches the upload pipeline:
+    matching the file name against *.json (constructing the PathMatcher per event, as runListener does, against reusing one),
+    checking whether the file is ready (the original rename-to-self lock check, against the stat and tryLock used by the ReadinessTracker),
+    and logging the event's lines to a FileHandler as runListener does, synchronously and through an AsyncLogHandler.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import lib.jsonlistener.AsyncLogHandler;
+import java.util.logging.FileHandler;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBenchmark {
+    // The name of a newly created file, as the context of its event
+    private final Path filename = Paths.get("crawl-2019-05-01-000123.json");
+    // A PathMatcher constructed once
+    private final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*.json");
+    // A small file to check the readiness of
+    private File file;
+    // A logger writing to a FileHandler in a temporary directory, as the listener's does
+    private Path logDirectory;
+    private FileHandler handler;
+    private Logger log;
+    // A logger writing to another FileHandler through an AsyncLogHandler, as the listener's does when logging asynchronously
+    private FileHandler asyncTarget;
+    private AsyncLogHandler asyncHandler;
+    private Logger asyncLog;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Documents.write(1024);
+        logDirectory = Files.createTempDirectory("benchmark-logs");
+        handler = new FileHandler(logDirectory.resolve("json-listener-log.log").toString());
+        handler.setFormatter(new SimpleFormatter());
+        log = Logger.getLogger("EventBenchmarkLog");
+        log.setUseParentHandlers(false);
+        log.addHandler(handler);
+        asyncTarget = new FileHandler(logDirectory.resolve("json-listener-async-log.log").toString());
+        asyncTarget.setFormatter(new SimpleFormatter());
+        asyncHandler = new AsyncLogHandler(asyncTarget, 8192, AsyncLogHandler.OverflowPolicy.DROP_NEWEST, 10000);
+        asyncLog = Logger.getLogger("EventBenchmarkAsyncLog");
+        asyncLog.setUseParentHandlers(false);
+        asyncLog.addHandler(asyncHandler);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        log.removeHandler(handler);
+        handler.close();
+        asyncLog.removeHandler(asyncHandler);
+        asyncHandler.close();
+        asyncTarget.close();
+        file.delete();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(logDirectory)) {
+            for (Path p : stream) Files.delete(p);
+        }
+        Files.delete(logDirectory);
+    }
+
+    @Benchmark
+    public boolean matchWithNewPathMatcher() {
+        return FileSystems.getDefault().getPathMatcher("glob:*.json").matches(filename);
+    }
+
+    @Benchmark
+    public boolean matchWithCachedPathMatcher() {
+        return matcher.matches(filename);
+    }
+
+    @Benchmark
+    public boolean lockCheckByRename() {
+        return !file.renameTo(new File(file.getAbsolutePath()));
+    }
+
+    @Benchmark
+    public boolean readyCheckByStatAndTryLock() throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+            if (lock == null) return false;
+            lock.release();
+        }
+        return attrs.size() > 0;
+    }
+
+    @Benchmark
+    public void logEvent() {
+        Path child = logDirectory.resolve(filename);
+        log.info("Found new file: " + child.toString());
+        log.info("New file: " + child.toString() + " resolved to be a JSON file.");
+    }
+
+    @Benchmark
+    public void logEventAsync() {
+        Path child = logDirectory.resolve(filename);
+        asyncLog.log(java.util.logging.Level.INFO, "Found new file: {0}", child);
+        asyncLog.log(java.util.logging.Level.INFO, "New file: {0} resolved to be a JSON file.", child);
+    }
+}
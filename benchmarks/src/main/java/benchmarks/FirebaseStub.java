@@ -0,0 +1,130 @@
+/*
+    An in-process HTTP server standing in for a Google Firebase, so uploads may be benchmarked without a network or a real database.
+    Every request is read in full and answered with 200 OK and a small JSON body, as Firebase answers a successful POST.
+    For load tests, each response may be delayed by a random latency, a fraction of requests may be answered with an error instead,
+    and the body of each request answered successfully may be handed to a listener (e.g. to tell which documents arrived).
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+public class FirebaseStub {
+    // The body of every response, as Firebase answers a POST with the push id it generated
+    private static final byte[] RESPONSE = "{\"name\":\"-StubPushId000000000\"}".getBytes(StandardCharsets.UTF_8);
+
+    // The server, listening on an ephemeral port of the loopback address
+    private final HttpServer server;
+    // Threads handling requests
+    private final ExecutorService executor;
+    // Range of the latency added to each response, in milliseconds
+    private volatile int minLatency = 0;
+    private volatile int maxLatency = 0;
+    // Fraction of requests answered with the error status instead of 200 OK
+    private volatile double errorRate = 0;
+    private volatile int errorStatus = 503;
+    // Notified of the body of each request answered with 200 OK, or null to discard bodies unread
+    private volatile Consumer<byte[]> requestListener;
+    // Number of requests answered successfully, and with an error
+    private final LongAdder served = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    // Starts a stub server, with the given number of threads handling requests
+    public FirebaseStub(int threads) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    // Returns the base url to construct a FirebaseConnection with
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    // Stops the server
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // Reads a request in full, then answers it after the configured latency, with an error if it's chosen to fail
+    private void handle(HttpExchange exchange) throws IOException {
+        Consumer<byte[]> l = requestListener;
+        ByteArrayOutputStream body = l == null ? null : new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                if (body != null) body.write(buffer, 0, n);
+            }
+        }
+        int min = minLatency, max = maxLatency;
+        if (max > 0) {
+            try {
+                Thread.sleep(min + ThreadLocalRandom.current().nextInt(max - min + 1));
+            }
+            catch (InterruptedException e) { // Stopping
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.increment();
+            exchange.sendResponseHeaders(errorStatus, -1);
+            exchange.close();
+            return;
+        }
+        if (body != null) l.accept(body.toByteArray());
+        served.increment();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, RESPONSE.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(RESPONSE);
+        }
+    }
+
+    // Setter for the range of the latency added to each response, in milliseconds
+    public void setLatency(int min, int max) {
+        if (min < 0 || max < min) throw new IllegalArgumentException("Latency range must satisfy 0 <= min <= max.");
+        this.minLatency = min;
+        this.maxLatency = max;
+    }
+
+    // Setter for the fraction of requests answered with the given HTTP status (e.g. 503, or 429 to throttle) instead of 200 OK
+    public void setErrorRate(double rate, int status) {
+        if (rate < 0 || rate > 1) throw new IllegalArgumentException("Error rate must be between 0 and 1.");
+        this.errorRate = rate;
+        this.errorStatus = status;
+    }
+
+    // Setter for the listener notified of the body of each request answered with 200 OK (null discards bodies unread)
+    public void setRequestListener(Consumer<byte[]> x) {
+        this.requestListener = x;
+    }
+
+    // Getter for the number of requests answered with 200 OK
+    public long getServed() {
+        return served.sum();
+    }
+
+    // Getter for the number of requests answered with an error
+    public long getErrors() {
+        return errors.sum();
+    }
+}
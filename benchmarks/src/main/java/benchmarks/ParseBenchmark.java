@@ -0,0 +1,63 @@
+/*
+    Benchmarks reading a JSON file: JsonToMap.parse, which builds the Map uploaded through firebase4j,
+    against JsonToMap.validate, which only streams through the file as streaming uploads do,
+    and against parsing through a JsonTransform keeping only a few fields of each record, across document sizes.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package benchmarks;
+
+import lib.firebasepostjson.lib.JsonToMap;
+import lib.firebasepostjson.lib.JsonTransform;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    // Size of the document, in kilobytes
+    @Param({"1", "64", "1024"})
+    public int kilobytes;
+
+    // The document, written to a temporary file
+    private File file;
+    // Keeps the id and score of each record, renaming the score
+    private JsonTransform transform;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Documents.write(kilobytes * 1024);
+        transform = new JsonTransform();
+        transform.include("*/id");
+        transform.include("*/score");
+        transform.rename("*/score", "s");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public Map<String, Object> parse() throws IOException {
+        return JsonToMap.parse(file);
+    }
+
+    @Benchmark
+    public Map<String, Object> parseTransformed() throws IOException {
+        return JsonToMap.parse(file, transform);
+    }
+
+    @Benchmark
+    public void validate() throws IOException {
+        JsonToMap.validate(file);
+    }
+}
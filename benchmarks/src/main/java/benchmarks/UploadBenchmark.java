@@ -0,0 +1,75 @@
+/*
+    Benchmarks uploading a document through FirebasePostJson to a FirebaseStub on the loopback interface:
+    post, which serializes the parsed Map through firebase4j, against postStream, which sends the file's bytes straight from disk,
+    and bursts of asynchronous uploads through the connection's AsyncFirebaseRest transport.
+    The stub answers at once, so the time measured is the client's own cost per request.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package benchmarks;
+
+import lib.firebasepostjson.FirebasePostJson;
+import lib.firebasepostjson.lib.FirebaseConnection;
+import lib.firebasepostjson.lib.JsonToMap;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import org.openjdk.jmh.annotations.*;
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadBenchmark {
+    // Number of uploads in flight at once within an asynchronous burst
+    private static final int BURST = 32;
+
+    // Size of the document, in kilobytes
+    @Param({"1", "64"})
+    public int kilobytes;
+
+    // The stub standing in for the database, and the connection to it
+    private FirebaseStub stub;
+    private FirebaseConnection connection;
+    // The document, as a file and as parsed
+    private File file;
+    private Map<String, Object> document;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        stub = new FirebaseStub(BURST);
+        connection = new FirebaseConnection(stub.getBaseUrl());
+        file = Documents.write(kilobytes * 1024);
+        document = JsonToMap.parse(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+        stub.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public FirebaseResponse post() throws Throwable {
+        return FirebasePostJson.post(connection, document, "benchmark");
+    }
+
+    @Benchmark
+    public FirebaseResponse postStream() throws Throwable {
+        return FirebasePostJson.postStream(connection, file, "benchmark");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void postStreamAsyncBurst() {
+        CompletableFuture<?>[] requests = new CompletableFuture<?>[BURST];
+        for (int i = 0; i < BURST; i++) requests[i] = FirebasePostJson.postStreamAsync(connection, file, "benchmark");
+        CompletableFuture.allOf(requests).join();
+    }
+}
@@ -9,14 +9,36 @@
 
 package lib.firebasepostjson;
 
+import lib.firebasepostjson.lib.AdaptiveLimiter;
 import lib.firebasepostjson.lib.FirebaseConnection;
+import lib.firebasepostjson.lib.FirebaseRest;
 import lib.firebasepostjson.lib.JsonToMap;
+import lib.firebasepostjson.lib.PushId;
 import net.thegreshams.firebase4j.error.FirebaseException;
 import net.thegreshams.firebase4j.error.JacksonUtilityException;
 import net.thegreshams.firebase4j.model.FirebaseResponse;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 // In FirebaseConnection the Firebase is established, then from such Firebase object one may perform POST requests with it
 public class FirebasePostJson {
@@ -26,12 +48,198 @@ public class FirebasePostJson {
         if (!con.isEstablished()) throw new IllegalStateException("firebase4j has no connection to the Google Firebase!");
         // Utilises JsonToMap parser to obtain a Map<String, Object> Object for the input JSON File object
         Map<String, Object> map = JsonToMap.parse(jsonFile);
+        return post(con, map, path);
+    }
+
+    /* Post to the firebase an already parsed JSON document, at the given path in the database (relative to the base-url the FirebaseConnection was initialised with).
+       Allows callers to parse and upload on separate threads. Return a FirebaseResponse object (part of firebase4j) detailing the result. */
+    public static FirebaseResponse post(FirebaseConnection con, Map<String, Object> map, String path) throws IOException, JacksonUtilityException, FirebaseException {
+        if (!con.isEstablished()) throw new IllegalStateException("firebase4j has no connection to the Google Firebase!");
         // Obtain Firebase connection from FirebaseConnection object, and attempt to post via firebase4j, passing the path to post at and the map representation of the JSON. Return the obtained FirebaseResponse object.
-        return con.get().post(path, map);
+        return limited(con, path, () -> con.get().post(path, map));
+    }
+
+    /* Post several parsed JSON documents to the firebase in a single request, as one multi-location update (PATCH at the base-url).
+       Each document is written beneath a generated push id at its corresponding path in paths, the same layout as post would produce.
+       A multi-location update is atomic, so either every document is written or none are. Return a FirebaseResponse object (part of firebase4j) detailing the result. */
+    public static FirebaseResponse postBatch(FirebaseConnection con, List<String> paths, List<Map<String, Object>> documents) throws IOException, JacksonUtilityException, FirebaseException {
+        if (!con.isEstablished()) throw new IllegalStateException("firebase4j has no connection to the Google Firebase!");
+        Map<String, Object> update = batchUpdate(paths, documents);
+        return limited(con, null, () -> con.get().patch(null, update));
+    }
+
+    /* Apply a multi-location update to the firebase (PATCH at the base-url): each key is a path in the database (relative to the base-url) set to its value,
+       or removed if its value is null (see JsonDiff). A multi-location update is atomic. Return a FirebaseResponse object (part of firebase4j) detailing the result. */
+    public static FirebaseResponse update(FirebaseConnection con, Map<String, Object> update) throws IOException, JacksonUtilityException, FirebaseException {
+        if (!con.isEstablished()) throw new IllegalStateException("firebase4j has no connection to the Google Firebase!");
+        return limited(con, null, () -> con.get().patch(null, update));
+    }
+
+    /* Post to the firebase the given JSON file at the File object, at the given path in the database, without parsing it.
+       The file's bytes are streamed from disk straight into the request body, so memory used doesn't depend on the size of the file.
+       The file should be validated beforehand (see JsonToMap.validate), as it's sent as is. Return a FirebaseResponse object (part of firebase4j) detailing the result. */
+    public static FirebaseResponse postStream(FirebaseConnection con, File jsonFile, String path) throws IOException, FirebaseException {
+        try (FileChannel channel = FileChannel.open(jsonFile.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            return FirebaseRest.send(con, "POST", path, length, out -> transfer(channel, length, out));
+        }
+    }
+
+    /* Post several JSON files to the firebase in a single request, as one multi-location update, without parsing them.
+       The request body is composed on the fly from each file's bytes beneath its path and a generated push id, so memory used doesn't depend on the size of the files.
+       A multi-location update is atomic, so either every file is written or none are. Return a FirebaseResponse object (part of firebase4j) detailing the result. */
+    public static FirebaseResponse postBatchStream(FirebaseConnection con, List<String> paths, List<File> jsonFiles) throws IOException, FirebaseException {
+        List<byte[]> keys = batchKeys(paths, jsonFiles);
+        return FirebaseRest.send(con, "PATCH", null, batchLength(keys, jsonFiles), out -> {
+            out.write('{');
+            for (int i = 0; i < jsonFiles.size(); i++) {
+                if (i > 0) out.write(',');
+                out.write(keys.get(i));
+                try (FileChannel channel = FileChannel.open(jsonFiles.get(i).toPath(), StandardOpenOption.READ)) {
+                    transfer(channel, jsonFiles.get(i).length(), out);
+                }
+            }
+            out.write('}');
+        });
+    }
+
+    /*
+        Asynchronous variants of the above, sent through the connection's AsyncFirebaseRest transport (see FirebaseConnection.getAsync).
+        Each returns once the request is sent, with a future completed with the FirebaseResponse object (part of firebase4j) detailing the result,
+        or exceptionally with a FirebaseException if no response was received. Each blocks whilst the connection's maximum requests are already in flight.
+    */
+
+    // Post to the firebase the given JSON file at the File object, at the given path in the database. The file is parsed on the calling thread.
+    public static CompletableFuture<FirebaseResponse> postAsync(FirebaseConnection con, File jsonFile, String path) throws IOException {
+        return postAsync(con, JsonToMap.parse(jsonFile), path);
+    }
+
+    // Post to the firebase an already parsed JSON document, at the given path in the database
+    public static CompletableFuture<FirebaseResponse> postAsync(FirebaseConnection con, Map<String, Object> map, String path) {
+        return con.getAsync().send("POST", path, JsonToMap.toJson(map).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Post several parsed JSON documents to the firebase in a single request, as one multi-location update, as postBatch
+    public static CompletableFuture<FirebaseResponse> postBatchAsync(FirebaseConnection con, List<String> paths, List<Map<String, Object>> documents) {
+        return updateAsync(con, batchUpdate(paths, documents));
+    }
+
+    // Apply a multi-location update to the firebase, as update
+    public static CompletableFuture<FirebaseResponse> updateAsync(FirebaseConnection con, Map<String, Object> update) {
+        return con.getAsync().send("PATCH", null, JsonToMap.toJson(update).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Post to the firebase the given JSON file at the File object, at the given path in the database, streaming it from disk without parsing it, as postStream
+    public static CompletableFuture<FirebaseResponse> postStreamAsync(FirebaseConnection con, File jsonFile, String path) {
+        return con.getAsync().send("POST", path, jsonFile.length(), () -> open(jsonFile));
+    }
+
+    // Post several JSON files to the firebase in a single request, as one multi-location update, streaming them from disk without parsing them, as postBatchStream
+    public static CompletableFuture<FirebaseResponse> postBatchStreamAsync(FirebaseConnection con, List<String> paths, List<File> jsonFiles) {
+        List<byte[]> keys = batchKeys(paths, jsonFiles);
+        return con.getAsync().send("PATCH", null, batchLength(keys, jsonFiles), () -> {
+            // The body as a sequence of streams, each file opened only once the stream before it is exhausted
+            List<Supplier<InputStream>> parts = new ArrayList<>(3 * jsonFiles.size() + 1);
+            for (int i = 0; i < jsonFiles.size(); i++) {
+                byte[] prefix = i == 0 ? new byte[] { '{' } : new byte[] { ',' };
+                byte[] key = keys.get(i);
+                File f = jsonFiles.get(i);
+                parts.add(() -> new ByteArrayInputStream(prefix));
+                parts.add(() -> new ByteArrayInputStream(key));
+                parts.add(() -> open(f));
+            }
+            parts.add(() -> new ByteArrayInputStream(jsonFiles.isEmpty() ? new byte[] { '{', '}' } : new byte[] { '}' }));
+            Iterator<Supplier<InputStream>> next = parts.iterator();
+            return new SequenceInputStream(new Enumeration<InputStream>() {
+                @Override
+                public boolean hasMoreElements() {
+                    return next.hasNext();
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    return next.next().get();
+                }
+            });
+        });
     }
 
     // Posts a JSON at the root of the firebase4j connection (at the base-url)
     public static FirebaseResponse post(FirebaseConnection con, File jsonFile) throws IOException, JacksonUtilityException, FirebaseException {
         return post(con, jsonFile, null);
     }
+
+    // A request sent through firebase4j
+    private interface Request {
+        FirebaseResponse send() throws IOException, JacksonUtilityException, FirebaseException;
+    }
+
+    /* Sends a request to the given path through firebase4j once the connection's limiter allows, reporting its outcome to the limiter.
+       firebase4j doesn't expose the response's headers, so a Retry-After header is unknown to the limiter and the limiter's own backoff applies. */
+    private static FirebaseResponse limited(FirebaseConnection con, String path, Request request) throws IOException, JacksonUtilityException, FirebaseException {
+        AdaptiveLimiter.Permit permit = con.getLimiter().acquire(path);
+        int code = 0;
+        try {
+            FirebaseResponse response = request.send();
+            code = response.getCode();
+            return response;
+        }
+        finally {
+            permit.release(code, 0);
+        }
+    }
+
+    // Copies exactly length bytes from the channel to the output stream, through a small fixed size buffer
+    private static void transfer(FileChannel channel, long length, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = 0;
+        while (position < length) {
+            long sent = channel.transferTo(position, length - position, target);
+            if (sent <= 0) throw new IOException("File changed size whilst being uploaded.");
+            position += sent;
+        }
+    }
+
+    // Key each document by its path followed by a fresh push id, so a single PATCH writes them all
+    private static Map<String, Object> batchUpdate(List<String> paths, List<Map<String, Object>> documents) {
+        if (paths.size() != documents.size()) throw new IllegalArgumentException("Each document must have exactly one path.");
+        Map<String, Object> update = new LinkedHashMap<>();
+        for (int i = 0; i < documents.size(); i++) {
+            update.put(childPath(paths.get(i), PushId.generate()), documents.get(i));
+        }
+        return update;
+    }
+
+    // Encodes the key preceding each file's bytes within a streamed batch, its path followed by a fresh push id
+    private static List<byte[]> batchKeys(List<String> paths, List<File> jsonFiles) {
+        if (paths.size() != jsonFiles.size()) throw new IllegalArgumentException("Each file must have exactly one path.");
+        List<byte[]> keys = new ArrayList<>(jsonFiles.size());
+        for (int i = 0; i < jsonFiles.size(); i++) {
+            keys.add(JsonToMap.toJson(childPath(paths.get(i), PushId.generate())).concat(":").getBytes(StandardCharsets.UTF_8));
+        }
+        return keys;
+    }
+
+    // Computes the exact length of a streamed batch's body up front, so it may be sent with a fixed length: braces, separating commas, keys and files
+    private static long batchLength(List<byte[]> keys, List<File> jsonFiles) {
+        long length = 2 + Math.max(0, jsonFiles.size() - 1);
+        for (int i = 0; i < jsonFiles.size(); i++) length += keys.get(i).length + jsonFiles.get(i).length();
+        return length;
+    }
+
+    // Opens a file to stream it into an asynchronous request, which may only fail unchecked
+    private static InputStream open(File f) {
+        try {
+            return new FileInputStream(f);
+        }
+        catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Joins a path in the database with a child key, treating a null or empty path as the root
+    private static String childPath(String path, String child) {
+        if (path == null || path.isEmpty()) return child;
+        return path.endsWith("/") ? path + child : path + "/" + child;
+    }
 }
\ No newline at end of file
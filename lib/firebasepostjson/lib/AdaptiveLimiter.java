@@ -0,0 +1,334 @@
+/*
+    Adapts the number of requests a connection sends concurrently to how the database is coping, so uploads run as fast as the database allows
+    without provoking a storm of throttled requests.
+    The concurrency limit is adjusted by AIMD (additive increase, multiplicative decrease): each successful response raises it by 1/limit
+    (roughly one per round of requests), up to the maximum, whilst the limit is being used; a throttled response (HTTP 429 or 503),
+    a request receiving no response (e.g. a FirebaseException) or timing out (HTTP 408), or any other 5xx multiplies it by the backoff ratio,
+    at most once per round, down to the minimum. A throttled response also pauses every request for the time given by its Retry-After header;
+    lacking one, consecutive rounds of throttled responses pause every request for a backoff doubling with each round.
+    Optionally, a response slower than the latency tolerance times the usual latency also counts as a sign of strain (gradient limiting),
+    which suits documents of similar size, as a large document naturally takes longer.
+    Requests to a path in the database may also be capped at a rate by a token bucket (see setPathRate).
+    Each FirebaseConnection holds one, used by FirebasePostJson, FirebaseRest and AsyncFirebaseRest for every request.
+    Adapting is opt-in (see setEnabled): until enabled, requests are neither capped nor paused by the limiter, only by any rate caps.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class AdaptiveLimiter {
+    // Pause after consecutive rounds of throttled responses lacking Retry-After, doubling with each further round up to the maximum, in milliseconds
+    private static final long PAUSE_BASE_DELAY = 1000;
+    private static final long PAUSE_MAX_DELAY = 60 * 1000;
+    // Longest Retry-After honoured, in milliseconds
+    private static final long RETRY_AFTER_MAX = 5 * 60 * 1000;
+    // Number of responses establishing the usual latency before latency is compared against it
+    private static final int LATENCY_WARMUP = 20;
+    // Weight of each response's latency within the usual latency (an exponentially weighted moving average)
+    private static final double LATENCY_WEIGHT = 0.02;
+
+    // Caps requests to a path at a rate, allowing a burst of up to its capacity
+    private static class TokenBucket {
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long refilled;
+
+        private TokenBucket(double rate, int capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilled = System.nanoTime();
+        }
+
+        // Takes a token, returning how long to wait until it's due, in milliseconds (0 if one was available)
+        private long take() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilled) / 1e9 * rate);
+            refilled = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * 1000);
+        }
+    }
+
+    // A request counted by the limiter, whose outcome must be reported by release once it completes
+    public class Permit {
+        // When the request was sent
+        private final long start = System.nanoTime();
+        // Whether the limit was nearly reached when the request was sent, so the limit is what held requests back
+        private final boolean saturated;
+        // Whether the request counts towards the limiter's requests in flight
+        private final boolean counted;
+        // Set once released, so a permit is only released once
+        private boolean released = false;
+
+        private Permit(boolean saturated, boolean counted) {
+            this.saturated = saturated;
+            this.counted = counted;
+        }
+
+        /* Reports the outcome of the request: the HTTP status code of its response, or 0 if no response was received,
+           and the Retry-After header of the response in milliseconds, or 0 if it had none. */
+        public void release(int code, long retryAfter) {
+            synchronized (AdaptiveLimiter.this) {
+                if (released) return;
+                released = true;
+                if (counted) inFlight--;
+                record(this, code, retryAfter);
+                AdaptiveLimiter.this.notifyAll();
+            }
+        }
+    }
+
+    // Whether the limit adapts and caps requests in flight (otherwise no limit applies and nothing pauses requests)
+    private boolean enabled = false;
+    // Bounds of the concurrency limit
+    private int minLimit = 1;
+    private int maxLimit = 64;
+    // Factor the limit is multiplied by on a sign of strain
+    private double backoffRatio = 0.5;
+    // Multiple of the usual latency beyond which a response counts as a sign of strain (0 ignores latency)
+    private double latencyTolerance = 0;
+    // The concurrency limit, beginning at the maximum, so the database isn't held back until it shows strain (guarded by this)
+    private double limit = maxLimit;
+    // Number of requests in flight acquired through acquire (guarded by this)
+    private int inFlight = 0;
+    // When the limit was last decreased, so it's decreased at most once per round of requests (guarded by this)
+    private long lastDecrease = System.nanoTime();
+    // Time until which requests are paused after a throttled response, in milliseconds since the epoch (guarded by this)
+    private long pausedUntil = 0;
+    // Number of consecutive rounds of throttled responses (guarded by this)
+    private int throttles = 0;
+    // The usual latency of a response, in nanoseconds, and the number of responses it's drawn from (guarded by this)
+    private double usualLatency = 0;
+    private long latencySamples = 0;
+    // Rate caps, by path (guarded by this)
+    private final Map<String, TokenBucket> buckets = new LinkedHashMap<>();
+    // Number of throttled responses received
+    private final LongAdder throttled = new LongAdder();
+
+    /* Waits until the request to the given path may be sent: until its path's rate cap has a token, any pause has ended, and (when enabled) fewer requests
+       than the limit are in flight. Returns the permit counting the request, which must be released with the request's outcome. */
+    public Permit acquire(String path) throws InterruptedIOException {
+        try {
+            long wait;
+            synchronized (this) {
+                wait = take(path);
+            }
+            if (wait > 0) Thread.sleep(wait);
+            synchronized (this) {
+                while (true) {
+                    long paused = pausedUntil - System.currentTimeMillis();
+                    if (paused > 0) wait(paused);
+                    else if (enabled && inFlight >= getLimit()) wait();
+                    else break;
+                }
+                inFlight++;
+                return new Permit(2 * inFlight >= limit, true);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting to send a request.");
+        }
+    }
+
+    /* Takes a token from the given path's rate cap without waiting, returning how long the request must wait before being sent, in milliseconds:
+       until its token is due, or any pause ends. For transports counting their own requests in flight against getLimit (see AsyncFirebaseRest). */
+    synchronized long reserve(String path) {
+        return Math.max(take(path), getPauseRemaining());
+    }
+
+    // Begins a permit for a request counted in flight by its transport, given the number in flight including it. As above.
+    synchronized Permit track(int requestsInFlight) {
+        return new Permit(2 * requestsInFlight >= limit, false);
+    }
+
+    // Takes a token from the rate cap of the longest configured path the given path lies within, returning how long until it's due (guarded by this)
+    private long take(String path) {
+        String key = normalise(path);
+        TokenBucket bucket = null;
+        int longest = -1;
+        for (Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+            String prefix = entry.getKey();
+            boolean within = prefix.isEmpty() || key.equals(prefix) || key.startsWith(prefix + "/");
+            if (within && prefix.length() > longest) {
+                bucket = entry.getValue();
+                longest = prefix.length();
+            }
+        }
+        return bucket == null ? 0 : bucket.take();
+    }
+
+    // Adjusts the limit given the outcome of a request (guarded by this)
+    private void record(Permit permit, int code, long retryAfter) {
+        if (!enabled) return;
+        long now = System.nanoTime();
+        long latency = now - permit.start;
+        if (code == 429 || code == 503) {
+            throttled.increment();
+            if (retryAfter > 0) pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + Math.min(retryAfter, RETRY_AFTER_MAX));
+            /* Lacking Retry-After, decreasing the limit is backoff enough for a single round of throttled responses. Should the next round be throttled too
+               (with no success between), pause for a backoff doubling with each further round. Backoff is once per round, not per throttled response. */
+            if (decrease(permit, now)) {
+                if (retryAfter <= 0 && throttles > 0) pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + Math.min(PAUSE_MAX_DELAY, PAUSE_BASE_DELAY << Math.min(throttles - 1, 16)));
+                throttles++;
+            }
+        }
+        else if (code == 0 || code == 408 || code >= 500) decrease(permit, now);
+        else if (code >= 200 && code < 300) {
+            throttles = 0;
+            boolean slow = latencyTolerance > 0 && latencySamples >= LATENCY_WARMUP && latency > latencyTolerance * usualLatency;
+            usualLatency = latencySamples == 0 ? latency : usualLatency + LATENCY_WEIGHT * (latency - usualLatency);
+            latencySamples++;
+            if (slow) decrease(permit, now);
+            // Only raise the limit when it's what held requests back, else it would grow without bound whilst uploads are few
+            else if (permit.saturated) limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        // Any other response (e.g. HTTP 400 for an invalid document) says nothing of how the database is coping
+    }
+
+    /* Decreases the limit, unless it was already decreased since the request was sent (so one round of failures only decreases it once).
+       Return whether the limit was decreased. (Guarded by this.) */
+    private boolean decrease(Permit permit, long now) {
+        if (permit.start - lastDecrease < 0) return false;
+        limit = Math.max(minLimit, limit * backoffRatio);
+        lastDecrease = now;
+        return true;
+    }
+
+    // Removes the slashes surrounding a path in the database, treating null as the root
+    private static String normalise(String path) {
+        if (path == null) return "";
+        int start = 0, end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        return path.substring(start, end);
+    }
+
+    /* Parses the value of a Retry-After header, either a number of seconds or an HTTP date, into milliseconds from now.
+       Return 0 if there's no header or it can't be parsed. */
+    public static long parseRetryAfter(String header) {
+        if (header == null || header.trim().isEmpty()) return 0;
+        String value = header.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        }
+        catch (NumberFormatException e) { // Not a number of seconds, so it should be a date
+            try {
+                return Math.max(0, ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+            }
+            catch (DateTimeParseException ex) {
+                return 0;
+            }
+        }
+    }
+
+    /*
+        Getter and setter methods.
+    */
+
+    // Setter for whether the limit adapts and caps requests in flight. Once disabled the limit returns to the maximum, no longer applies, and any pause ends; rate caps still apply.
+    public synchronized void setEnabled(boolean x) {
+        this.enabled = x;
+        if (!x) {
+            this.limit = maxLimit;
+            this.pausedUntil = 0;
+            notifyAll();
+        }
+    }
+
+    // Setter for the least the limit may fall to
+    public synchronized void setMinLimit(int x) {
+        if (x < 1) throw new IllegalArgumentException("Minimum limit must be at least 1.");
+        if (x > maxLimit) throw new IllegalArgumentException("Minimum limit must not exceed the maximum limit.");
+        this.minLimit = x;
+        this.limit = Math.max(limit, x);
+        notifyAll();
+    }
+
+    // Setter for the most the limit may rise to
+    public synchronized void setMaxLimit(int x) {
+        if (x < minLimit) throw new IllegalArgumentException("Maximum limit must be at least the minimum limit.");
+        this.maxLimit = x;
+        this.limit = Math.min(limit, x);
+        notifyAll();
+    }
+
+    // Setter for the factor the limit is multiplied by on a sign of strain
+    public synchronized void setBackoffRatio(double x) {
+        if (!(x > 0 && x < 1)) throw new IllegalArgumentException("Backoff ratio must be between 0 and 1.");
+        this.backoffRatio = x;
+    }
+
+    // Setter for the multiple of the usual latency beyond which a response counts as a sign of strain (0 ignores latency)
+    public synchronized void setLatencyTolerance(double x) {
+        if (x != 0 && !(x > 1)) throw new IllegalArgumentException("Latency tolerance must be greater than 1, or 0 to ignore latency.");
+        this.latencyTolerance = x;
+    }
+
+    /* Setter for the rate cap of requests to the given path in the database and every path within it, at perSecond requests per second
+       with bursts of up to burst requests (a perSecond of 0 removes the cap). The root ("" or null) caps every request, including multi-location updates.
+       Where caps are nested, a request is capped by the innermost path it lies within. */
+    public synchronized void setPathRate(String path, double perSecond, int burst) {
+        if (perSecond < 0) throw new IllegalArgumentException("Rate must not be negative.");
+        if (burst < 1) throw new IllegalArgumentException("Burst must be at least 1.");
+        if (perSecond == 0) buckets.remove(normalise(path));
+        else buckets.put(normalise(path), new TokenBucket(perSecond, burst));
+    }
+
+    // Getter for the current concurrency limit
+    public synchronized int getLimit() {
+        return Math.max(minLimit, (int) limit);
+    }
+
+    // Getter for whether the limit adapts
+    public synchronized boolean isEnabled() {
+        return this.enabled;
+    }
+
+    // Getter for the least the limit may fall to
+    public synchronized int getMinLimit() {
+        return this.minLimit;
+    }
+
+    // Getter for the most the limit may rise to
+    public synchronized int getMaxLimit() {
+        return this.maxLimit;
+    }
+
+    // Getter for the factor the limit is multiplied by on a sign of strain
+    public synchronized double getBackoffRatio() {
+        return this.backoffRatio;
+    }
+
+    // Getter for the latency tolerance
+    public synchronized double getLatencyTolerance() {
+        return this.latencyTolerance;
+    }
+
+    // Getter for the time remaining until requests are no longer paused, in milliseconds (0 if they aren't)
+    public synchronized long getPauseRemaining() {
+        return Math.max(0, pausedUntil - System.currentTimeMillis());
+    }
+
+    // Getter for the usual latency of a response, in milliseconds
+    public synchronized double getUsualLatency() {
+        return this.usualLatency / 1e6;
+    }
+
+    // Getter for the number of throttled responses (HTTP 429 or 503) received
+    public long getThrottled() {
+        return this.throttled.sum();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+    Asynchronous client for the Firebase Realtime Database REST API, built on java.net.http.HttpClient.
+    Requests don't hold a thread whilst awaiting their response: the client keeps a pool of keep-alive connections to the database
+    (multiplexing requests over a single HTTP/2 connection where the server supports it), and completes each request's
+    CompletableFuture from a small fixed pool of threads, so tens of concurrent uploads run on a handful of threads.
+    The number of requests in flight is capped, at maxInFlight, or the connection's AdaptiveLimiter's limit if that's enabled and lower;
+    once reached, sending a request blocks until one completes, applying backpressure to the caller.
+    Each request also waits (without holding a thread) for its path's rate cap and any pause after a throttled response, and its outcome adapts the limit.
+    Requests sent from the callbacks of a future (which run on the client's threads) never block: beyond the cap they're deferred, and sent as requests complete,
+    so a callback can't wait on the threads which would free it.
+    Obtained from a FirebaseConnection via getAsync, and used by the async methods of FirebasePostJson.
+    Reference: https://firebase.google.com/docs/reference/rest/database
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class AsyncFirebaseRest implements Closeable {
+    // Time to wait for a connection, and for a response
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+    // The client whose requests the current thread completes, if any
+    private static final ThreadLocal<AsyncFirebaseRest> COMPLETING = new ThreadLocal<>();
+
+    // The connection whose database requests are sent to
+    private final FirebaseConnection con;
+    // Threads completing requests, on which the callbacks of the returned futures run
+    private final ExecutorService executor;
+    // The client, holding the pool of connections
+    private final HttpClient client;
+    // Guards the count of requests in flight
+    private final Object permits = new Object();
+    // Number of requests in flight
+    private int inFlight = 0;
+    // Requests sent from the client's own threads beyond the cap, sent in order as requests complete
+    private final ArrayDeque<Runnable> deferred = new ArrayDeque<>();
+    // Maximum number of requests in flight
+    private volatile int maxInFlight;
+    // Adapts the number of requests in flight to how the database is coping, and caps the rate of requests to each path
+    private final AdaptiveLimiter limiter;
+
+    // Constructs a client sending requests to the connection's database, with at most maxInFlight requests in flight, completed on the given number of threads
+    public AsyncFirebaseRest(FirebaseConnection con, int maxInFlight, int threads) {
+        if (con == null) throw new IllegalArgumentException("Provided FirebaseConnection is null.");
+        if (maxInFlight < 1) throw new IllegalArgumentException("Maximum requests in flight must be at least 1.");
+        if (threads < 1) throw new IllegalArgumentException("Threads must be at least 1.");
+        this.con = con;
+        this.maxInFlight = maxInFlight;
+        this.limiter = con.getLimiter();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(() -> {
+                COMPLETING.set(this);
+                r.run();
+            }, "firebase-http-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(executor)
+                .build();
+    }
+
+    /* Sends a request with the given method to the given path, with a body of exactly length bytes read from the streams supplied.
+       The supplier may be called again should the client need to resend the body. Blocks whilst the cap of requests are already in flight.
+       Return a future completed with a FirebaseResponse object (part of firebase4j) detailing the result, or exceptionally with a FirebaseException if no response was received. */
+    public CompletableFuture<FirebaseResponse> send(String method, String path, long length, Supplier<InputStream> body) {
+        return send(method, path, HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(body), length), false);
+    }
+
+    // Sends a request with the given method to the given path, with the given body. As above.
+    public CompletableFuture<FirebaseResponse> send(String method, String path, byte[] body) {
+        return send(method, path, HttpRequest.BodyPublishers.ofByteArray(body), false);
+    }
+
+    // Sends a request with the given method to the given path, with the given body already compressed with gzip (sent with Content-Encoding: gzip). As above.
+    public CompletableFuture<FirebaseResponse> sendGzipped(String method, String path, byte[] gzippedBody) {
+        return send(method, path, HttpRequest.BodyPublishers.ofByteArray(gzippedBody), true);
+    }
+
+    // Sends a request with the given body publisher, compressed with gzip or not, once a request in flight is available
+    private CompletableFuture<FirebaseResponse> send(String method, String path, HttpRequest.BodyPublisher body, boolean gzipped) {
+        CompletableFuture<FirebaseResponse> result = new CompletableFuture<>();
+        try {
+            if (!con.isEstablished()) throw new IllegalStateException("Connection not established!");
+            HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(FirebaseRest.url(con, path)))
+                    .timeout(REQUEST_TIMEOUT)
+                    .header("Content-Type", "application/json; charset=utf-8")
+                    .method(method, body);
+            if (gzipped) builder.header("Content-Encoding", "gzip");
+            HttpRequest request = builder.build();
+            // Take the path's token now, so requests are sent at its rate even whilst waiting for one in flight
+            long sendAt = System.currentTimeMillis() + limiter.reserve(path);
+            if (acquire(() -> dispatch(method, request, result, sendAt))) dispatch(method, request, result, sendAt);
+        }
+        catch (IOException | RuntimeException e) {
+            result.completeExceptionally(new FirebaseException("Failed to send " + method + " request to " + con.getBaseUrl() + ": " + e.toString(), e));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(new FirebaseException("Interrupted whilst waiting to send " + method + " request to " + con.getBaseUrl() + ".", e));
+        }
+        return result;
+    }
+
+    // Sends a request counted as in flight once its token is due and any pause has ended, waiting on a timer rather than a thread
+    private void dispatch(String method, HttpRequest request, CompletableFuture<FirebaseResponse> result, long sendAt) {
+        long wait = Math.max(sendAt - System.currentTimeMillis(), limiter.getPauseRemaining());
+        if (wait > 0) CompletableFuture.delayedExecutor(wait, TimeUnit.MILLISECONDS, executor).execute(() -> dispatch(method, request, result));
+        else dispatch(method, request, result);
+    }
+
+    // Sends a request counted as in flight, completing the result with its response and reporting its outcome to the limiter
+    private void dispatch(String method, HttpRequest request, CompletableFuture<FirebaseResponse> result) {
+        AdaptiveLimiter.Permit permit = limiter.track(getInFlight());
+        CompletableFuture<HttpResponse<String>> sent;
+        try {
+            sent = client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        }
+        catch (RuntimeException e) { // e.g. the client has been closed
+            sent = new CompletableFuture<>();
+            sent.completeExceptionally(e);
+        }
+        // Complete on the client's own threads, so callbacks never run on (or block) the thread handling the connections
+        sent.whenCompleteAsync((response, e) -> {
+            if (e != null) permit.release(0, 0);
+            else permit.release(response.statusCode(), AdaptiveLimiter.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null)));
+            // Free the request before completing the caller's future, so callbacks sending further requests never wait on themselves
+            release();
+            if (e != null) result.completeExceptionally(new FirebaseException("Failed to send " + method + " request to " + con.getBaseUrl() + ": " + e.toString(), e));
+            else result.complete(FirebaseRest.response(response.statusCode(), response.body()));
+        }, executor);
+    }
+
+    /* Waits until fewer than the cap of requests are in flight, then counts another and returns true.
+       The client's own threads never wait: beyond the cap, the send is deferred until a request completes, and false is returned. */
+    private boolean acquire(Runnable send) throws InterruptedException {
+        synchronized (permits) {
+            if (COMPLETING.get() == this) {
+                if (inFlight >= cap()) {
+                    deferred.add(send);
+                    return false;
+                }
+            }
+            else while (inFlight >= cap()) permits.wait();
+            inFlight++;
+            return true;
+        }
+    }
+
+    // Counts a request as no longer in flight, passing its place to the next deferred request, or else waking a sender waiting for it
+    private void release() {
+        Runnable next = null;
+        synchronized (permits) {
+            if (inFlight <= cap()) next = deferred.poll();
+            if (next == null) {
+                inFlight--;
+                permits.notifyAll();
+            }
+        }
+        if (next != null) next.run();
+    }
+
+    // The cap of requests in flight: the maximum, or the limiter's current limit if it's enabled and lower
+    private int cap() {
+        return limiter.isEnabled() ? Math.min(maxInFlight, limiter.getLimit()) : maxInFlight;
+    }
+
+    // Stops the threads completing requests. Requests still in flight may never complete.
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // Setter for the maximum number of requests in flight, taking effect immediately
+    public void setMaxInFlight(int x) {
+        if (x < 1) throw new IllegalArgumentException("Maximum requests in flight must be at least 1.");
+        synchronized (permits) {
+            this.maxInFlight = x;
+            permits.notifyAll();
+        }
+    }
+
+    // Getter for the maximum number of requests in flight
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    // Getter for the number of requests currently in flight
+    public int getInFlight() {
+        synchronized (permits) {
+            return this.inFlight;
+        }
+    }
+}
@@ -7,7 +7,6 @@
 
 package lib.firebasepostjson.lib;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
@@ -15,13 +14,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Arrays;
 
 public class Auth {
     // Store the connection to the database as global
     private FirebaseApp app;
     // Store the File object to the auth token as global
     private File token = null;
+    // Store the CredentialManager caching the access token, shared by every connection to the database, if a token is used
+    private volatile CredentialManager credentials = null;
 
     // Two constructors to cover the two cases: using and not using an OAuth 2.0 token.
 
@@ -40,6 +40,7 @@ public class Auth {
         // Finalise building the FirebaseOptions attempt to store connection as FirebaseApp object globally (any errors here shall be propogated)
         this.app =  FirebaseApp.initializeApp(setUrlAndBuild(dbUrl, o));
         this.token = tokenFile;
+        this.credentials = CredentialManager.forDatabase(dbUrl, tokenFile);
     }
 
     // Helper method which sets the database url property of the FirebaseOptions builder and then builds it, returning a FirebaseOptions object
@@ -52,14 +53,17 @@ public class Auth {
         return app;
     }
 
-    // Getter for access token, if used.
+    // Getter for access token, if used. The token is cached and refreshed in the background by the CredentialManager shared by every connection to the database.
     public String getAccessToken() throws IOException {
         if (token == null) throw new IllegalStateException("No token used to authenticate!");
-        GoogleCredential googleCredential = GoogleCredential
-            .fromStream(new FileInputStream(token))
-            .createScoped(Arrays.asList("https://www.googleapis.com/auth/firebase.database",
-                    "https://www.googleapis.com/auth/userinfo.email"));
-        googleCredential.refreshToken();
-        return googleCredential.getAccessToken();
-      }
+        CredentialManager manager = credentials;
+        if (manager == null) throw new IllegalStateException("Authentication has been closed!");
+        return manager.getToken();
+    }
+
+    // Releases the shared CredentialManager, if a token is used, which stops refreshing the token once no connection to the database holds it
+    public synchronized void close() {
+        if (credentials != null) credentials.release();
+        credentials = null;
+    }
 }
\ No newline at end of file
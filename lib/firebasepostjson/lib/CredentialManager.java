@@ -0,0 +1,252 @@
+/*
+    Caches the OAuth 2.0 access token used to authenticate with a Google Firebase, refreshing it in the background before it expires.
+    Every connection to the same database with the same token file shares one CredentialManager, and so one token (see forDatabase).
+    A shared manager counts the connections holding it, each of which releases it once closed; once none do, it stops refreshing and is forgotten.
+    The first token is fetched in the background as soon as the manager is constructed, so constructing a connection never waits on the token endpoint;
+    only a request made before that first token arrives (or after it has expired, should every refresh fail) waits for one.
+    Failed refreshes are retried with exponential backoff, whilst the current token remains in use until it expires.
+    Tokens come from a TokenSource, by default one exchanging the token file's credentials with the token endpoint it names.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class CredentialManager {
+    // Scopes requested for the access token
+    private static final List<String> SCOPES = Arrays.asList("https://www.googleapis.com/auth/firebase.database",
+            "https://www.googleapis.com/auth/userinfo.email");
+    // Longest time before a token expires at which it's refreshed, in milliseconds. Shorter lived tokens are refreshed at 80% of their lifetime.
+    private static final long REFRESH_MARGIN = 5 * 60 * 1000;
+    // A token is no longer used this close to its expiry, in milliseconds, allowing for clock skew and the time a request takes. Shorter lived tokens stop at 90% of their lifetime.
+    private static final long EXPIRY_SKEW = 10 * 1000;
+    // Lifetime assumed for a token whose expiry isn't known, in milliseconds
+    private static final long DEFAULT_LIFETIME = 60 * 60 * 1000;
+    // Backoff before retrying a failed refresh, doubling up to the maximum, in milliseconds
+    private static final long RETRY_BASE_DELAY = 1000;
+    private static final long RETRY_MAX_DELAY = 60 * 1000;
+    // Longest a request waits for a token when none is usable, in milliseconds
+    private static final long WAIT_TIMEOUT = 30 * 1000;
+    // Single daemon thread refreshing every manager's token
+    private static final ScheduledThreadPoolExecutor REFRESHER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "firebase-token-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        REFRESHER.setRemoveOnCancelPolicy(true);
+    }
+    // Managers shared between connections, by database url and token file (guarded by itself)
+    private static final Map<String, CredentialManager> SHARED = new HashMap<>();
+
+    // An access token, with the time it expires
+    public static class Token {
+        private final String value;
+        private final long expiresAt;
+        private final long receivedAt = System.currentTimeMillis();
+
+        // Constructs a token with the given value, expiring at the given time in milliseconds since the epoch
+        public Token(String value, long expiresAt) {
+            if (value == null) throw new IllegalArgumentException("Provided token value is null.");
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        // Returns true if the token may still be used at the given time, in milliseconds since the epoch, as it isn't yet within the skew of its expiry
+        private boolean isUsable(long now) {
+            long lifetime = Math.max(0, expiresAt - receivedAt);
+            return now < expiresAt - Math.min(EXPIRY_SKEW, lifetime / 10);
+        }
+
+        // Getter for the token's value
+        public String getValue() {
+            return this.value;
+        }
+
+        // Getter for the time the token expires, in milliseconds since the epoch
+        public long getExpiresAt() {
+            return this.expiresAt;
+        }
+
+        // Getter for the time the token was received, in milliseconds since the epoch
+        public long getReceivedAt() {
+            return this.receivedAt;
+        }
+    }
+
+    // Fetches a fresh access token, e.g. by exchanging credentials with a token endpoint
+    public interface TokenSource {
+        Token fetch() throws IOException;
+    }
+
+    // Fetches the tokens
+    private final TokenSource source;
+    // The current token, or null until the first arrives
+    private volatile Token current = null;
+    // The refresh in progress, or null if none is (guarded by this)
+    private CompletableFuture<Token> refreshing = null;
+    // Number of consecutive failed refreshes (guarded by this)
+    private int failures = 0;
+    // The next scheduled refresh (guarded by this)
+    private ScheduledFuture<?> next = null;
+    // Set once released for good, after which no further refresh is scheduled (guarded by this)
+    private boolean released = false;
+    // Key of the manager within SHARED, or null if it isn't shared
+    private String key = null;
+    // Number of holders of the shared manager yet to release it (guarded by SHARED)
+    private int references = 0;
+
+    // Constructs a manager fetching its tokens from the given source, beginning to fetch the first in the background
+    public CredentialManager(TokenSource source) {
+        if (source == null) throw new IllegalArgumentException("Provided TokenSource is null.");
+        this.source = source;
+        refreshNow();
+    }
+
+    /* Returns the manager shared by every connection to the database at the given url authenticating with the given token file, constructing it if necessary.
+       The file is read immediately (so a missing or malformed file fails here), but no token is fetched on the calling thread.
+       Each call must be matched by a call to release once the manager is no longer needed. */
+    public static CredentialManager forDatabase(String dbUrl, File tokenFile) throws IOException {
+        String base = dbUrl.endsWith("/") ? dbUrl.substring(0, dbUrl.length() - 1) : dbUrl;
+        return shared(base + "\n" + tokenFile.getCanonicalPath(), fromTokenFile(tokenFile));
+    }
+
+    // Returns the manager shared under the given key, constructing it with the given source if there's none, and counts another reference to it
+    static CredentialManager shared(String key, TokenSource source) {
+        synchronized (SHARED) {
+            CredentialManager manager = SHARED.get(key);
+            if (manager == null) {
+                manager = new CredentialManager(source);
+                manager.key = key;
+                SHARED.put(key, manager);
+            }
+            manager.references++;
+            return manager;
+        }
+    }
+
+    /* Releases a reference to the manager, as obtained from forDatabase. Once every reference to a shared manager is released
+       (or at once, for a manager which isn't shared), it stops refreshing its token and a later forDatabase constructs a new manager. */
+    public void release() {
+        if (key != null) {
+            synchronized (SHARED) {
+                if (references == 0) return;
+                if (--references > 0) return;
+                SHARED.remove(key, this);
+            }
+        }
+        synchronized (this) {
+            released = true;
+            if (next != null) next.cancel(false);
+            next = null;
+        }
+    }
+
+    // Constructs a TokenSource exchanging the credentials within the token file (e.g. a service account's key) with the token endpoint it names
+    public static TokenSource fromTokenFile(File tokenFile) throws IOException {
+        GoogleCredential credential;
+        try (InputStream in = new FileInputStream(tokenFile)) {
+            credential = GoogleCredential.fromStream(in).createScoped(SCOPES);
+        }
+        return () -> {
+            synchronized (credential) {
+                if (!credential.refreshToken()) throw new IOException("Token endpoint gave no access token for " + tokenFile.toString() + ".");
+                Long expiresAt = credential.getExpirationTimeMilliseconds();
+                return new Token(credential.getAccessToken(), expiresAt == null ? System.currentTimeMillis() + DEFAULT_LIFETIME : expiresAt);
+            }
+        };
+    }
+
+    /* Returns the current access token. Whilst a usable token is held this never waits, as tokens are refreshed in the background before they expire.
+       Otherwise (before the first token arrives, or once it has expired) waits for a refresh, throwing an IOException if none succeeds in time.
+       A refresh already in progress may have begun too early to give a usable token, in which case the refresh after it is awaited too. */
+    public String getToken() throws IOException {
+        Token token = current;
+        if (token != null && token.isUsable(System.currentTimeMillis())) return token.getValue();
+        try {
+            token = refreshNow().get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (!token.isUsable(System.currentTimeMillis())) token = refreshNow().get(WAIT_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (!token.isUsable(System.currentTimeMillis())) throw new IOException("Token endpoint gave an access token which has already expired.");
+            return token.getValue();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Failed to obtain an access token: " + e.getCause().toString(), e.getCause());
+        }
+        catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for an access token.", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst waiting for an access token.");
+        }
+    }
+
+    // Returns the refresh in progress, beginning one in the background if none is
+    private synchronized CompletableFuture<Token> refreshNow() {
+        if (refreshing == null) {
+            refreshing = new CompletableFuture<>();
+            REFRESHER.execute(this::refresh);
+        }
+        return refreshing;
+    }
+
+    // Fetches a fresh token, then schedules the next refresh before it expires, or a retry with backoff should the fetch fail
+    private void refresh() {
+        Token token = null;
+        Throwable failure = null;
+        try {
+            token = source.fetch();
+        }
+        catch (IOException | RuntimeException e) {
+            failure = e;
+        }
+        CompletableFuture<Token> done;
+        synchronized (this) {
+            done = refreshing;
+            refreshing = null;
+            long delay;
+            if (token != null) {
+                current = token;
+                failures = 0;
+                long lifetime = Math.max(0, token.getExpiresAt() - System.currentTimeMillis());
+                delay = lifetime - Math.min(REFRESH_MARGIN, lifetime / 5);
+            }
+            else {
+                delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << Math.min(failures, 16));
+                failures++;
+            }
+            // Replace any refresh already scheduled, as a refresh may also be begun by a request finding no usable token
+            if (next != null) next.cancel(false);
+            next = released ? null : REFRESHER.schedule(this::refreshNow, delay, TimeUnit.MILLISECONDS);
+        }
+        if (token != null) done.complete(token);
+        else done.completeExceptionally(failure);
+    }
+
+    // Getter for the current token, or null if none has arrived yet
+    public Token getCurrent() {
+        return this.current;
+    }
+
+    // Getter for whether the manager has been released for good, and so no longer refreshes its token
+    public synchronized boolean isReleased() {
+        return this.released;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+    Uploads a large JSON document as many smaller requests in parallel, rather than as a single huge POST.
+    The document is given a push id as a POST would, then split along its keys down to a configurable depth into sub-trees,
+    which are packed into parts of roughly a target size and each written beneath the push id with a multi-location update (PATCH).
+    The parts are sent concurrently through the connection's AsyncFirebaseRest transport, so throughput scales with its connections,
+    and each part is retried on its own should it fail, with optional gzip compression of each part's body.
+    Unlike a POST the document isn't written atomically: a reader may see it partially written until every part succeeds.
+    Should a part run out of retries, whatever was written beneath the push id is deleted (best effort), so a retry of the whole document starts afresh.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+public class FanOutUploader {
+    // The connection whose transport the parts are sent through
+    private final FirebaseConnection con;
+    // Depth of keys the document is split along (1 splits by top-level key)
+    private int depth = 1;
+    // Target size of each part's body before compression, in bytes. A single sub-tree larger than this is sent as a part of its own.
+    private int partBytes = 1024 * 1024;
+    // Number of times a failed part is retried before the document is given up on
+    private int maxRetries = 3;
+    // Backoff before the first retry of a part, doubling with each further retry, in milliseconds
+    private int retryDelay = 500;
+    // Whether each part's body is compressed with gzip
+    private boolean gzip = false;
+
+    // Constructs an uploader sending its parts through the given connection's asynchronous transport
+    public FanOutUploader(FirebaseConnection con) {
+        if (con == null) throw new IllegalArgumentException("Provided FirebaseConnection is null.");
+        this.con = con;
+    }
+
+    /* Post to the firebase a parsed JSON document, at the given path in the database, beneath a new push id as post would.
+       Return a future completed with a FirebaseResponse object (part of firebase4j) naming the push id once every part is written,
+       or exceptionally with a FirebaseException once a part has run out of retries (or was rejected outright). */
+    public CompletableFuture<FirebaseResponse> post(Map<String, Object> document, String path) {
+        String pushId = PushId.generate();
+        String root = path == null || path.isEmpty() ? pushId : (path.endsWith("/") ? path + pushId : path + "/" + pushId);
+        List<byte[]> bodies;
+        try {
+            bodies = parts(document);
+        }
+        catch (UncheckedIOException e) {
+            CompletableFuture<FirebaseResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new FirebaseException("Failed to split document into parts: " + e.getCause().toString(), e.getCause()));
+            return failed;
+        }
+        CompletableFuture<?>[] sent = new CompletableFuture<?>[bodies.size()];
+        for (int i = 0; i < bodies.size(); i++) sent[i] = sendPart(root, bodies.get(i), 0);
+        CompletableFuture<FirebaseResponse> result = new CompletableFuture<>();
+        CompletableFuture.allOf(sent).whenComplete((v, e) -> {
+            if (e == null) {
+                result.complete(FirebaseRest.response(200, JsonToMap.toJson(Collections.singletonMap("name", pushId))));
+                return;
+            }
+            // Remove the parts which were written, so the document isn't left partially written
+            con.getAsync().send("DELETE", root, new byte[0]);
+            result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        });
+        return result;
+    }
+
+    // Sends a part, retrying it with backoff whilst it fails for a transient reason (no response, HTTP 408, 429 or 5xx)
+    private CompletableFuture<FirebaseResponse> sendPart(String root, byte[] body, int attempt) {
+        CompletableFuture<FirebaseResponse> request = gzip ? con.getAsync().sendGzipped("PATCH", root, body) : con.getAsync().send("PATCH", root, body);
+        return request.handle((response, e) -> {
+            if (e == null && response.getSuccess()) return CompletableFuture.completedFuture(response);
+            int code = response == null ? 0 : response.getCode();
+            boolean transientFailure = e != null || code == 408 || code == 429 || code >= 500;
+            if (!transientFailure || attempt >= maxRetries) {
+                CompletableFuture<FirebaseResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e != null ? e : new FirebaseException("Database responded to part of a document with HTTP " + code + "."));
+                return failed;
+            }
+            long delay = (long) retryDelay << Math.min(attempt, 16);
+            // Retry from a timer rather than the transport's thread, so the retry may wait for a request in flight
+            return CompletableFuture.supplyAsync(() -> sendPart(root, body, attempt + 1), CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                    .thenCompose(f -> f);
+        }).thenCompose(f -> f);
+    }
+
+    /* Splits a document along its keys down to depth, packing the sub-trees into parts of roughly partBytes each.
+       Each part is the body of a multi-location update, keyed by each sub-tree's path relative to the document. */
+    private List<byte[]> parts(Map<String, Object> document) {
+        List<byte[]> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        List<String[]> entries = new ArrayList<>();
+        split(document, "", 1, entries);
+        for (String[] entry : entries) {
+            String field = JsonToMap.toJson(entry[0]) + ":" + entry[1];
+            // Close the current part once adding this sub-tree would take it beyond the target size
+            if (part.length() > 0 && part.length() + field.length() + 2 > partBytes) {
+                parts.add(encode(part.append('}')));
+                part.setLength(0);
+            }
+            part.append(part.length() == 0 ? '{' : ',').append(field);
+        }
+        if (part.length() > 0) parts.add(encode(part.append('}')));
+        else parts.add(encode(new StringBuilder("{}")));
+        return parts;
+    }
+
+    // Lists the paths (relative to the document) and JSON of the sub-trees at the given depth. Values shallower than depth which aren't objects are listed as they are.
+    @SuppressWarnings("unchecked")
+    private void split(Map<String, Object> node, String prefix, int level, List<String[]> entries) {
+        for (Map.Entry<String, Object> entry : node.entrySet()) {
+            String key = prefix + entry.getKey();
+            Object value = entry.getValue();
+            if (level < depth && value instanceof Map && !((Map<String, Object>) value).isEmpty()) split((Map<String, Object>) value, key + "/", level + 1, entries);
+            else entries.add(new String[] { key, JsonToMap.toJson(value) });
+        }
+    }
+
+    // Encodes a part's body as UTF-8, compressed with gzip if enabled
+    private byte[] encode(CharSequence body) {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        if (!gzip) return bytes;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(bytes);
+        }
+        catch (IOException e) { // Can't happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /*
+        Getter and setter methods.
+    */
+
+    // Setter for the depth of keys the document is split along
+    public void setDepth(int x) {
+        if (x < 1) throw new IllegalArgumentException("Fan-out depth must be at least 1.");
+        this.depth = x;
+    }
+
+    // Setter for the target size of each part, in bytes
+    public void setPartBytes(int x) {
+        if (x < 1) throw new IllegalArgumentException("Part bytes must be at least 1.");
+        this.partBytes = x;
+    }
+
+    // Setter for the number of retries of each part
+    public void setMaxRetries(int x) {
+        if (x < 0) throw new IllegalArgumentException("Maximum retries must not be negative.");
+        this.maxRetries = x;
+    }
+
+    // Setter for the backoff before the first retry of a part
+    public void setRetryDelay(int x) {
+        if (x <= 0) throw new IllegalArgumentException("Retry delay must be greater than 0 ms.");
+        this.retryDelay = x;
+    }
+
+    // Setter for gzip compression of each part's body
+    public void setGzip(boolean x) {
+        this.gzip = x;
+    }
+
+    // Getter for the depth of keys the document is split along
+    public int getDepth() {
+        return this.depth;
+    }
+
+    // Getter for the target size of each part
+    public int getPartBytes() {
+        return this.partBytes;
+    }
+
+    // Getter for the number of retries of each part
+    public int getMaxRetries() {
+        return this.maxRetries;
+    }
+
+    // Getter for the backoff before the first retry of a part
+    public int getRetryDelay() {
+        return this.retryDelay;
+    }
+
+    // Getter for gzip compression
+    public boolean isGzip() {
+        return this.gzip;
+    }
+}
@@ -13,18 +13,25 @@ package lib.firebasepostjson.lib;
 
 import net.thegreshams.firebase4j.error.FirebaseException;
 import net.thegreshams.firebase4j.service.Firebase;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 
-public class FirebaseConnection {
+public class FirebaseConnection implements Closeable {
     private Firebase connection; // Main Object storing firebase4j connection to Firebase
-    private boolean established = false;
+    private volatile boolean established = false;
     private boolean usingToken = false;
     private String baseUrl = null;
     private File token = null;
+    private CredentialManager credentials = null; // Caches and refreshes the OAuth 2.0 access token generated from the token file, shared by every connection to the database
+    private String connectionToken = null; // The access token the firebase4j connection was constructed with
+    private AsyncFirebaseRest async = null; // Asynchronous transport, constructed on first use
+    private int maxInFlightRequests = 64; // Maximum number of asynchronous requests in flight
+    private int asyncThreads = 2; // Number of threads completing asynchronous requests
+    private final AdaptiveLimiter limiter = new AdaptiveLimiter(); // Adapts the requests sent concurrently to how the database is coping
 
-    /* Two constructors: 
-       one with OAuth 2.0 token, one without. Both require the base url of the database. */
+    /* Three constructors: 
+       one with OAuth 2.0 token, one with the manager of such a token, one without. All require the base url of the database. */
 
     // Establish connection with no OAuth 2.0 token, only with base url
     public FirebaseConnection (String baseUrl) throws FirebaseException {
@@ -35,22 +42,91 @@ public class FirebaseConnection {
 
     // **WARNING**: Currently manfunctional, due to issue within firebase4j (using "auth" instead of "access_token" as parameter for OAuth 2.0 API key)!!
     // Establish connection with base url and OAuth 2.0 token via File object storing its location
+    // The access token is generated in the background, so this doesn't wait on the token endpoint (see CredentialManager)
     public FirebaseConnection(String baseUrl, File tokenFile) throws FirebaseException, IOException {
-        // Authenticate to Firebase via Auth wrapper, and generate access token.
-        Auth auth = new Auth(baseUrl, tokenFile);
-        String privateKey = auth.getAccessToken();
+        // Validate the base url with a connection lacking the token, replaced once the token arrives
+        this.connection = new Firebase(baseUrl);
+        // Obtain the access token's manager, shared with any other connection to this database
+        this.credentials = CredentialManager.forDatabase(baseUrl, tokenFile);
         // Finally construct object
-        this.connection = new Firebase(baseUrl, privateKey);
         this.baseUrl = baseUrl;
         this.token = tokenFile;
         established = true;
         usingToken = true;
     }
 
-    // Getter for the connection
+    // Establish connection with base url, authenticating with the access tokens of the given manager (e.g. one with its own TokenSource), which is released once the connection is closed
+    public FirebaseConnection(String baseUrl, CredentialManager credentials) throws FirebaseException {
+        if (credentials == null) throw new IllegalArgumentException("Provided CredentialManager is null.");
+        this.connection = new Firebase(baseUrl);
+        this.credentials = credentials;
+        this.baseUrl = baseUrl;
+        established = true;
+        usingToken = true;
+    }
+
+    /* Getter for the connection. When using a token, the firebase4j connection is reconstructed whenever the token is refreshed, as it holds its token for good.
+       The token is obtained before locking, so whilst one caller waits on the token endpoint the others aren't held up behind it.
+       Should no token be obtained, an IllegalStateException is thrown whose cause is the IOException from the token endpoint. */
     public Firebase get() throws IllegalStateException {
         if (!established) throw new IllegalStateException("Connection not established!");
-        return this.connection;
+        if (!usingToken) return this.connection;
+        try {
+            credentials.getToken();
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Failed to obtain an access token!", e);
+        }
+        synchronized (this) {
+            // Use the newest token, as another caller may already have swapped in one fresher than the token obtained above
+            String accessToken = credentials.getCurrent().getValue();
+            if (!accessToken.equals(connectionToken)) {
+                try {
+                    this.connection = new Firebase(baseUrl, accessToken);
+                }
+                catch (FirebaseException e) { // The base url was already accepted on construction
+                    throw new IllegalStateException(e);
+                }
+                this.connectionToken = accessToken;
+            }
+            return this.connection;
+        }
+    }
+
+    // Getter for the asynchronous transport, constructing it on first use with the configured maximum requests in flight and threads
+    public synchronized AsyncFirebaseRest getAsync() {
+        if (!established) throw new IllegalStateException("Connection not established!");
+        if (async == null) async = new AsyncFirebaseRest(this, maxInFlightRequests, asyncThreads);
+        return this.async;
+    }
+
+    // Getter for the limiter adapting the requests sent concurrently (by every transport) to how the database is coping
+    public AdaptiveLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    // Setter for the maximum number of asynchronous requests in flight, after which sending blocks until one completes
+    public synchronized void setMaxInFlightRequests(int x) {
+        if (x < 1) throw new IllegalArgumentException("Maximum requests in flight must be at least 1.");
+        this.maxInFlightRequests = x;
+        if (async != null) async.setMaxInFlight(x);
+    }
+
+    // Setter for the number of threads completing asynchronous requests, which must be set before the transport is first used
+    public synchronized void setAsyncThreads(int x) {
+        if (x < 1) throw new IllegalArgumentException("Async threads must be at least 1.");
+        if (async != null) throw new IllegalStateException("Asynchronous transport already in use!");
+        this.asyncThreads = x;
+    }
+
+    // Getter for the maximum number of asynchronous requests in flight
+    public synchronized int getMaxInFlightRequests() {
+        return this.maxInFlightRequests;
+    }
+
+    // Getter for the number of threads completing asynchronous requests
+    public synchronized int getAsyncThreads() {
+        return this.asyncThreads;
     }
 
     // Getter for the base URL string in which the connection was established with
@@ -59,15 +135,38 @@ public class FirebaseConnection {
         return this.baseUrl;
     }
 
-    // Getter for the OAuth 2.0 token File Object in which the connection may have been established with
+    // Getter for the OAuth 2.0 token File Object in which the connection may have been established with (null if established with a CredentialManager)
     public File getToken () {
         if (!established) throw new IllegalStateException("Connection not established!");
         if (!usingToken) throw new IllegalStateException("Connection was established without an OAuth 2.0 token!");
         return this.token;
     }
 
+    // Getter for the OAuth 2.0 access token, or null if the connection was established without a token. Only waits if no unexpired token has been generated yet.
+    public String getAccessToken() throws IOException {
+        if (!established) throw new IllegalStateException("Connection not established!");
+        return usingToken ? credentials.getToken() : null;
+    }
+
+    // Getter for the manager of the OAuth 2.0 access token, or null if the connection was established without a token
+    public CredentialManager getCredentials() {
+        if (!established) throw new IllegalStateException("Connection not established!");
+        return this.credentials;
+    }
+
     // Getter for established boolean
     public boolean isEstablished() {
         return this.established;
     }
+
+    /* Closes the connection, stopping the asynchronous transport's threads and releasing the access token's manager,
+       which stops refreshing the token once no other connection shares it. */
+    @Override
+    public synchronized void close() {
+        if (!established) return;
+        established = false;
+        if (async != null) async.close();
+        async = null;
+        if (credentials != null) credentials.release();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+/*
+    Minimal client for the Firebase Realtime Database REST API, used where firebase4j would require the whole document as a Map.
+    Request bodies are streamed to the connection with a fixed length, so a request never holds its body in memory.
+    Authenticates with the connection's OAuth 2.0 access token as the "access_token" parameter.
+    Each request waits for the connection's AdaptiveLimiter, and its outcome adapts the limiter's limit.
+    Reference: https://firebase.google.com/docs/reference/rest/database
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import com.google.gson.JsonParseException;
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class FirebaseRest {
+    // Milliseconds to wait for a connection, and for a response
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+
+    // Writes a request body to the connection's output stream
+    public interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // Builds the REST url for the given path within the database (relative to the base-url the FirebaseConnection was initialised with)
+    public static String url(FirebaseConnection con, String path) throws IOException {
+        String base = con.getBaseUrl();
+        if (base.endsWith("/")) base = base.substring(0, base.length() - 1);
+        StringBuilder url = new StringBuilder(base).append('/');
+        if (path != null) {
+            // Trim slashes from either end of the path, the url already has the separators it needs
+            int start = 0, end = path.length();
+            while (start < end && path.charAt(start) == '/') start++;
+            while (end > start && path.charAt(end - 1) == '/') end--;
+            url.append(path, start, end);
+        }
+        url.append(".json");
+        String accessToken = con.getAccessToken();
+        if (accessToken != null) url.append("?access_token=").append(URLEncoder.encode(accessToken, "UTF-8"));
+        return url.toString();
+    }
+
+    /* Sends a request with the given method to the given path, streaming exactly length bytes from body.
+       PATCH is sent as a POST with the X-HTTP-Method-Override header, as HttpURLConnection doesn't support it.
+       Waits until the connection's limiter allows the request to be sent. Return a FirebaseResponse object (part of firebase4j) detailing the result, or throw a FirebaseException if no response was received. */
+    public static FirebaseResponse send(FirebaseConnection con, String method, String path, long length, Body body) throws FirebaseException {
+        if (!con.isEstablished()) throw new IllegalStateException("Connection not established!");
+        AdaptiveLimiter.Permit permit;
+        try {
+            permit = con.getLimiter().acquire(path);
+        }
+        catch (InterruptedIOException e) {
+            throw new FirebaseException("Interrupted whilst waiting to send " + method + " request to " + con.getBaseUrl() + ".", e);
+        }
+        int code = 0;
+        long retryAfter = 0;
+        try {
+            HttpURLConnection http = (HttpURLConnection) new URL(url(con, path)).openConnection();
+            http.setConnectTimeout(CONNECT_TIMEOUT);
+            http.setReadTimeout(READ_TIMEOUT);
+            if ("PATCH".equals(method)) {
+                http.setRequestMethod("POST");
+                http.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+            }
+            else http.setRequestMethod(method);
+            http.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            http.setDoOutput(true);
+            // A fixed length stops HttpURLConnection from buffering the whole body before sending it
+            http.setFixedLengthStreamingMode(length);
+            try (OutputStream out = http.getOutputStream()) {
+                body.writeTo(out);
+            }
+            FirebaseResponse response = readResponse(http);
+            code = response.getCode();
+            retryAfter = AdaptiveLimiter.parseRetryAfter(http.getHeaderField("Retry-After"));
+            return response;
+        }
+        catch (IOException e) {
+            throw new FirebaseException("Failed to send " + method + " request to " + con.getBaseUrl() + ": " + e.toString(), e);
+        }
+        finally {
+            permit.release(code, retryAfter);
+        }
+    }
+
+    // Reads the status and body of a response into a FirebaseResponse object. The body is read to its end, so the connection may be kept alive for the next request.
+    private static FirebaseResponse readResponse(HttpURLConnection http) throws IOException {
+        int code = http.getResponseCode();
+        boolean success = code >= 200 && code < 300;
+        String raw;
+        try (InputStream in = success ? http.getInputStream() : http.getErrorStream()) {
+            raw = in == null ? "" : readFully(in);
+        }
+        return response(code, raw);
+    }
+
+    // Builds a FirebaseResponse object from the status and raw body of a response, parsing the body if it's a JSON object
+    static FirebaseResponse response(int code, String raw) {
+        boolean success = code >= 200 && code < 300;
+        Map<String, Object> body = null;
+        try {
+            if (raw.startsWith("{")) body = JsonToMap.parse(raw);
+        }
+        catch (JsonParseException e) { // Body wasn't a JSON object, so only the raw body is available
+            body = null;
+        }
+        return new FirebaseResponse(success, code, body, raw);
+    }
+
+    // Reads an InputStream to its end as a UTF-8 string
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = in.read(chunk)) != -1) buffer.write(chunk, 0, n);
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
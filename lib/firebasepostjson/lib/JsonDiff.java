@@ -0,0 +1,50 @@
+/*
+    Computes the key-level difference between two versions of a JSON document, as parsed by JsonToMap,
+    in the form of a Firebase multi-location update: each changed location's path mapped to its new value, or to null where it was removed.
+    Applying the update (a PATCH) to the previous version yields the current version, whilst sending only the changed subtrees.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+public class JsonDiff {
+    /* Returns the update turning the previous version of the document stored at the given path in the database into the current version,
+       keyed by path (relative to the base-url). Objects present in both versions are compared key by key; any other value (e.g. an array) is replaced whole.
+       Returns an empty update if the versions are identical. */
+    public static Map<String, Object> diff(Map<String, Object> previous, Map<String, Object> current, String path) {
+        Map<String, Object> update = new LinkedHashMap<>();
+        diff(previous, current, path == null ? "" : path, update);
+        return update;
+    }
+
+    // Adds the changes between two versions of the object at the given path to the update
+    @SuppressWarnings("unchecked")
+    private static void diff(Map<String, Object> previous, Map<String, Object> current, String path, Map<String, Object> update) {
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+            String child = childPath(path, entry.getKey());
+            Object before = previous.get(entry.getKey());
+            Object after = entry.getValue();
+            if (Objects.equals(before, after)) continue;
+            // An object changed in place is descended into, so only its changed keys are sent
+            if (before instanceof Map && after instanceof Map && !((Map<String, Object>) after).isEmpty()) {
+                diff((Map<String, Object>) before, (Map<String, Object>) after, child, update);
+            }
+            else update.put(child, after);
+        }
+        // Keys no longer present are removed by setting them to null
+        for (String key : previous.keySet()) {
+            if (!current.containsKey(key)) update.put(childPath(path, key), null);
+        }
+    }
+
+    // Joins a path in the database with a child key, treating an empty path as the root
+    private static String childPath(String path, String child) {
+        if (path.isEmpty()) return child;
+        return path.endsWith("/") ? path + child : path + "/" + child;
+    }
+}
@@ -1,6 +1,7 @@
 /*
     A lightweight, simple, JSON parser utilising Google's GSON library.
-    Converts a JSON file into a Map<String, Object>: a recursive structure.
+    Converts a JSON file into a Map<String, Object>: a recursive structure, optionally reshaped by a JsonTransform as it's read.
+    May also validate a JSON file by streaming through it, without materialising it.
     Reference: https://github.com/google/gson
 
     Author: Omar Tanner, 2019 -- open source.
@@ -10,18 +11,59 @@ package lib.firebasepostjson.lib;
 
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 public class JsonToMap {
+    // Gson instances are thread-safe, so a single instance is shared by every parse.
+    private static final Gson GSON = new Gson();
+    // Store in a Google object the type of the output of fromJson, computed once.
+    private static final Type MAP_TYPE = new TypeToken<Map<String, Object>>(){}.getType();
+
     // Takes the File object to the JSON file, and then converts and deserializes into a Map<String, Object> object.
     public static Map<String, Object> parse(File jsonFile) throws IOException {
-        // Construct a BuffedReader for the input JSON File object.
-        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(jsonFile)));
-        // Store in a Google object the type of the output of the upcoming fromJson.
-        Type mapType = new TypeToken<Map<String, Object>>(){}.getType();
-        // Construct Map<String, Object> from the input json via fromJson and the above type, from a Gson instance.
-        return new Gson().fromJson(r, mapType);
+        // Construct a BuffedReader for the input JSON File object, closing it once parsed.
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(jsonFile), StandardCharsets.UTF_8))) {
+            // Construct Map<String, Object> from the input json via fromJson and the above type.
+            return GSON.fromJson(r, MAP_TYPE);
+        }
+    }
+
+    /* As above, reshaping the document by the given JsonTransform as it's streamed through, so the locations it drops are never built.
+       Without a transform (or one without rules), the file is parsed as is. */
+    public static Map<String, Object> parse(File jsonFile, JsonTransform transform) throws IOException {
+        if (transform == null || transform.isEmpty()) return parse(jsonFile);
+        try (JsonReader r = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(jsonFile), StandardCharsets.UTF_8)))) {
+            Map<String, Object> document = transform.read(r);
+            if (r.peek() != JsonToken.END_DOCUMENT) throw new JsonSyntaxException("Unexpected content after JSON object in " + jsonFile);
+            return document;
+        }
+    }
+
+    // Takes a JSON string, and then converts and deserializes into a Map<String, Object> object.
+    public static Map<String, Object> parse(String json) {
+        return GSON.fromJson(json, MAP_TYPE);
+    }
+
+    // Serializes a value (e.g. a String, Map or List) into its JSON representation.
+    public static String toJson(Object value) {
+        return GSON.toJson(value);
+    }
+
+    /* Checks that the File object holds a single JSON object, streaming through it token by token, so memory used doesn't depend on the size of the file.
+       Throws a JsonSyntaxException if the file is not a valid JSON object. */
+    public static void validate(File jsonFile) throws IOException {
+        try (JsonReader r = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(jsonFile), StandardCharsets.UTF_8)))) {
+            // The document must be a single JSON object, as it's stored as a child in the database
+            if (r.peek() != JsonToken.BEGIN_OBJECT) throw new JsonSyntaxException("Expected a JSON object but was " + r.peek() + " in " + jsonFile);
+            // Skipping the value walks every nested token, checking the syntax without building anything
+            r.skipValue();
+            if (r.peek() != JsonToken.END_DOCUMENT) throw new JsonSyntaxException("Unexpected content after JSON object in " + jsonFile);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,259 @@
+/*
+    A set of rules reshaping a JSON document whilst it's parsed, so that only the data wanted is ever built and uploaded.
+    Rules address locations by path, with keys separated by '/' as in the database (e.g. "sensor/readings"), where a key of '*' matches any key or array index:
+     - include: only the included locations (and what lies beneath them) are kept, if any are included.
+     - exclude: the excluded locations are dropped, even if they lie beneath an included location.
+     - rename: the key of a location is replaced by another.
+     - filter: a location is kept only if its value passes a test.
+    The rules are compiled into a tree whenever one is added, so parsing a document costs a single lookup per key,
+    and a subtree which is dropped is skipped over by the JsonReader without being built.
+    The rules also have a fingerprint, which changes whenever one is added, so content hashes of transformed documents can tell the rules apart.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class JsonTransform {
+    // Path segment matching any key or array index
+    private static final String WILDCARD = "*";
+    // Marks a value which was dropped, as null is a value of its own
+    private static final Object DROPPED = new Object();
+
+    // The rules of a location within the document, and of the locations beneath it
+    private static final class Node {
+        // Rules of the children with a specific key, and of every child
+        final Map<String, Node> children = new HashMap<>();
+        Node wildcard;
+        // Whether the location is included, or excluded
+        boolean include;
+        boolean exclude;
+        // Whether a location beneath this one is included, so this one must be descended into even when it isn't included itself
+        boolean includeBeneath;
+        // Key the location is renamed to, or null to keep its key
+        String rename;
+        // Test the location's value must pass to be kept, or null to keep any value
+        Predicate<Object> filter;
+
+        // Returns the rules of the child with the given key, or null if it has none
+        Node child(String key) {
+            Node n = children.get(key);
+            return n != null ? n : wildcard;
+        }
+    }
+
+    // A single rule as added: the path it applies to, what it does to the node at that path, and a description of it for the fingerprint
+    private static final class Rule {
+        final String[] path;
+        final Consumer<Node> apply;
+        final String description;
+
+        Rule(String[] path, Consumer<Node> apply, String description) {
+            this.path = path;
+            this.apply = apply;
+            this.description = description;
+        }
+    }
+
+    // The rules as added, each a path with its rule applied by the compiler
+    private final List<Rule> rules = new ArrayList<>();
+    // The compiled rules, replaced whenever a rule is added (null if there are no rules)
+    private volatile Node root;
+    // Fingerprint of the rules, replaced whenever a rule is added ("" if there are no rules)
+    private volatile String fingerprint = "";
+
+    // Keeps only the given location (and what lies beneath it), along with any other included locations
+    public synchronized void include(String path) {
+        add(path, n -> n.include = true, "include");
+    }
+
+    // Drops the given location, and what lies beneath it
+    public synchronized void exclude(String path) {
+        add(path, n -> n.exclude = true, "exclude");
+    }
+
+    // Renames the key of the given location
+    public synchronized void rename(String path, String key) {
+        if (key == null || key.isEmpty() || key.indexOf('/') >= 0) throw new IllegalArgumentException("Renamed key must be a non-empty key without '/'.");
+        add(path, n -> n.rename = key, "rename\t" + key);
+    }
+
+    /* Keeps the given location only if its value (a String, Double, Boolean, null, List or Map, as JsonToMap parses) passes the test.
+       A test can't be compared with another, so the filter's part of the fingerprint is the name given to it, which must change whenever its test does. */
+    public synchronized void filter(String path, String name, Predicate<Object> keep) {
+        if (name == null) throw new IllegalArgumentException("Provided name is null.");
+        if (keep == null) throw new IllegalArgumentException("Provided Predicate is null.");
+        add(path, n -> n.filter = n.filter == null ? keep : n.filter.and(keep), "filter\t" + name);
+    }
+
+    /* As filter(path, name, keep), with a name unique to this filter which differs on every run.
+       Content hashes of documents transformed by it therefore never match those of an earlier run, defeating a persistent dedup cache. */
+    public synchronized void filter(String path, Predicate<Object> keep) {
+        filter(path, "unnamed\t" + UUID.randomUUID(), keep);
+    }
+
+    // Returns true if there are no rules, so documents are parsed unchanged
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /* Returns a fingerprint of the rules: the same rules, added in the same order, give the same fingerprint ("" if there are no rules).
+       Used within content hashes, so a document uploaded under one set of rules isn't taken to be identical once the rules change. */
+    public String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    // Adds a rule, then recompiles the rules and their fingerprint
+    private void add(String path, Consumer<Node> apply, String description) {
+        if (path == null) throw new IllegalArgumentException("Provided path is null.");
+        String trimmed = path.replaceAll("^/+|/+$", "");
+        if (trimmed.isEmpty()) throw new IllegalArgumentException("A rule's path must name a location within the document.");
+        String[] keys = trimmed.split("/+");
+        rules.add(new Rule(keys, apply, String.join("/", keys) + "\t" + description));
+        root = compile(rules);
+        StringBuilder print = new StringBuilder();
+        for (Rule rule : rules) print.append(rule.description).append('\n');
+        fingerprint = print.toString();
+    }
+
+    // Compiles the rules into a tree of nodes, merging the rules of each wildcard into its siblings so every key is looked up once
+    private static Node compile(List<Rule> rules) {
+        Node top = new Node();
+        for (Rule rule : rules) {
+            Node n = top;
+            for (String key : rule.path) {
+                if (key.equals(WILDCARD)) {
+                    if (n.wildcard == null) n.wildcard = new Node();
+                    n = n.wildcard;
+                }
+                else n = n.children.computeIfAbsent(key, k -> new Node());
+            }
+            rule.apply.accept(n);
+        }
+        normalise(top);
+        return top;
+    }
+
+    // Merges each node's wildcard rules into its specific children, and marks the nodes with an included location beneath them
+    private static boolean normalise(Node n) {
+        if (n.wildcard != null) {
+            for (Map.Entry<String, Node> child : n.children.entrySet()) child.setValue(merge(child.getValue(), n.wildcard));
+        }
+        boolean beneath = false;
+        for (Node child : n.children.values()) beneath |= normalise(child);
+        if (n.wildcard != null) beneath |= normalise(n.wildcard);
+        n.includeBeneath = beneath;
+        return n.include || beneath;
+    }
+
+    // Returns a new node holding the rules of both nodes, those of the first taking precedence where only one may apply (a rename)
+    private static Node merge(Node a, Node b) {
+        if (a == null) return b == null ? null : merge(b, new Node());
+        if (b == null) b = new Node();
+        Node n = new Node();
+        n.include = a.include || b.include;
+        n.exclude = a.exclude || b.exclude;
+        n.rename = a.rename != null ? a.rename : b.rename;
+        n.filter = a.filter == null ? b.filter : b.filter == null ? a.filter : a.filter.and(b.filter);
+        for (Map.Entry<String, Node> child : a.children.entrySet()) n.children.put(child.getKey(), merge(child.getValue(), b.children.get(child.getKey())));
+        for (Map.Entry<String, Node> child : b.children.entrySet()) n.children.putIfAbsent(child.getKey(), merge(child.getValue(), null));
+        if (a.wildcard != null || b.wildcard != null) n.wildcard = merge(a.wildcard, b.wildcard);
+        return n;
+    }
+
+    /* Reads the JSON object the JsonReader is positioned at, applying the rules, into its Map<String, Object> representation
+       (numbers as Doubles, as JsonToMap parses them). Throws a JsonSyntaxException if the value isn't an object. */
+    public Map<String, Object> read(JsonReader r) throws IOException {
+        if (r.peek() != JsonToken.BEGIN_OBJECT) throw new JsonSyntaxException("Expected a JSON object but was " + r.peek() + " at " + r.getPath());
+        Node top = root;
+        // With no included location, everything not excluded is kept
+        return readObject(r, top, top == null || !top.includeBeneath);
+    }
+
+    // Reads an object whose location has the given rules, keeping its children only if kept (or included themselves)
+    private static Map<String, Object> readObject(JsonReader r, Node n, boolean kept) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        r.beginObject();
+        while (r.hasNext()) {
+            String key = r.nextName();
+            Node child = n == null ? null : n.child(key);
+            Object value = readChild(r, child, kept);
+            if (value == DROPPED) continue;
+            map.put(child != null && child.rename != null ? child.rename : key, value);
+        }
+        r.endObject();
+        return map;
+    }
+
+    // Reads an array whose location has the given rules, its elements matched by their index
+    private static List<Object> readArray(JsonReader r, Node n, boolean kept) throws IOException {
+        List<Object> list = new ArrayList<>();
+        r.beginArray();
+        for (int i = 0; r.hasNext(); i++) {
+            Object value = readChild(r, n == null ? null : n.child(Integer.toString(i)), kept);
+            if (value != DROPPED) list.add(value);
+        }
+        r.endArray();
+        return list;
+    }
+
+    // Reads a value with the given rules within a parent which is kept or not, returning DROPPED (having skipped it) if it isn't kept
+    private static Object readChild(JsonReader r, Node n, boolean kept) throws IOException {
+        if (n == null) {
+            if (kept) return readValue(r, null, true);
+            r.skipValue();
+            return DROPPED;
+        }
+        boolean keep = !n.exclude && (kept || n.include);
+        // An excluded location, or one neither kept nor leading to an included location, is skipped without being built
+        if (n.exclude || (!keep && !n.includeBeneath)) {
+            r.skipValue();
+            return DROPPED;
+        }
+        JsonToken token = r.peek();
+        Object value = readValue(r, n, keep);
+        // A location only descended into to reach included locations is dropped if none were found within it
+        if (!keep && (token != JsonToken.BEGIN_OBJECT && token != JsonToken.BEGIN_ARRAY || isEmpty(value))) return DROPPED;
+        if (n.filter != null && !n.filter.test(value)) return DROPPED;
+        return value;
+    }
+
+    // Reads any value, descending into objects and arrays with the given rules
+    private static Object readValue(JsonReader r, Node n, boolean kept) throws IOException {
+        switch (r.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(r, n, kept);
+            case BEGIN_ARRAY:
+                return readArray(r, n, kept);
+            case STRING:
+                return r.nextString();
+            case NUMBER:
+                return r.nextDouble();
+            case BOOLEAN:
+                return r.nextBoolean();
+            case NULL:
+                r.nextNull();
+                return null;
+            default:
+                throw new JsonSyntaxException("Unexpected " + r.peek() + " at " + r.getPath());
+        }
+    }
+
+    // Returns true if a value read is an empty object or array
+    private static boolean isEmpty(Object value) {
+        return value instanceof Map ? ((Map<?, ?>) value).isEmpty() : value instanceof List && ((List<?>) value).isEmpty();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+    Generates Firebase-style push ids client-side, so several documents may be written in one request
+    while keeping the same chronologically ordered keys a POST would have produced.
+    Reference: https://firebase.googleblog.com/2015/02/the-2120-ways-to-ensure-unique_68.html
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import java.security.SecureRandom;
+
+public class PushId {
+    // Characters used by Firebase push ids, in ascending ASCII order so that ids sort chronologically
+    private static final char[] PUSH_CHARS = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Timestamp of the last generated id, and its random suffix, used to keep ids unique and ordered within the same millisecond
+    private static long lastTime = 0;
+    private static final int[] lastRandom = new int[12];
+
+    // Generates a new 20 character push id: 8 characters of timestamp followed by 12 random characters
+    public static synchronized String generate() {
+        long now = System.currentTimeMillis();
+        boolean duplicateTime = now == lastTime;
+        lastTime = now;
+        char[] id = new char[20];
+        // Encode the timestamp into the first 8 characters, most significant first
+        for (int i = 7; i >= 0; i--) {
+            id[i] = PUSH_CHARS[(int) (now % 64)];
+            now /= 64;
+        }
+        if (!duplicateTime) { // New millisecond, so a fresh random suffix
+            for (int i = 0; i < 12; i++) lastRandom[i] = RANDOM.nextInt(64);
+        }
+        else { // Same millisecond, so increment the previous suffix by one to remain ordered
+            int i = 11;
+            while (i >= 0 && lastRandom[i] == 63) {
+                lastRandom[i] = 0;
+                i--;
+            }
+            if (i >= 0) lastRandom[i]++;
+        }
+        for (int i = 0; i < 12; i++) id[8 + i] = PUSH_CHARS[lastRandom[i]];
+        return new String(id);
+    }
+}
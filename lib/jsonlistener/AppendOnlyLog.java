@@ -0,0 +1,156 @@
+/*
+    A durable, line-oriented, append-only log file.
+    Appends are buffered and made durable in batches by sync(), so many appends share one fsync.
+    The log may be compacted by atomically replacing its contents with only the lines still needed.
+    A line torn by a crash mid-write is cut off when the log is opened, so the next line appended doesn't join onto it.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+class AppendOnlyLog implements Closeable {
+    // Path to the log file
+    private final Path file;
+    // Channel the log is appended through, used to fsync it
+    private FileChannel channel;
+    // Buffered writer over the channel
+    private Writer writer;
+    // Whether lines have been appended since the last sync
+    private boolean dirty = false;
+    // Number of bytes of a torn final line cut off when the log was opened
+    private final long truncated;
+
+    // Opens (creating if necessary) the log at the given path for appending, first cutting off any torn final line
+    AppendOnlyLog(Path file) throws IOException {
+        this.file = file;
+        this.truncated = truncateTornLine(file);
+        open();
+    }
+
+    // Reads every line currently in the log, in the order they were appended. A torn final line (appended since the log was opened) is ignored.
+    synchronized List<String> readLines() throws IOException {
+        writer.flush();
+        List<String> lines = new ArrayList<>();
+        byte[] bytes = Files.readAllBytes(file);
+        int start = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != '\n') continue;
+            lines.add(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+            start = i + 1;
+        }
+        return lines;
+    }
+
+    // Appends a line to the log. The line is only durable after the next sync().
+    synchronized void append(String line) throws IOException {
+        writer.write(line);
+        writer.write('\n');
+        dirty = true;
+    }
+
+    // Flushes and fsyncs every line appended since the last sync
+    synchronized void sync() throws IOException {
+        if (!dirty) return;
+        writer.flush();
+        channel.force(false);
+        dirty = false;
+    }
+
+    /* Replaces the contents of the log with the given lines. The new contents are written and fsynced to a temporary file first,
+       then moved over the log atomically, so a crash leaves either the old or the new log intact. */
+    synchronized void rewrite(Collection<String> lines) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer w = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(out), StandardCharsets.UTF_8));
+            for (String line : lines) {
+                w.write(line);
+                w.write('\n');
+            }
+            w.flush();
+            out.force(false);
+        }
+        writer.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+        dirty = false;
+    }
+
+    // Makes every appended line durable and closes the log
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        writer.close();
+    }
+
+    // Returns the number of bytes of a torn final line cut off when the log was opened (0 if the log ended with a complete line)
+    long getTruncated() {
+        return this.truncated;
+    }
+
+    /* Truncates the file back to the end of its last complete line, so a line torn by a crash mid-write isn't joined by the next line appended.
+       Returns the number of bytes cut off. */
+    private static long truncateTornLine(Path file) throws IOException {
+        if (!Files.exists(file)) return 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long end = size;
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            // Scan backwards a block at a time for the last newline
+            search:
+            while (end > 0) {
+                int n = (int) Math.min(buffer.capacity(), end);
+                long from = end - n;
+                buffer.clear().limit(n);
+                while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) >= 0) { }
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        end = from + i + 1;
+                        break search;
+                    }
+                }
+                end = from;
+            }
+            if (end == size) return 0;
+            channel.truncate(end);
+            channel.force(false);
+            return size - end;
+        }
+    }
+
+    // Opens the log file for appending
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+    }
+
+    // Escapes the characters with special meaning within a line of tab separated fields: backslashes, tabs and newlines
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    // Reverses escape
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            }
+            else out.append(c);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+    A logging Handler which hands each record to a bounded ring buffer and returns at once, leaving a single writer thread
+    to format the records and write them through the wrapped Handler (e.g. the listener's FileHandler), so logging never stalls ingestion.
+    Records logged with parameters (e.g. log.log(Level.INFO, "Found new file: {0}", path)) are only formatted on the writer thread.
+    Each level may be rate limited to a number of records per summary interval; records beyond the limit are counted rather than written,
+    and the writer logs a summary of them at the end of each interval (e.g. "1,532 further messages in the last 10s like: [SUCCESS] ...").
+    What happens to a record arriving when the buffer is full is set by the OverflowPolicy; records dropped are summarised in the same way.
+    The source class and method of each record aren't inferred, as doing so walks the logging thread's stack; records name their logger instead.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.text.NumberFormat;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class AsyncLogHandler extends Handler {
+    // What happens to a record arriving when the buffer is full
+    public enum OverflowPolicy {
+        // Discard the record arriving
+        DROP_NEWEST,
+        // Discard the oldest record in the buffer to make room
+        DROP_OLDEST,
+        // Wait for room in the buffer, stalling the logging thread (so nothing is lost)
+        BLOCK
+    }
+
+    // Rate limit of a level: the number of records allowed per interval, the number logged in the current interval,
+    // and the number suppressed beyond the limit within the interval, by message
+    private static class RateLimit {
+        private final int limit;
+        private final AtomicInteger logged = new AtomicInteger();
+        private final Map<String, LongAdder> suppressed = new ConcurrentHashMap<>();
+
+        private RateLimit(int limit) {
+            this.limit = limit;
+        }
+    }
+
+    // The handler records are written through
+    private final Handler target;
+    // The buffer of records awaiting the writer
+    private final ArrayBlockingQueue<LogRecord> buffer;
+    // What happens to a record arriving when the buffer is full
+    private final OverflowPolicy policy;
+    // Length of each interval between summaries, in milliseconds
+    private final long summaryInterval;
+    // Rate limits, by level (levels without one are unlimited)
+    private final Map<Level, RateLimit> limits = new ConcurrentHashMap<>();
+    // Records dropped in the current interval as the buffer was full
+    private final LongAdder dropped = new LongAdder();
+    // The writer thread
+    private final Thread writer;
+    // Set once the handler is closed
+    private volatile boolean closed = false;
+
+    // Constructs a handler writing through target, buffering up to capacity records, summarising every summaryInterval ms, and starts its writer thread
+    public AsyncLogHandler(Handler target, int capacity, OverflowPolicy policy, long summaryInterval) {
+        if (target == null) throw new IllegalArgumentException("Provided Handler is null.");
+        if (capacity < 1) throw new IllegalArgumentException("Log buffer capacity must be at least 1.");
+        if (policy == null) throw new IllegalArgumentException("Provided OverflowPolicy is null.");
+        if (summaryInterval <= 0) throw new IllegalArgumentException("Summary interval must be greater than 0 ms.");
+        this.target = target;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.summaryInterval = summaryInterval;
+        this.writer = new Thread(this::write, "json-listener-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Limits records of the given level to limit per summary interval (0 removes the limit)
+    public void setRateLimit(Level level, int limit) {
+        if (limit < 0) throw new IllegalArgumentException("Rate limit must not be negative.");
+        if (limit == 0) limits.remove(level);
+        else limits.put(level, new RateLimit(limit));
+    }
+
+    // Hands a record to the writer, unless it's beyond its level's rate limit or the buffer is full
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) return;
+        RateLimit rate = limits.get(record.getLevel());
+        if (rate != null && rate.logged.incrementAndGet() > rate.limit) {
+            // Count the record towards the summary of its message (for a parameterised record, its pattern)
+            LongAdder count = rate.suppressed.get(record.getMessage());
+            if (count == null) count = rate.suppressed.computeIfAbsent(record.getMessage(), k -> new LongAdder());
+            count.increment();
+            return;
+        }
+        // Name the logger as the record's source, rather than walking the stack to infer it when formatted on the writer thread
+        record.setSourceClassName(null);
+        record.setSourceMethodName(null);
+        switch (policy) {
+            case BLOCK:
+                try {
+                    buffer.put(record);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.increment();
+                }
+                break;
+            case DROP_OLDEST:
+                while (!buffer.offer(record)) {
+                    if (buffer.poll() != null) dropped.increment();
+                }
+                break;
+            default:
+                if (!buffer.offer(record)) dropped.increment();
+        }
+    }
+
+    // The writer thread: writes records as they arrive, flushing whenever the buffer empties, and summarises each interval
+    private void write() {
+        long nextSummary = System.currentTimeMillis() + summaryInterval;
+        boolean unflushed = false;
+        while (true) {
+            LogRecord record;
+            try {
+                long wait = nextSummary - System.currentTimeMillis();
+                record = unflushed ? buffer.poll() : buffer.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) { // Interrupted by close, so write what remains and stop
+                break;
+            }
+            if (record != null) {
+                writeRecord(record);
+                unflushed = true;
+            }
+            else if (unflushed) { // Buffer empty, so make what was written visible
+                target.flush();
+                unflushed = false;
+            }
+            if (System.currentTimeMillis() >= nextSummary) {
+                summarise();
+                nextSummary = System.currentTimeMillis() + summaryInterval;
+                unflushed = true;
+            }
+            if (closed && buffer.isEmpty()) break;
+        }
+        LogRecord record;
+        while ((record = buffer.poll()) != null) writeRecord(record);
+        summarise();
+        target.flush();
+    }
+
+    // Writes a record through the target, reporting (rather than propagating) any failure, so the writer thread never dies
+    private void writeRecord(LogRecord record) {
+        try {
+            target.publish(record);
+        }
+        catch (RuntimeException e) {
+            reportError("Failed to write log record.", e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    // Ends the current interval: resets each level's rate limit, and writes a summary of the records suppressed or dropped within it
+    private void summarise() {
+        String interval = summaryInterval % 1000 == 0 ? (summaryInterval / 1000) + "s" : summaryInterval + "ms";
+        NumberFormat number = NumberFormat.getIntegerInstance();
+        for (Map.Entry<Level, RateLimit> limit : limits.entrySet()) {
+            RateLimit rate = limit.getValue();
+            rate.logged.set(0);
+            for (Map.Entry<String, LongAdder> entry : rate.suppressed.entrySet()) {
+                long count = entry.getValue().sumThenReset();
+                if (count == 0) { // Nothing suppressed for a whole interval, so forget the message
+                    rate.suppressed.remove(entry.getKey(), entry.getValue());
+                    continue;
+                }
+                writeRecord(new LogRecord(limit.getKey(), "[SUMMARY] " + number.format(count) + " further messages in the last " + interval + " like: " + entry.getKey()));
+            }
+        }
+        long lost = dropped.sumThenReset();
+        if (lost > 0) writeRecord(new LogRecord(Level.WARNING, "[DROPPED] " + number.format(lost) + " log messages dropped in the last " + interval + " as the log buffer was full."));
+    }
+
+    // Flushing is left to the writer thread, which flushes whenever the buffer empties
+    @Override
+    public void flush() {
+    }
+
+    // Stops accepting records and waits for the writer to write those buffered. The target is left open, as it belongs to the caller.
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Getter for the number of records currently buffered
+    public int getBuffered() {
+        return buffer.size();
+    }
+}
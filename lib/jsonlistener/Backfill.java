@@ -0,0 +1,359 @@
+/*
+    Uploads the JSON files already within the watched directories on startup, e.g. a backlog which built up whilst the listener wasn't running,
+    as fast as the pipeline allows. The directories are scanned in parallel on a fork-join pool (each directory listed, and its files stat-ed,
+    by as many threads as configured), then the files not yet processed are submitted to the pipeline in a throughput-optimised order,
+    e.g. smallest first so the most files are uploaded soonest, or oldest first so the backlog drains in the order it built up.
+    Files already uploaded, awaiting a retry or within the pipeline (e.g. submitted by a live event meanwhile) are never submitted twice.
+    Progress, throughput and the time remaining are logged periodically until every submitted file has been processed.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+public class Backfill {
+    // Number of files stat-ed by a single task, beneath which a directory's files aren't split between threads
+    private static final int STAT_THRESHOLD = 512;
+    // Interval between each progress report, in milliseconds
+    private static final long PROGRESS_INTERVAL = 10 * 1000;
+
+    // The order in which the files found are submitted to the pipeline
+    public enum Order {
+        // Smallest files first, so the most files are uploaded soonest
+        SMALLEST_FIRST,
+        // Least recently modified files first, so the backlog drains in the order it built up
+        OLDEST_FIRST,
+        // Most recently modified files first, so the freshest data arrives soonest
+        NEWEST_FIRST,
+        // The order the directories list them in, without sorting
+        DIRECTORY
+    }
+
+    // A file found by the scan which hasn't been processed, with the attributes it was found with
+    private static final class Candidate {
+        final Path path;
+        final String dbPath;
+        final BasicFileAttributes attrs;
+
+        Candidate(Path path, String dbPath, BasicFileAttributes attrs) {
+            this.path = path;
+            this.dbPath = dbPath;
+            this.attrs = attrs;
+        }
+    }
+
+    // Index of the files already processed
+    private final ProcessedIndex index;
+    // Journal of the files awaiting a retry
+    private final RetryJournal journal;
+    // Pipeline the files are submitted to
+    private final UploadPipeline pipeline;
+    // Maps a directory to the directory in the database its files are POSTed to
+    private final Function<Path, String> dbPathFor;
+    // The Logger object which shall be used to send log messages to
+    private final Logger log;
+    // The order files are submitted in
+    private volatile Order order = Order.SMALLEST_FIRST;
+    // Number of threads scanning the directories
+    private volatile int threads = Runtime.getRuntime().availableProcessors();
+    // The files submitted which haven't been processed yet, with their sizes
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    // Number of files, and bytes, submitted in total
+    private volatile long totalFiles = 0;
+    private volatile long totalBytes = 0;
+    // Number of files, and bytes, processed so far
+    private final LongAdder doneFiles = new LongAdder();
+    private final LongAdder doneBytes = new LongAdder();
+    // When submission began, in nanoseconds
+    private volatile long started;
+    // When progress is next reported, in milliseconds since the epoch
+    private final AtomicLong nextReport = new AtomicLong();
+    // Set whilst files submitted remain to be processed
+    private volatile boolean running = false;
+
+    // One constructs a Backfill with the index, journal and pipeline, a function giving the database directory of each directory, and the log to write to
+    public Backfill(ProcessedIndex index, RetryJournal journal, UploadPipeline pipeline, Function<Path, String> dbPathFor, Logger log) {
+        this.index = index;
+        this.journal = journal;
+        this.pipeline = pipeline;
+        this.dbPathFor = dbPathFor;
+        this.log = log;
+    }
+
+    /* Scans the given directories in parallel and submits every JSON file not yet processed to the pipeline, in order, blocking whilst the pipeline is full.
+       Returns once every file is submitted; progress is reported as the files are processed. Throws InterruptedException if interrupted (e.g. stopping). */
+    public void run(Collection<Path> dirs) throws InterruptedException {
+        long scanStart = System.nanoTime();
+        List<Candidate> found = scan(dirs);
+        if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+        Comparator<Candidate> comparator = comparator(order);
+        if (comparator != null) found.sort(comparator);
+        long bytes = 0;
+        for (Candidate c : found) bytes += c.attrs.size();
+        NumberFormat number = NumberFormat.getIntegerInstance();
+        log.info("[BACKFILL] Found " + number.format(found.size()) + " JSON files (" + formatBytes(bytes) + ") not yet uploaded in " + number.format(dirs.size())
+                + " directories in " + (System.nanoTime() - scanStart) / 1000000 + " ms, uploading " + order.toString().toLowerCase().replace('_', ' ') + ".");
+        if (found.isEmpty()) return;
+        pending.clear();
+        doneFiles.reset();
+        doneBytes.reset();
+        totalFiles = found.size();
+        totalBytes = bytes;
+        started = System.nanoTime();
+        nextReport.set(System.currentTimeMillis() + PROGRESS_INTERVAL);
+        running = true;
+        for (int i = 0; i < found.size(); i++) {
+            Candidate c = found.get(i);
+            found.set(i, null); // Let each candidate go once submitted, as a backlog may hold millions
+            File f = c.path.toFile();
+            // Check again, as the file may have been uploaded through a live event since it was found, and then deleted or archived
+            boolean handled = index.isProcessed(c.path, c.attrs) || journal.isOutstanding(f) || Files.notExists(c.path);
+            if (!handled) {
+                pending.put(f.getPath(), c.attrs.size());
+                try {
+                    // Refused if already within the pipeline, unless that upload finished meanwhile and was counted as the backfill's own
+                    handled = !pipeline.submit(new UploadJob(f, c.dbPath)) && pending.remove(f.getPath()) != null;
+                }
+                catch (InterruptedException | IllegalStateException e) { // Stopping, so the backfill is only the files already submitted
+                    pending.remove(f.getPath());
+                    truncate();
+                    throw e;
+                }
+            }
+            // Already handled elsewhere, so it's neither part of the backfill's work nor its progress
+            if (handled) {
+                totalFiles--;
+                totalBytes -= c.attrs.size();
+            }
+        }
+        if (pending.isEmpty()) finish();
+    }
+
+    // Records that a file has been processed (uploaded, skipped or given up on), reporting progress if it's due
+    public void processed(File f) {
+        Long size = pending.remove(f.getPath());
+        if (size == null) return;
+        doneFiles.increment();
+        doneBytes.add(size);
+        long due = nextReport.get();
+        long now = System.currentTimeMillis();
+        if (now >= due && nextReport.compareAndSet(due, now + PROGRESS_INTERVAL)) report();
+        if (pending.isEmpty() && doneFiles.sum() >= totalFiles) finish();
+    }
+
+    // Reduces the files submitted in total to those processed or still within the pipeline, once no more shall be submitted
+    private void truncate() {
+        long bytes = 0;
+        for (long size : pending.values()) bytes += size;
+        totalFiles = doneFiles.sum() + pending.size();
+        totalBytes = doneBytes.sum() + bytes;
+        if (pending.isEmpty()) finish();
+    }
+
+    // Logs the files and bytes processed so far, the throughput, and the time remaining at that throughput
+    private void report() {
+        long files = doneFiles.sum(), bytes = doneBytes.sum();
+        double seconds = Math.max(1e-3, (System.nanoTime() - started) / 1e9);
+        double fileRate = files / seconds, byteRate = bytes / seconds;
+        NumberFormat number = NumberFormat.getIntegerInstance();
+        // Estimate the time remaining from both the file and byte rates, taking the longer, as the order skews one or the other (e.g. smallest first inflates the file rate)
+        double eta = Math.max(fileRate > 0 ? (totalFiles - files) / fileRate : 0, byteRate > 0 ? (totalBytes - bytes) / byteRate : 0);
+        log.info("[BACKFILL] " + number.format(files) + " of " + number.format(totalFiles) + " files (" + formatBytes(bytes) + " of " + formatBytes(totalBytes) + ") processed, "
+                + number.format(Math.round(fileRate)) + " files/s (" + formatBytes((long) byteRate) + "/s), about " + formatDuration((long) eta) + " remaining.");
+    }
+
+    // Logs the completion of the backfill, once
+    private synchronized void finish() {
+        if (!running) return;
+        running = false;
+        long seconds = Math.max(0, (System.nanoTime() - started) / 1000000000L);
+        log.info("[BACKFILL] Complete: " + NumberFormat.getIntegerInstance().format(doneFiles.sum()) + " files (" + formatBytes(doneBytes.sum()) + ") processed in " + formatDuration(seconds) + ".");
+    }
+
+    // Scans the directories on a fork-join pool, returning the JSON files not yet processed
+    private List<Candidate> scan(Collection<Path> dirs) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new ScanDirectories(new ArrayList<>(dirs)));
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Scans a list of directories, forking a task per directory
+    private final class ScanDirectories extends RecursiveTask<List<Candidate>> {
+        private final List<Path> dirs;
+
+        ScanDirectories(List<Path> dirs) {
+            this.dirs = dirs;
+        }
+
+        @Override
+        protected List<Candidate> compute() {
+            List<ScanDirectory> tasks = new ArrayList<>(dirs.size());
+            for (Path dir : dirs) tasks.add(new ScanDirectory(dir));
+            invokeAll(tasks);
+            List<Candidate> found = new ArrayList<>();
+            for (ScanDirectory task : tasks) found.addAll(task.join());
+            return found;
+        }
+    }
+
+    // Lists a directory's JSON files, then stats them, splitting a large directory's files between threads
+    private final class ScanDirectory extends RecursiveTask<List<Candidate>> {
+        private final Path dir;
+
+        ScanDirectory(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<Candidate> compute() {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.json")) {
+                for (Path p : stream) files.add(p);
+            }
+            catch (IOException e) {
+                log.warning("Failed to backfill directory " + dir.toString() + ": " + e.toString());
+                return new ArrayList<>();
+            }
+            return new StatFiles(files, 0, files.size(), dbPathFor.apply(dir)).compute();
+        }
+    }
+
+    // Stats a range of a directory's files, keeping those not yet processed, splitting the range in two whilst it's beyond the threshold
+    private final class StatFiles extends RecursiveTask<List<Candidate>> {
+        private final List<Path> files;
+        private final int from, to;
+        private final String dbPath;
+
+        StatFiles(List<Path> files, int from, int to, String dbPath) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.dbPath = dbPath;
+        }
+
+        @Override
+        protected List<Candidate> compute() {
+            if (to - from > STAT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                StatFiles left = new StatFiles(files, from, mid, dbPath);
+                left.fork();
+                List<Candidate> found = new StatFiles(files, mid, to, dbPath).compute();
+                found.addAll(left.join());
+                return found;
+            }
+            List<Candidate> found = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                Path p = files.get(i);
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                }
+                catch (IOException e) { // Removed since listed
+                    continue;
+                }
+                if (!attrs.isRegularFile() || index.isProcessed(p, attrs) || journal.isOutstanding(p.toFile())) continue;
+                found.add(new Candidate(p, dbPath, attrs));
+            }
+            return found;
+        }
+    }
+
+    // The comparator putting files in the given order, or null if they're left in the order found
+    private static Comparator<Candidate> comparator(Order order) {
+        switch (order) {
+            case SMALLEST_FIRST:
+                return Comparator.comparingLong(c -> c.attrs.size());
+            case OLDEST_FIRST:
+                return Comparator.comparingLong(c -> c.attrs.lastModifiedTime().toMillis());
+            case NEWEST_FIRST:
+                return Comparator.<Candidate>comparingLong(c -> c.attrs.lastModifiedTime().toMillis()).reversed();
+            default:
+                return null;
+        }
+    }
+
+    // Formats a number of bytes for the log, e.g. 1.5 GB
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        String[] units = { "KB", "MB", "GB", "TB" };
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
+    // Formats a number of seconds for the log, e.g. 1h 2m 5s
+    private static String formatDuration(long seconds) {
+        if (seconds < 60) return seconds + "s";
+        if (seconds < 3600) return (seconds / 60) + "m " + (seconds % 60) + "s";
+        return (seconds / 3600) + "h " + (seconds % 3600 / 60) + "m";
+    }
+
+    /*
+        Getter and setter methods.
+    */
+
+    // Setter for the order in which the files found are submitted
+    public void setOrder(Order x) {
+        if (x == null) throw new IllegalArgumentException("Provided Order is null.");
+        this.order = x;
+    }
+
+    // Setter for the number of threads scanning the directories
+    public void setThreads(int x) {
+        if (x < 1) throw new IllegalArgumentException("Backfill threads must be at least 1.");
+        this.threads = x;
+    }
+
+    // Getter for the order in which the files found are submitted
+    public Order getOrder() {
+        return this.order;
+    }
+
+    // Getter for the number of threads scanning the directories
+    public int getThreads() {
+        return this.threads;
+    }
+
+    // Getter for whether files submitted remain to be processed
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    // Getter for the number of files submitted by the current (or last) backfill
+    public long getTotalFiles() {
+        return this.totalFiles;
+    }
+
+    // Getter for the number of those files processed so far
+    public long getProcessedFiles() {
+        return this.doneFiles.sum();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+    Remembers the content hashes of the most recently uploaded files, so a byte-identical file dropped again to the same destination isn't uploaded twice.
+    Holds a bounded number of hashes, evicting the least recently seen. The hashes may optionally be persisted in an AppendOnlyLog,
+    so they survive a restart; the log is compacted down to the cached hashes once it grows to twice the capacity.
+    Hashes appended since the last sync may be lost in a crash, which only costs a repeated upload.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+public class ContentHashCache implements Closeable {
+    // Size of the buffer files are read through when hashing
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The most recently uploaded hashes
+    private final LruCache<String, Boolean> hashes;
+    // The log persisting the hashes, or null if not persisted
+    private final AppendOnlyLog log;
+    // Number of hashes appended to the log since it was last compacted
+    private int logged = 0;
+
+    // Constructs a cache holding at most capacity hashes, persisted in the log at the given path (creating it if necessary), or in memory only if the path is null
+    public ContentHashCache(int capacity, Path file) throws IOException {
+        this.hashes = new LruCache<>(capacity);
+        this.log = file == null ? null : new AppendOnlyLog(file);
+        if (log == null) return;
+        for (String line : log.readLines()) {
+            hashes.put(line, Boolean.TRUE);
+            logged++;
+        }
+    }
+
+    // Returns true if the hash has been uploaded, marking it as recently seen
+    public synchronized boolean contains(String hash) {
+        return hashes.get(hash) != null;
+    }
+
+    // Records that a file with the given hash has been uploaded
+    public synchronized void add(String hash) throws IOException {
+        if (hashes.put(hash, Boolean.TRUE) != null || log == null) return;
+        log.append(hash);
+        // Once the log holds twice as many hashes as the cache, most are evicted, so rewrite it with the cached hashes only
+        if (++logged >= 2 * Math.max(hashes.size(), 1024)) {
+            log.rewrite(new ArrayList<>(hashes.keySet()));
+            logged = hashes.size();
+        }
+    }
+
+    // Makes every hash added since the last sync durable
+    public synchronized void sync() throws IOException {
+        if (log != null) log.sync();
+    }
+
+    // Syncs and closes the cache
+    @Override
+    public synchronized void close() throws IOException {
+        if (log != null) log.close();
+    }
+
+    /* Computes the hash of a file's content destined for the given location in the database: a SHA-256 digest, as hex, of the destination and the file's bytes.
+       The destination is included so the same document may still be uploaded to two different locations. */
+    public static String hash(String destination, File file) throws IOException {
+        return hash(destination, null, file);
+    }
+
+    /* As above, also including the given salt (e.g. the fingerprint of the transform reshaping the document before it's uploaded),
+       so the same file uploaded as something different is not taken to be identical. A null or empty salt gives the hash above. */
+    public static String hash(String destination, String salt, File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) { // Every Java platform must support SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(String.valueOf(destination).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        if (salt != null && !salt.isEmpty()) {
+            digest.update(salt.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+}
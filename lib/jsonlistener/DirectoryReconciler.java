@@ -0,0 +1,234 @@
+/*
+    Rescans watched directories for JSON files which were never uploaded, e.g. those created whilst the WatchService overflowed
+    or whilst the listener wasn't running, and submits them to the UploadPipeline.
+    A file is skipped if the ProcessedIndex holds it unchanged (the same size and modification time), if it awaits a retry or if it's already within the pipeline,
+    so a rescan costs one stat per file and only new or changed files are uploaded, including files rewritten in place.
+    After each rescan of every directory, the files no longer on disk are removed from the index, so it holds no more entries than there are files.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+public class DirectoryReconciler {
+    // Interval between each fsync of the index, in milliseconds
+    private static final int INDEX_SYNC_INTERVAL = 1000;
+
+    // Index of the files already processed
+    private final ProcessedIndex index;
+    // Journal of the files awaiting a retry
+    private final RetryJournal journal;
+    // Pipeline new files are submitted to
+    private final UploadPipeline pipeline;
+    // Maps a directory to the directory in the database its files are POSTed to
+    private final Function<Path, String> dbPathFor;
+    // The Logger object which shall be used to send log messages to
+    private final Logger log;
+    // The directories to scan, which may grow to many thousands when subdirectories are watched recursively
+    private final Set<Path> dirs = ConcurrentHashMap.newKeySet();
+    // Interval between periodic scans in milliseconds (0 disables periodic scans)
+    private int reconcileInterval = 0;
+    // Thread on which scans and index syncs run, constructed by start()
+    private volatile ScheduledThreadPoolExecutor scanner;
+    // Set while a scan is queued but not yet started, so that requests arriving meanwhile coalesce into it
+    private final AtomicBoolean scanQueued = new AtomicBoolean(false);
+
+    // One constructs a DirectoryReconciler with the index, journal and pipeline, a function giving the database directory of each directory, and the log to write to
+    public DirectoryReconciler(ProcessedIndex index, RetryJournal journal, UploadPipeline pipeline, Function<Path, String> dbPathFor, Logger log) {
+        this.index = index;
+        this.journal = journal;
+        this.pipeline = pipeline;
+        this.dbPathFor = dbPathFor;
+        this.log = log;
+    }
+
+    // Adds a directory to be scanned
+    public void addDirectory(Path dir) {
+        dirs.add(dir);
+    }
+
+    // Removes a directory which is no longer watched, e.g. as it has been deleted
+    public void removeDirectory(Path dir) {
+        dirs.remove(dir);
+    }
+
+    /* Starts the scanner thread, scanning every directory immediately to catch files created whilst the listener wasn't running.
+       If the index is new (the first run), the files already present are only recorded in the index, not uploaded.
+       Without the scan, the files removed whilst the listener wasn't running are still removed from the index. */
+    public void start() {
+        start(true);
+    }
+
+    // As above, though if scan is false the directories aren't scanned on start, e.g. as a Backfill uploads the files already present instead
+    public void start(boolean scan) {
+        if (scanner != null) throw new IllegalStateException("Reconciler already started!");
+        scanner = new ScheduledThreadPoolExecutor(1, UploadPipeline.threadFactory("json-listener-reconcile"));
+        scanner.scheduleWithFixedDelay(this::syncIndex, INDEX_SYNC_INTERVAL, INDEX_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        if (scan && index.isNew()) scanner.execute(this::recordExisting);
+        else if (scan) requestScan();
+        else scanner.execute(this::removeMissing);
+        if (reconcileInterval > 0) scanner.scheduleWithFixedDelay(this::requestScan, reconcileInterval, reconcileInterval, TimeUnit.MILLISECONDS);
+    }
+
+    // Stops the scanner thread, interrupting any scan in progress, and syncs the index
+    public void stop() throws InterruptedException {
+        if (scanner == null) return;
+        scanner.shutdownNow();
+        scanner.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        scanner = null;
+        scanQueued.set(false);
+        syncIndex();
+    }
+
+    /* Requests a scan of the watched directories on the scanner thread. Every directory is listed, as a file rewritten in place
+       doesn't change its directory's modification time. Requests made whilst a scan is already queued are merged into it. */
+    public void requestScan() {
+        ScheduledThreadPoolExecutor s = scanner;
+        if (s == null || !scanQueued.compareAndSet(false, true)) return;
+        try {
+            s.execute(this::runScan);
+        }
+        catch (RejectedExecutionException e) { // Stopping
+            scanQueued.set(false);
+        }
+    }
+
+    /* Requests a scan of a single directory on the scanner thread, e.g. one which has just begun to be watched and may already hold files.
+       Does nothing before start(), as start() scans every directory. */
+    public void scanDirectory(Path dir) {
+        ScheduledThreadPoolExecutor s = scanner;
+        if (s == null) return;
+        try {
+            s.execute(() -> scan(dir));
+        }
+        catch (RejectedExecutionException e) { // Stopping
+        }
+    }
+
+    // Records that a file has been processed, so later scans skip it unless it changes
+    public void processed(File f) {
+        try {
+            Path p = f.toPath();
+            index.record(p, Files.readAttributes(p, BasicFileAttributes.class));
+        }
+        catch (IOException e) { // File removed in the meantime, so there's nothing to skip
+            log.fine("Couldn't index processed file " + f.toString() + ": " + e.toString());
+        }
+    }
+
+    // Runs a queued scan, then removes the files no longer on disk from the index
+    private void runScan() {
+        scanQueued.set(false);
+        for (Path dir : dirs) {
+            if (Thread.currentThread().isInterrupted()) return;
+            scan(dir);
+        }
+        removeMissing();
+    }
+
+    // Scans a directory, submitting each JSON file not yet processed (or changed since) to the pipeline
+    private void scan(Path dir) {
+        int seen = 0, submitted = 0;
+        String dbPath = dbPathFor.apply(dir);
+        // A DirectoryStream lists the directory lazily, so even huge directories are never held in memory
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.json")) {
+            for (Path p : stream) {
+                seen++;
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                }
+                catch (IOException e) { // Removed since listed
+                    continue;
+                }
+                if (!attrs.isRegularFile() || index.isProcessed(p, attrs)) continue;
+                File f = p.toFile();
+                if (journal.isOutstanding(f)) continue;
+                if (pipeline.submit(new UploadJob(f, dbPath))) submitted++;
+            }
+        }
+        catch (IOException e) {
+            log.warning("Failed to reconcile directory " + dir.toString() + ": " + e.toString());
+            return;
+        }
+        catch (InterruptedException e) { // Stopping
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (submitted > 0) log.info("Reconciled directory " + dir.toString() + ": submitted " + submitted + " of " + seen + " JSON files.");
+    }
+
+    // Records every JSON file currently in the directories as processed, without uploading them
+    private void recordExisting() {
+        for (Path dir : dirs) {
+            int recorded = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.json")) {
+                for (Path p : stream) {
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                        if (attrs.isRegularFile()) {
+                            index.record(p, attrs);
+                            recorded++;
+                        }
+                    }
+                    catch (IOException e) { // Removed since listed
+                        continue;
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.warning("Failed to index directory " + dir.toString() + ": " + e.toString());
+                continue;
+            }
+            log.info("Indexed " + recorded + " existing JSON files in " + dir.toString() + ", these shall not be uploaded.");
+        }
+    }
+
+    // Removes the files no longer on disk (e.g. deleted or moved away by another process) from the index
+    private void removeMissing() {
+        try {
+            int removed = index.removeMissing();
+            if (removed > 0) log.info("Removed " + removed + " files no longer on disk from the processed file index.");
+        }
+        catch (IOException e) {
+            log.warning("Failed to remove missing files from the processed file index. " + e.toString());
+        }
+    }
+
+    // Syncs the index, making recent entries durable
+    private void syncIndex() {
+        try {
+            index.sync();
+        }
+        catch (IOException e) {
+            log.warning("Failed to sync the processed file index. " + e.toString());
+        }
+    }
+
+    /*
+        Getter and setter methods.
+    */
+
+    // Setter for reconcile interval, which takes effect on the next start()
+    public void setReconcileInterval(int x) {
+        if (x < 0) throw new IllegalArgumentException("Reconcile interval must be at least 0 ms.");
+        this.reconcileInterval = x;
+    }
+
+    // Getter for reconcile interval
+    public int getReconcileInterval() {
+        return this.reconcileInterval;
+    }
+}
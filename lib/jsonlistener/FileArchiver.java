@@ -0,0 +1,295 @@
+/*
+    Clears the files the listener has finished with out of the watched directories, so they hold only the files still to be uploaded
+    and listing, watching and rescanning them stays cheap however many files have passed through.
+    Each uploaded (or skipped) file is kept, deleted, or moved into an archive directory, and each file given up on may be moved into a quarantine directory.
+    Moves are atomic renames (on the same file system), into a tree of subdirectories sharded by date or by a hash of the file name,
+    so no directory of the archive grows too large either. Files are queued by the pipeline's threads and disposed of in batches on a thread of their own.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+public class FileArchiver {
+    // Maximum number of files disposed of in one batch
+    private static final int BATCH_SIZE = 1000;
+    // Maximum number of attempts at a free name within an archive directory, before the file is left where it is
+    private static final int MAX_NAME_ATTEMPTS = 100;
+    // Formats of the date shards, in the local time zone
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyy/MM/dd").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter HOUR = DateTimeFormatter.ofPattern("yyyy/MM/dd/HH").withZone(ZoneId.systemDefault());
+
+    // What happens to a file once it has been uploaded (or skipped)
+    public enum Disposition {
+        // Left within the watched directory
+        KEEP,
+        // Deleted
+        DELETE,
+        // Moved into the archive directory
+        ARCHIVE
+    }
+
+    // How the archive and quarantine directories are divided into subdirectories
+    public enum Sharding {
+        // Every file directly within the directory
+        NONE,
+        // By the day the file was detected, e.g. 2019/05/28
+        BY_DAY,
+        // By the hour the file was detected, e.g. 2019/05/28/14
+        BY_HOUR,
+        // By a hash of the file name, into 256 directories of 256 directories, e.g. 3f/a2
+        BY_HASH
+    }
+
+    // A file queued for disposal: the job it was uploaded by, and whether it's quarantined (having been given up on) rather than disposed of as uploaded
+    private static final class Disposal {
+        final UploadJob job;
+        final boolean quarantine;
+
+        Disposal(UploadJob job, boolean quarantine) {
+            this.job = job;
+            this.quarantine = quarantine;
+        }
+    }
+
+    // Marks the end of the queue, once stopping
+    private static final Disposal STOP = new Disposal(null, false);
+
+    // Index of the files processed, from which files moved or deleted are removed
+    private final ProcessedIndex index;
+    // The Logger object which shall be used to send log messages to
+    private final Logger log;
+    // What happens to uploaded files
+    private volatile Disposition disposition = Disposition.KEEP;
+    // The directory uploaded files are archived within, and the directory files given up on are quarantined within (null leaves them be)
+    private volatile Path archiveDirectory;
+    private volatile Path quarantineDirectory;
+    // How the archive and quarantine directories are divided
+    private volatile Sharding sharding = Sharding.BY_DAY;
+    // The files awaiting disposal
+    private final LinkedBlockingQueue<Disposal> queue = new LinkedBlockingQueue<>();
+    // The subdirectories already created, so each is only created once
+    private final Set<Path> created = ConcurrentHashMap.newKeySet();
+    // The thread disposing of files, whilst started
+    private Thread thread;
+
+    // One constructs a FileArchiver with the index of processed files, and the log to write to
+    public FileArchiver(ProcessedIndex index, Logger log) {
+        this.index = index;
+        this.log = log;
+    }
+
+    // Returns true if files are disposed of at all, i.e. uploaded files aren't kept or files given up on are quarantined
+    public boolean isEnabled() {
+        return disposition != Disposition.KEEP || quarantineDirectory != null;
+    }
+
+    // Starts the thread disposing of files, if enabled. Throws an IOException if the archive or quarantine directory can't be created.
+    public synchronized void start() throws IOException {
+        if (thread != null) throw new IllegalStateException("Archiver already started!");
+        if (!isEnabled()) return;
+        if (disposition == Disposition.ARCHIVE) {
+            if (archiveDirectory == null) throw new IllegalStateException("Archiving files requires an archive directory.");
+            Files.createDirectories(archiveDirectory);
+        }
+        if (quarantineDirectory != null) Files.createDirectories(quarantineDirectory);
+        created.clear();
+        thread = UploadPipeline.threadFactory("json-listener-archive").newThread(this::run);
+        thread.start();
+    }
+
+    // Disposes of every file queued, then stops the thread
+    public synchronized void stop() throws InterruptedException {
+        if (thread == null) return;
+        queue.add(STOP);
+        thread.join();
+        thread = null;
+    }
+
+    // Queues an uploaded (or skipped) file for disposal
+    public void uploaded(UploadJob job) {
+        if (disposition != Disposition.KEEP && thread != null) queue.add(new Disposal(job, false));
+    }
+
+    // Queues a file given up on for quarantine
+    public void failed(UploadJob job) {
+        if (quarantineDirectory != null && thread != null) queue.add(new Disposal(job, true));
+    }
+
+    // Returns true if the given directory is (or lies within) the archive or quarantine directory, so must never be watched
+    public boolean isArchiveDirectory(Path d) {
+        Path archive = archiveDirectory, quarantine = quarantineDirectory;
+        Path abs = d.toAbsolutePath().normalize();
+        return (archive != null && abs.startsWith(archive.toAbsolutePath().normalize())) || (quarantine != null && abs.startsWith(quarantine.toAbsolutePath().normalize()));
+    }
+
+    // Disposes of the files queued in batches, until stopped
+    private void run() {
+        List<Disposal> batch = new ArrayList<>(BATCH_SIZE);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException e) { // Not expected, as stop() queues STOP, but dispose of whatever remains
+                stopping = true;
+            }
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            int disposed = 0;
+            for (Disposal d : batch) {
+                if (d == STOP) stopping = true;
+                else if (dispose(d)) disposed++;
+            }
+            batch.clear();
+            if (disposed > 0) log.log(Level.FINE, "Disposed of {0} files.", disposed);
+        }
+        // Files queued after STOP (e.g. by uploads which completed meanwhile) are still disposed of
+        queue.drainTo(batch);
+        for (Disposal d : batch) {
+            if (d != STOP) dispose(d);
+        }
+    }
+
+    // Deletes, archives or quarantines a single file, returning true if it was
+    private boolean dispose(Disposal d) {
+        Path source = d.job.getFile().toPath();
+        try {
+            if (!d.quarantine && disposition == Disposition.DELETE) Files.deleteIfExists(source);
+            else {
+                Path target = move(source, shard(d.quarantine ? quarantineDirectory : archiveDirectory, d.job));
+                if (target == null) return false;
+                if (d.quarantine) log.log(Level.INFO, "Quarantined file {0} in {1}.", new Object[] { source, target });
+            }
+        }
+        catch (NoSuchFileException e) { // Already removed
+        }
+        catch (IOException e) {
+            log.warning("Failed to " + (d.quarantine ? "quarantine" : disposition.toString().toLowerCase()) + " file " + source.toString() + ": " + e.toString());
+            return false;
+        }
+        try {
+            index.remove(source);
+        }
+        catch (IOException e) {
+            log.warning("Failed to remove file " + source.toString() + " from the processed file index: " + e.toString());
+        }
+        return true;
+    }
+
+    /* Moves a file into the given directory with an atomic rename, under a free name (appending -1, -2... if its name is taken).
+       Falls back to copying it where the directory is on another file system. Returns the file's new path, or null if no free name was found. */
+    private Path move(Path source, Path dir) throws IOException {
+        if (created.add(dir)) Files.createDirectories(dir);
+        String name = source.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name, extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 0; i < MAX_NAME_ATTEMPTS; i++) {
+            Path target = dir.resolve(i == 0 ? name : stem + "-" + i + extension);
+            try {
+                // An atomic rename never replaces a file, nor leaves a partial copy should the listener be killed
+                if (!Files.exists(target)) return Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (FileAlreadyExistsException e) { // Taken meanwhile
+            }
+            catch (AtomicMoveNotSupportedException e) { // Another file system, so copy it instead
+                if (!Files.exists(target)) return Files.move(source, target);
+            }
+            catch (NoSuchFileException e) { // Either the file was removed, or the directory was since it was created
+                if (!Files.exists(source)) throw e;
+                Files.createDirectories(dir);
+                i--;
+            }
+        }
+        log.warning("Failed to find a free name for file " + source.toString() + " within " + dir.toString() + ", leaving it in place.");
+        return null;
+    }
+
+    // Returns the subdirectory of the given directory a job's file belongs within
+    private Path shard(Path dir, UploadJob job) {
+        switch (sharding) {
+            case BY_DAY:
+                return dir.resolve(DAY.format(Instant.ofEpochMilli(detected(job))));
+            case BY_HOUR:
+                return dir.resolve(HOUR.format(Instant.ofEpochMilli(detected(job))));
+            case BY_HASH:
+                CRC32 crc = new CRC32();
+                crc.update(job.getFile().getName().getBytes(StandardCharsets.UTF_8));
+                long h = crc.getValue();
+                return dir.resolve(String.format("%02x/%02x", (h >>> 8) & 0xff, h & 0xff));
+            default:
+                return dir;
+        }
+    }
+
+    // Returns when a job's file was first detected, or now if it never was
+    private static long detected(UploadJob job) {
+        long detected = job.getDetectedMillis();
+        return detected > 0 ? detected : System.currentTimeMillis();
+    }
+
+    /*
+        Getter and setter methods. Whether the archiver is enabled, and its directories, take effect on the next call to start().
+    */
+
+    // Setter for what happens to uploaded files
+    public void setDisposition(Disposition x) {
+        if (x == null) throw new IllegalArgumentException("Provided Disposition is null.");
+        this.disposition = x;
+    }
+
+    // Setter for the directory uploaded files are archived within
+    public void setArchiveDirectory(Path x) {
+        this.archiveDirectory = x;
+    }
+
+    // Setter for the directory files given up on are quarantined within (null leaves them be)
+    public void setQuarantineDirectory(Path x) {
+        this.quarantineDirectory = x;
+    }
+
+    // Setter for how the archive and quarantine directories are divided
+    public void setSharding(Sharding x) {
+        if (x == null) throw new IllegalArgumentException("Provided Sharding is null.");
+        this.sharding = x;
+    }
+
+    // Getter for what happens to uploaded files
+    public Disposition getDisposition() {
+        return this.disposition;
+    }
+
+    // Getter for the archive directory
+    public Path getArchiveDirectory() {
+        return this.archiveDirectory;
+    }
+
+    // Getter for the quarantine directory
+    public Path getQuarantineDirectory() {
+        return this.quarantineDirectory;
+    }
+
+    // Getter for how the archive and quarantine directories are divided
+    public Sharding getSharding() {
+        return this.sharding;
+    }
+}
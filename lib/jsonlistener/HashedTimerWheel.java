@@ -0,0 +1,136 @@
+/*
+    A hashed timer wheel: a single thread which runs short tasks after a delay, with a resolution of one tick.
+    Tasks are hashed into a fixed ring of buckets by their deadline, so scheduling and expiring a task costs O(1)
+    however many tasks are pending, and tasks waiting out their delay hold no thread or stack, only a small entry in a bucket.
+    Tasks run on the wheel's thread, so they must be quick.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+class HashedTimerWheel {
+    // A task waiting within a bucket, linked to the next task in the same bucket
+    private static final class Timeout {
+        final Runnable task;
+        // Delay in ticks, until placed within a bucket
+        final long ticks;
+        // Number of further turns of the wheel before the task is due
+        long rounds;
+        Timeout next;
+
+        Timeout(Runnable task, long ticks) {
+            this.task = task;
+            this.ticks = ticks;
+        }
+    }
+
+    // Length of a tick, in milliseconds
+    private final long tickMillis;
+    // The ring of buckets, whose length is a power of two
+    private final Timeout[] buckets;
+    // Mask giving the bucket of a tick
+    private final int mask;
+    // Tasks scheduled since the last tick, placed within buckets by the wheel's thread so scheduling never contends with expiry
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    // The wheel's thread
+    private final Thread worker;
+    // Set once the wheel has been stopped
+    private volatile boolean stopped = false;
+    // Number of ticks elapsed, only accessed by the wheel's thread
+    private long tick = 0;
+
+    // Constructs a wheel with the given tick length in milliseconds and number of buckets (rounded up to a power of two), whose thread is made by the factory
+    HashedTimerWheel(long tickMillis, int size, ThreadFactory factory) {
+        if (tickMillis <= 0) throw new IllegalArgumentException("Tick must be greater than 0 ms.");
+        if (size < 1 || size > (1 << 30)) throw new IllegalArgumentException("Timer wheel size must be between 1 and 2^30.");
+        this.tickMillis = tickMillis;
+        int n = Integer.highestOneBit(size);
+        if (n < size) n <<= 1;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+        this.worker = factory.newThread(this::run);
+    }
+
+    // Starts the wheel's thread
+    void start() {
+        worker.start();
+    }
+
+    // Schedules a task to run on the wheel's thread after at least the given delay, in milliseconds. Throws RejectedExecutionException if stopped.
+    void schedule(Runnable task, long delayMillis) {
+        if (stopped) throw new RejectedExecutionException("Timer wheel has been stopped.");
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        incoming.add(new Timeout(task, ticks));
+    }
+
+    // Stops the wheel, waiting for any task running to finish. Tasks still pending are discarded.
+    void stop() throws InterruptedException {
+        stopped = true;
+        // Wake rather than interrupt the thread, so a running task's file operations aren't interrupted
+        LockSupport.unpark(worker);
+        worker.join();
+        incoming.clear();
+    }
+
+    // The wheel's thread: at each tick, places newly scheduled tasks within their buckets and runs the tasks due in the current bucket
+    private void run() {
+        long start = System.nanoTime();
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        while (!stopped) {
+            // Wait until the next tick is due, measured from the start so ticks don't drift
+            long wait;
+            while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+                if (stopped) return;
+            }
+            transferIncoming();
+            expire(tick & mask);
+            tick++;
+        }
+    }
+
+    // Places each newly scheduled task within the bucket of its deadline
+    private void transferIncoming() {
+        Timeout t;
+        while ((t = incoming.poll()) != null) {
+            // The task's bucket comes round every buckets.length ticks, so it must wait out ticks / buckets.length turns of the wheel before it's due
+            t.rounds = t.ticks / buckets.length;
+            int b = (int) ((tick + t.ticks) & mask);
+            t.next = buckets[b];
+            buckets[b] = t;
+        }
+    }
+
+    // Runs every task due within a bucket, keeping those due on a later turn of the wheel
+    private void expire(long bucket) {
+        int b = (int) bucket;
+        Timeout t = buckets[b];
+        buckets[b] = null;
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.rounds > 0) {
+                t.rounds--;
+                t.next = buckets[b];
+                buckets[b] = t;
+            }
+            else {
+                try {
+                    t.task.run();
+                }
+                catch (RuntimeException e) { // Keep the wheel turning for every other task
+                    Thread.UncaughtExceptionHandler h = worker.getUncaughtExceptionHandler();
+                    if (h != null) h.uncaughtException(worker, e);
+                }
+            }
+            t = next;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+    A lock-free latency histogram with log-linear buckets, in the style of HdrHistogram: each power of two is split into 32 linear sub-buckets,
+    so any recorded value is known to within about 3%, from nanoseconds up to centuries, in under 2,000 counters.
+    Recording a value is a few atomic increments and never allocates, so it may be done on every file.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+    // Number of bits of each value kept exactly, giving 2^SUB_BUCKET_BITS linear sub-buckets per power of two
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Number of buckets needed to cover every non-negative long
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    // Number of values recorded within each bucket
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    // Number of values recorded, their total and the largest
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Records a value, in nanoseconds. Negative values (e.g. from clock adjustments) are recorded as 0.
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) { }
+    }
+
+    // Returns the number of values recorded
+    public long getCount() {
+        return count.sum();
+    }
+
+    // Returns the mean of the values recorded (0 if there are none)
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // Returns the largest value recorded
+    public long getMax() {
+        return max.get();
+    }
+
+    /* Returns the value below which the given fraction (between 0 and 1) of the values recorded fall, to within the precision of a bucket.
+       Values recorded meanwhile may or may not be included. */
+    public long getPercentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(valueOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    // Returns a snapshot of the histogram's summary statistics, in microseconds
+    public LatencySnapshot snapshot() {
+        return new LatencySnapshot(getCount(), getMean() / 1000, getPercentile(0.5) / 1000, getPercentile(0.9) / 1000,
+                getPercentile(0.99) / 1000, getPercentile(0.999) / 1000, getMax() / 1000);
+    }
+
+    // Returns the bucket of a non-negative value: values below SUB_BUCKETS have a bucket each, larger values share one per sub-bucket of their power of two
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Returns the value at the middle of a bucket
+    private static long valueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) / 2;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+    Summary statistics of a LatencyHistogram at a point in time, in microseconds.
+    Exposed over JMX as a composite value, so each statistic appears by name in JMX consoles.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+public class LatencySnapshot {
+    // Number of values recorded
+    private final long count;
+    // Mean of the values recorded
+    private final double mean;
+    // Percentiles of the values recorded, and the largest
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    // One constructs a LatencySnapshot with each of its statistics, in microseconds
+    public LatencySnapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    // Getter for the number of values recorded
+    public long getCount() {
+        return this.count;
+    }
+
+    // Getter for the mean
+    public double getMean() {
+        return this.mean;
+    }
+
+    // Getter for the median
+    public long getP50() {
+        return this.p50;
+    }
+
+    // Getter for the 90th percentile
+    public long getP90() {
+        return this.p90;
+    }
+
+    // Getter for the 99th percentile
+    public long getP99() {
+        return this.p99;
+    }
+
+    // Getter for the 99.9th percentile
+    public long getP999() {
+        return this.p999;
+    }
+
+    // Getter for the largest value
+    public long getMax() {
+        return this.max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " mean=" + Math.round(mean) + "us p50=" + p50 + "us p90=" + p90 + "us p99=" + p99 + "us p99.9=" + p999 + "us max=" + max + "us";
+    }
+}
@@ -0,0 +1,200 @@
+/*
+    Collects a listener's metrics: a LatencyHistogram for each stage a file passes through, and counters of what happened to files,
+    alongside gauges read straight from the pipeline (queue depths, files and uploads in flight, memory reserved) and the retry scheduler.
+    Published over JMX as a ListenerMetricsMXBean, and forwarded to any MetricsListeners added, e.g. to export them elsewhere.
+    Recording never allocates, so it's done on every file.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ListenerMetrics implements MetricsListener, ListenerMetricsMXBean {
+    // Pipeline and retry scheduler the gauges are read from
+    private final UploadPipeline pipeline;
+    private final RetryScheduler retryScheduler;
+    // A histogram for each stage, and a counter for each event, indexed by ordinal
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    // Further listeners each metric is forwarded to, replaced whole when changed so that forwarding iterates an array without allocating
+    private volatile MetricsListener[] listeners = new MetricsListener[0];
+
+    // One constructs a ListenerMetrics with the pipeline and retry scheduler whose gauges it reports
+    public ListenerMetrics(UploadPipeline pipeline, RetryScheduler retryScheduler) {
+        this.pipeline = pipeline;
+        this.retryScheduler = retryScheduler;
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+        for (int i = 0; i < counters.length; i++) counters[i] = new LongAdder();
+    }
+
+    // Adds a listener which each metric is forwarded to as it's recorded
+    public synchronized void addListener(MetricsListener l) {
+        if (l == null) throw new IllegalArgumentException("Provided MetricsListener is null.");
+        MetricsListener[] next = Arrays.copyOf(listeners, listeners.length + 1);
+        next[listeners.length] = l;
+        listeners = next;
+    }
+
+    // Removes a listener
+    public synchronized void removeListener(MetricsListener l) {
+        MetricsListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != l) continue;
+            MetricsListener[] next = new MetricsListener[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            listeners = next;
+            return;
+        }
+    }
+
+    // Records the latency of a stage, in nanoseconds
+    @Override
+    public void latency(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+        for (MetricsListener l : listeners) l.latency(stage, nanos);
+    }
+
+    // Records a counted event
+    @Override
+    public void count(Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+        for (MetricsListener l : listeners) l.count(counter, delta);
+    }
+
+    // Returns the histogram of a stage
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    // Returns the total of a counter
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    @Override
+    public LatencySnapshot getDetectLatency() {
+        return getHistogram(Stage.DETECT).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getLockWaitLatency() {
+        return getHistogram(Stage.LOCK_WAIT).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getMemoryWaitLatency() {
+        return getHistogram(Stage.MEMORY_WAIT).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getParseLatency() {
+        return getHistogram(Stage.PARSE).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getUploadLatency() {
+        return getHistogram(Stage.UPLOAD).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getEndToEndLatency() {
+        return getHistogram(Stage.END_TO_END).snapshot();
+    }
+
+    @Override
+    public long getFilesDetected() {
+        return getCount(Counter.DETECTED);
+    }
+
+    @Override
+    public long getFilesUploaded() {
+        return getCount(Counter.UPLOADED);
+    }
+
+    @Override
+    public long getFilesSkipped() {
+        return getCount(Counter.SKIPPED);
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return getCount(Counter.FAILED);
+    }
+
+    @Override
+    public long getRetries() {
+        return getCount(Counter.RETRIED);
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return getCount(Counter.BYTES_UPLOADED);
+    }
+
+    @Override
+    public long getRequests() {
+        return getCount(Counter.REQUESTS);
+    }
+
+    @Override
+    public long getBatches() {
+        return getCount(Counter.BATCHES);
+    }
+
+    @Override
+    public long getFilesSpilled() {
+        return getCount(Counter.SPILLED);
+    }
+
+    @Override
+    public int getPendingFiles() {
+        return pipeline.getPendingFiles();
+    }
+
+    @Override
+    public int getParseQueueDepth() {
+        return pipeline.getParseQueueDepth();
+    }
+
+    @Override
+    public int getUploadQueueDepth() {
+        return pipeline.getUploadQueueDepth();
+    }
+
+    @Override
+    public int getInFlightFiles() {
+        return pipeline.getInFlight();
+    }
+
+    @Override
+    public int getInFlightUploads() {
+        return pipeline.getInFlightUploads();
+    }
+
+    @Override
+    public long getMemoryReserved() {
+        return pipeline.getMemoryReserved();
+    }
+
+    @Override
+    public long getMemoryBudget() {
+        return pipeline.getMemoryBudget();
+    }
+
+    @Override
+    public int getWaitingRetries() {
+        return retryScheduler.getWaitingRetries();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage s : Stage.values()) sb.append(s).append(": ").append(getHistogram(s).snapshot()).append('\n');
+        for (Counter c : Counter.values()) sb.append(c).append(": ").append(getCount(c)).append('\n');
+        return sb.toString();
+    }
+}
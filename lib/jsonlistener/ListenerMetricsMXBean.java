@@ -0,0 +1,76 @@
+/*
+    The management interface through which a listener's metrics are published over JMX, implemented by ListenerMetrics.
+    Latencies are given in microseconds.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+public interface ListenerMetricsMXBean {
+    // Latency from a file's creation to the listener detecting it
+    LatencySnapshot getDetectLatency();
+
+    // Latency from detection until a file is completely written
+    LatencySnapshot getLockWaitLatency();
+
+    // Latency of waiting for room within the memory budget to parse a file
+    LatencySnapshot getMemoryWaitLatency();
+
+    // Latency of parsing (or validating) a file
+    LatencySnapshot getParseLatency();
+
+    // Latency of each request to the database
+    LatencySnapshot getUploadLatency();
+
+    // Latency from a file's detection until it's uploaded
+    LatencySnapshot getEndToEndLatency();
+
+    // Number of files submitted to the pipeline
+    long getFilesDetected();
+
+    // Number of files uploaded
+    long getFilesUploaded();
+
+    // Number of files skipped, as the database already held their content
+    long getFilesSkipped();
+
+    // Number of files given up on
+    long getFilesFailed();
+
+    // Number of failed uploads scheduled for a retry
+    long getRetries();
+
+    // Number of bytes of the files uploaded
+    long getBytesUploaded();
+
+    // Number of requests made to the database, and how many of them uploaded a batch
+    long getRequests();
+
+    long getBatches();
+
+    // Number of files streamed from disk rather than parsed, as the memory budget was exhausted
+    long getFilesSpilled();
+
+    // Number of files still being written, awaiting the ready-check stage
+    int getPendingFiles();
+
+    // Number of files queued in front of the parse and upload stages
+    int getParseQueueDepth();
+
+    int getUploadQueueDepth();
+
+    // Number of files within the pipeline
+    int getInFlightFiles();
+
+    // Number of requests to the database currently in progress
+    int getInFlightUploads();
+
+    // Number of bytes of the memory budget reserved for documents within the pipeline, and the size of the budget (0 if unlimited)
+    long getMemoryReserved();
+
+    long getMemoryBudget();
+
+    // Number of retries waiting out their backoff
+    int getWaitingRetries();
+}
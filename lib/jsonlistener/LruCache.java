@@ -0,0 +1,30 @@
+/*
+    A map holding at most a fixed number of entries, evicting the least recently used entry when full.
+    Not thread-safe, so callers synchronize on it.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class LruCache<K, V> extends LinkedHashMap<K, V> {
+    // Maximum number of entries held
+    private final int capacity;
+
+    // Constructs an empty cache holding at most capacity entries
+    LruCache(int capacity) {
+        // Access order, so each get moves the entry to the most recently used end
+        super(16, 0.75f, true);
+        if (capacity < 1) throw new IllegalArgumentException("Cache capacity must be at least 1.");
+        this.capacity = capacity;
+    }
+
+    // Evicts the least recently used entry once the cache exceeds its capacity
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > capacity;
+    }
+}
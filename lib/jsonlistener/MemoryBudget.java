@@ -0,0 +1,58 @@
+/*
+    A budget of heap bytes shared by the documents being parsed and uploaded, so a burst of large files can't exhaust the heap.
+    Each file reserves an estimate of the memory its parsed document occupies (its size times an expansion factor) before it's parsed,
+    and releases it once the document is let go. A reservation waits whilst the budget is exhausted, or may be refused so the file is streamed instead.
+    A file larger than the whole budget is admitted once nothing else is reserved, so it's never refused forever.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+public class MemoryBudget {
+    // Number of bytes which may be reserved at once
+    private final long capacity;
+    // Number of bytes currently reserved
+    private long reserved = 0;
+
+    // One constructs a MemoryBudget of the given number of bytes
+    public MemoryBudget(long capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Memory budget must be greater than 0 bytes.");
+        this.capacity = capacity;
+    }
+
+    // Reserves the given number of bytes, waiting until they fit within the budget. Throws InterruptedException if interrupted whilst waiting.
+    public synchronized void reserve(long bytes) throws InterruptedException {
+        while (!fits(bytes)) wait();
+        reserved += bytes;
+    }
+
+    // Reserves the given number of bytes if they fit within the budget now, returning false without reserving them otherwise
+    public synchronized boolean tryReserve(long bytes) {
+        if (!fits(bytes)) return false;
+        reserved += bytes;
+        return true;
+    }
+
+    // Releases bytes previously reserved, waking those waiting for room
+    public synchronized void release(long bytes) {
+        if (bytes <= 0) return;
+        reserved = Math.max(0, reserved - bytes);
+        notifyAll();
+    }
+
+    // Returns true if the given number of bytes may be reserved now
+    private boolean fits(long bytes) {
+        return reserved == 0 || reserved + bytes <= capacity;
+    }
+
+    // Getter for the number of bytes which may be reserved at once
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    // Getter for the number of bytes currently reserved
+    public synchronized long getReserved() {
+        return this.reserved;
+    }
+}
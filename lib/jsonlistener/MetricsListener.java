@@ -0,0 +1,54 @@
+/*
+    Callback notified of the listener's metrics as they're recorded: the latency of each stage a file passes through, and counts of what happened to files.
+    Callbacks are invoked from the listener's threads on every file, so implementations must be thread-safe and quick, and shouldn't allocate.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+public interface MetricsListener {
+    // The stages whose latency is measured
+    enum Stage {
+        // From the file's creation to the listener detecting it (for a file found by a rescan, including any time the listener wasn't running)
+        DETECT,
+        // From detection until the file is completely written (and unlocked)
+        LOCK_WAIT,
+        // Waiting for room within the memory budget to parse the file
+        MEMORY_WAIT,
+        // Parsing (or validating) the file, including hashing it when deduplicating
+        PARSE,
+        // A single request to the database, uploading one file or a batch
+        UPLOAD,
+        // From the file's detection until it's uploaded, including any retries
+        END_TO_END
+    }
+
+    // The events counted
+    enum Counter {
+        // Files submitted to the pipeline
+        DETECTED,
+        // Files uploaded
+        UPLOADED,
+        // Files skipped, as the database already held their content
+        SKIPPED,
+        // Files given up on
+        FAILED,
+        // Failed uploads scheduled for a retry
+        RETRIED,
+        // Bytes of the files uploaded
+        BYTES_UPLOADED,
+        // Requests made to the database
+        REQUESTS,
+        // Requests which uploaded a batch of files
+        BATCHES,
+        // Files streamed from disk rather than parsed, as the memory budget was exhausted
+        SPILLED
+    }
+
+    // Called with the latency of a stage, in nanoseconds
+    void latency(Stage stage, long nanos);
+
+    // Called when a counted event happens, with the amount to add
+    void count(Counter counter, long delta);
+}
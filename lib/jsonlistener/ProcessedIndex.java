@@ -0,0 +1,170 @@
+/*
+    A persistent index of the files which have already been processed (uploaded, or given up on), stored in an AppendOnlyLog.
+    Each file is recorded with its size, modification time and file key, so a rescan of a directory may tell which files are new or changed
+    with a single stat per file. Once enough entries are superseded, the index compacts itself down to the current ones.
+    Files no longer on disk may be removed (see removeMissing), so the index is bounded by the files within the watched directories.
+    Malformed entries (e.g. torn by a crash) are skipped when replaying, so a damaged index never stops the listener from starting.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ProcessedIndex implements Closeable {
+    // Minimum number of superseded entries before the index is compacted
+    private static final int COMPACT_THRESHOLD = 10000;
+
+    // What is known of a processed file: its size, modification time and a hash of its file key (e.g. device and inode)
+    private static final class Entry {
+        final long size;
+        final long modified;
+        final int fileKey;
+
+        Entry(long size, long modified, int fileKey) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && modified == attrs.lastModifiedTime().toMillis() && fileKey == fileKeyHash(attrs);
+        }
+    }
+
+    // The log storing the index entries
+    private final AppendOnlyLog log;
+    // Whether the index file didn't exist before it was opened
+    private final boolean created;
+    // The processed files, keyed by their path
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Number of entries superseded since the index was last compacted
+    private int obsoleteEntries = 0;
+    // Number of malformed entries skipped when replaying the index, including a torn final entry
+    private int skippedEntries = 0;
+
+    // Opens (creating if necessary) the index at the given path, replaying its entries
+    public ProcessedIndex(Path file) throws IOException {
+        this.created = !Files.exists(file);
+        this.log = new AppendOnlyLog(file);
+        if (log.getTruncated() > 0) skippedEntries++;
+        for (String line : log.readLines()) {
+            if (line.startsWith("-\t")) { // A removal: path
+                if (entries.remove(AppendOnlyLog.unescape(line.substring(2))) != null) obsoleteEntries++;
+                obsoleteEntries++;
+                continue;
+            }
+            // A record: size, modified, file key, path
+            String[] fields = line.split("\t", 4);
+            Entry e;
+            try {
+                if (fields.length != 4) throw new NumberFormatException("Expected 4 fields but found " + fields.length + ".");
+                e = new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Integer.parseInt(fields[2]));
+            }
+            catch (NumberFormatException ex) {
+                skippedEntries++;
+                obsoleteEntries++;
+                continue;
+            }
+            if (entries.put(AppendOnlyLog.unescape(fields[3]), e) != null) obsoleteEntries++;
+        }
+    }
+
+    // Returns true if the file has been processed, and hasn't changed since
+    public synchronized boolean isProcessed(Path file, BasicFileAttributes attrs) {
+        Entry e = entries.get(file.toString());
+        return e != null && e.matches(attrs);
+    }
+
+    // Records that the file, with the given attributes, has been processed
+    public synchronized void record(Path file, BasicFileAttributes attrs) throws IOException {
+        Entry e = new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKeyHash(attrs));
+        String p = file.toString();
+        log.append(e.size + "\t" + e.modified + "\t" + e.fileKey + "\t" + AppendOnlyLog.escape(p));
+        if (entries.put(p, e) != null) obsoleteEntries++;
+    }
+
+    // Removes a file from the index, e.g. once it's no longer within the watched directory
+    public synchronized void remove(Path file) throws IOException {
+        String p = file.toString();
+        if (entries.remove(p) == null) return;
+        log.append("-\t" + AppendOnlyLog.escape(p));
+        obsoleteEntries += 2;
+    }
+
+    /* Removes every file which no longer exists from the index, e.g. as another process deleted or moved it, returning the number removed.
+       Each file is checked without holding the index, so recording files carries on meanwhile. Stops early if the thread is interrupted. */
+    public int removeMissing() throws IOException {
+        List<String> paths;
+        synchronized (this) {
+            paths = new ArrayList<>(entries.keySet());
+        }
+        int removed = 0;
+        for (String p : paths) {
+            if (Thread.currentThread().isInterrupted()) break;
+            Path f = Paths.get(p);
+            // notExists is only true when the file is known to be absent, so an unreadable file is kept
+            if (!Files.notExists(f)) continue;
+            synchronized (this) {
+                if (entries.containsKey(p) && Files.notExists(f)) {
+                    remove(f);
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    // Returns true if the index file didn't exist before it was opened, i.e. nothing has ever been recorded
+    public boolean isNew() {
+        return this.created;
+    }
+
+    // Returns the number of malformed entries skipped when the index was opened
+    public int getSkippedEntries() {
+        return this.skippedEntries;
+    }
+
+    // Returns the number of files in the index
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /* Makes every entry appended since the last sync durable with a single fsync.
+       If most of the index's entries are superseded, it's compacted down to the current entries. */
+    public synchronized void sync() throws IOException {
+        if (obsoleteEntries >= COMPACT_THRESHOLD && obsoleteEntries >= entries.size()) {
+            List<String> lines = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Entry> en : entries.entrySet()) {
+                Entry e = en.getValue();
+                lines.add(e.size + "\t" + e.modified + "\t" + e.fileKey + "\t" + AppendOnlyLog.escape(en.getKey()));
+            }
+            log.rewrite(lines);
+            obsoleteEntries = 0;
+        }
+        else log.sync();
+    }
+
+    // Syncs and closes the index
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        log.close();
+    }
+
+    // Hashes the file key of the attributes (e.g. device and inode), or 0 if the file system doesn't provide one
+    private static int fileKeyHash(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key == null ? 0 : key.hashCode();
+    }
+}
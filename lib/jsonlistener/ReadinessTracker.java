@@ -0,0 +1,195 @@
+/*
+    Decides when a newly detected file has been completely written, and so is ready to upload.
+    A file is ready once it's quiescent - its size and modification time are unchanged since the previous check, or it hasn't been modified
+    for a whole check interval - and no other process holds a lock on it (FileChannel.tryLock).
+    Every pending file is rechecked from a single HashedTimerWheel, so thousands of half-written files cost one thread and no sleeping stacks.
+    Modification events (ENTRY_MODIFY) may be passed on through touched(), so a file still being written is never deemed quiescent.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+class ReadinessTracker {
+    // Resolution of the timer wheel, in milliseconds
+    private static final long TICK = 10;
+    // Number of buckets in the timer wheel
+    private static final int WHEEL_SIZE = 512;
+
+    // What is known of a pending file as of its previous check
+    private static final class Pending {
+        final UploadJob job;
+        final Path path;
+        // Size and modification time at the previous check (-1 before the first check)
+        long size = -1;
+        long modified = -1;
+        // Set when a modification event arrives, so the next check doesn't deem the file quiescent
+        volatile boolean touched = false;
+
+        Pending(UploadJob job) {
+            this.job = job;
+            this.path = job.getFile().toPath();
+        }
+    }
+
+    // The Logger object which shall be used to send log messages to
+    private final Logger log;
+    // Notified of the latency from each file's creation to its detection
+    private final MetricsListener metrics;
+    // Interval between checks of a pending file, in milliseconds
+    private final int checkInterval;
+    // Number of checks finding a file not yet ready before it's given up on
+    private final int maxChecks;
+    // Called with each file found ready, and each file given up on
+    private final Consumer<UploadJob> ready;
+    private final BiConsumer<UploadJob, Throwable> failed;
+    // The files not yet ready, keyed by their path
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    // Timer wheel from which every pending file is rechecked
+    private final HashedTimerWheel wheel;
+    // Set once shut down, after which no further files are accepted
+    private boolean stopped = false;
+
+    /* One constructs a ReadinessTracker with the log and metrics listener to write to, the interval between checks and number of checks before giving up,
+       and the functions called with each file once it's ready or given up on. */
+    ReadinessTracker(Logger log, MetricsListener metrics, int checkInterval, int maxChecks, Consumer<UploadJob> ready, BiConsumer<UploadJob, Throwable> failed) {
+        this.log = log;
+        this.metrics = metrics;
+        this.checkInterval = checkInterval;
+        this.maxChecks = maxChecks;
+        this.ready = ready;
+        this.failed = failed;
+        this.wheel = new HashedTimerWheel(Math.min(TICK, checkInterval), WHEEL_SIZE, UploadPipeline.threadFactory("json-listener-ready"));
+    }
+
+    // Starts the timer wheel
+    void start() {
+        wheel.start();
+    }
+
+    // Begins tracking a file, checking it straight away. Throws RejectedExecutionException if shut down.
+    void track(UploadJob job) {
+        Pending p = new Pending(job);
+        synchronized (this) {
+            if (stopped) throw new RejectedExecutionException("Readiness tracker has been shut down.");
+            pending.put(p.path.toString(), p);
+        }
+        try {
+            wheel.schedule(() -> check(p), 0);
+        }
+        catch (RejectedExecutionException e) { // Shut down meanwhile, which gives the file its final check
+        }
+    }
+
+    // Called when a modification event arrives for a file, which is then still being written
+    void touched(Path file) {
+        Pending p = pending.get(file.toString());
+        if (p != null) p.touched = true;
+    }
+
+    /* Stops the timer wheel, then checks every file still pending a final time: those ready are passed on, and the rest are given up on.
+       No further files are accepted. */
+    void shutdown() throws InterruptedException {
+        synchronized (this) {
+            stopped = true;
+        }
+        wheel.stop();
+        for (Pending p : new ArrayList<>(pending.values())) {
+            if (!pending.remove(p.path.toString(), p)) continue;
+            try {
+                if (isReady(p)) ready.accept(p.job);
+                else failed.accept(p.job, new IOException("Listener stopped before the file was completely written."));
+            }
+            catch (IOException e) { // File removed, or unreadable
+                failed.accept(p.job, e);
+            }
+        }
+    }
+
+    // Returns the number of files not yet ready
+    int size() {
+        return pending.size();
+    }
+
+    // Checks a pending file on the wheel's thread, passing it on if ready, or else rechecking it after the check interval
+    private void check(Pending p) {
+        boolean ready;
+        try {
+            ready = isReady(p);
+        }
+        catch (IOException e) { // File removed, or unreadable
+            if (pending.remove(p.path.toString(), p)) failed.accept(p.job, e);
+            return;
+        }
+        if (ready) {
+            if (pending.remove(p.path.toString(), p)) this.ready.accept(p.job);
+            return;
+        }
+        int tries = p.job.incrementLockedTries();
+        if (tries == 1) log.log(Level.WARNING, "New file: {0} is still being written!", p.path);
+        if (tries > maxChecks) {
+            if (pending.remove(p.path.toString(), p)) failed.accept(p.job, new IOException("File still being written after " + maxChecks + " checks."));
+            return;
+        }
+        try {
+            wheel.schedule(() -> check(p), checkInterval);
+        }
+        catch (RejectedExecutionException e) { // Shutting down, which gives the file its final check
+        }
+    }
+
+    /* Determines whether a file is ready: quiescent, and not locked by another process. Updates the size and modification time known for it.
+       Throws an IOException if the file can't be read, e.g. as it has been removed. */
+    private boolean isReady(Pending p) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(p.path, BasicFileAttributes.class);
+        long size = attrs.size();
+        long modified = attrs.lastModifiedTime().toMillis();
+        // On the first check of a newly created file, record how long it took to detect
+        if (p.size < 0 && p.job.getAttempts() == 0) {
+            long created = attrs.creationTime().toMillis();
+            if (created <= p.job.getDetectedMillis()) metrics.latency(MetricsListener.Stage.DETECT, (p.job.getDetectedMillis() - created) * 1000000);
+        }
+        p.job.setSize(size);
+        boolean unchanged = !p.touched && size == p.size && modified == p.modified;
+        p.touched = false;
+        p.size = size;
+        p.modified = modified;
+        // A file not modified within the last interval (e.g. one moved into the directory whole) needn't wait for a second check
+        boolean quiescent = unchanged || System.currentTimeMillis() - modified >= checkInterval;
+        return quiescent && !isLocked(p.path);
+    }
+
+    /* Determines whether another process holds a lock on a file, by attempting to take a shared lock on it.
+       Where the file system refuses to open a file being written (e.g. Windows sharing violations), that too counts as locked. */
+    private static boolean isLocked(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        }
+        catch (OverlappingFileLockException e) { // Locked within this process
+            return true;
+        }
+        catch (IOException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+    A persistent journal of the files awaiting a retry of their upload, stored in an AppendOnlyLog.
+    Each failure appends an entry and each resolution (success or giving up) appends a removal, so the journal replays
+    to the outstanding files after a restart. Once enough entries are resolved, the journal compacts itself down to the outstanding ones.
+    Malformed entries (e.g. torn by a crash) are skipped when replaying, so a damaged journal never stops the listener from starting.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RetryJournal implements Closeable {
+    // Minimum number of resolved entries before the journal is compacted
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    // The log storing the journal entries
+    private final AppendOnlyLog log;
+    // The jobs awaiting a retry, keyed by the path of their file, as of the latest entries
+    private final Map<String, UploadJob> outstanding = new LinkedHashMap<>();
+    // Number of entries made obsolete since the journal was last compacted
+    private int obsoleteEntries = 0;
+    // Number of malformed entries skipped when replaying the journal, including a torn final entry
+    private int skippedEntries = 0;
+
+    // Opens (creating if necessary) the journal at the given path, replaying its entries to find the outstanding files
+    public RetryJournal(Path file) throws IOException {
+        this.log = new AppendOnlyLog(file);
+        if (log.getTruncated() > 0) skippedEntries++;
+        for (String line : log.readLines()) {
+            String[] fields = line.split("\t", 4);
+            if (fields[0].equals("+") && fields.length == 4) { // A failure: attempts, database path, file
+                int attempts;
+                try {
+                    attempts = Integer.parseInt(fields[1]);
+                }
+                catch (NumberFormatException e) {
+                    skippedEntries++;
+                    obsoleteEntries++;
+                    continue;
+                }
+                String dbPath = AppendOnlyLog.unescape(fields[2]);
+                String f = AppendOnlyLog.unescape(fields[3]);
+                if (outstanding.put(f, new UploadJob(new File(f), dbPath.isEmpty() ? null : dbPath, attempts)) != null) obsoleteEntries++;
+            }
+            else if (fields[0].equals("-") && fields.length == 2) { // A resolution: file
+                if (outstanding.remove(AppendOnlyLog.unescape(fields[1])) != null) obsoleteEntries++;
+                obsoleteEntries++;
+            }
+            else {
+                skippedEntries++;
+                obsoleteEntries++;
+            }
+        }
+    }
+
+    // Records that the job's upload failed and shall be retried
+    public synchronized void recordFailure(UploadJob job) throws IOException {
+        String f = job.getFile().getPath();
+        log.append(failureEntry(job));
+        if (outstanding.put(f, job) != null) obsoleteEntries++;
+    }
+
+    // Records that the file no longer awaits a retry, either as it has been uploaded or as it has been given up on
+    public synchronized void resolve(File file) throws IOException {
+        String f = file.getPath();
+        if (outstanding.remove(f) == null) return;
+        log.append("-\t" + AppendOnlyLog.escape(f));
+        // Both the failure entry and this resolution are now obsolete
+        obsoleteEntries += 2;
+    }
+
+    // Returns the jobs currently awaiting a retry
+    public synchronized List<UploadJob> getOutstanding() {
+        return new ArrayList<>(outstanding.values());
+    }
+
+    // Returns the number of malformed entries skipped when the journal was opened
+    public int getSkippedEntries() {
+        return this.skippedEntries;
+    }
+
+    // Returns true if the file is currently awaiting a retry
+    public synchronized boolean isOutstanding(File file) {
+        return outstanding.containsKey(file.getPath());
+    }
+
+    /* Makes every entry appended since the last sync durable with a single fsync.
+       If most of the journal's entries are obsolete, it's compacted down to the outstanding entries. */
+    public synchronized void sync() throws IOException {
+        if (obsoleteEntries >= COMPACT_THRESHOLD && obsoleteEntries >= outstanding.size()) {
+            List<String> lines = new ArrayList<>(outstanding.size());
+            for (UploadJob job : outstanding.values()) lines.add(failureEntry(job));
+            log.rewrite(lines);
+            obsoleteEntries = 0;
+        }
+        else log.sync();
+    }
+
+    // Syncs and closes the journal
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        log.close();
+    }
+
+    // Formats the entry recording a failed job: attempts, database path (empty for the root) and file, separated by tabs
+    private static String failureEntry(UploadJob job) {
+        String dbPath = job.getDbPath() == null ? "" : job.getDbPath();
+        return "+\t" + job.getAttempts() + "\t" + AppendOnlyLog.escape(dbPath) + "\t" + AppendOnlyLog.escape(job.getFile().getPath());
+    }
+}
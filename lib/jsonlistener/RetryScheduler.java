@@ -0,0 +1,230 @@
+/*
+    Retries failed uploads in the background, with exponential backoff and jitter, recording each pending retry in a RetryJournal.
+    Retries outstanding in the journal from a previous run are resubmitted on start. When an upload succeeds after failures
+    (i.e. the database has recovered), every waiting retry is resubmitted at once rather than waiting out its backoff.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.MalformedJsonException;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class RetryScheduler {
+    // Journal recording every pending retry
+    private final RetryJournal journal;
+    // Resubmits a job to the upload pipeline
+    private final Consumer<UploadJob> resubmit;
+    // The Logger object which shall be used to send log messages to
+    private final Logger log;
+    // Maximum number of retries of a file before it's given up on
+    private int maxRetries = 10;
+    // Backoff before the first retry, doubling for each further retry, in milliseconds
+    private int retryBaseDelay = 1000;
+    // Maximum backoff between retries, in milliseconds
+    private int retryMaxDelay = 300000;
+    // Interval between each fsync of the journal, in milliseconds
+    private int journalSyncInterval = 100;
+    // Timer on which retries and journal syncs are scheduled, constructed by start()
+    private volatile ScheduledThreadPoolExecutor timer;
+    // The retries currently waiting out their backoff
+    private final Map<UploadJob, ScheduledFuture<?>> waiting = new ConcurrentHashMap<>();
+    // Set when an upload fails, cleared by the next successful upload
+    private volatile boolean failing = false;
+
+    // One constructs a RetryScheduler with the journal to record retries in, the function resubmitting a job to the pipeline and the log to write to
+    public RetryScheduler(RetryJournal journal, Consumer<UploadJob> resubmit, Logger log) {
+        this.journal = journal;
+        this.resubmit = resubmit;
+        this.log = log;
+    }
+
+    // Starts the timer, resubmitting any retries left outstanding in the journal by a previous run
+    public void start() {
+        if (timer != null) throw new IllegalStateException("Retry scheduler already started!");
+        ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, UploadPipeline.threadFactory("json-listener-retry"));
+        t.setRemoveOnCancelPolicy(true);
+        t.scheduleWithFixedDelay(this::syncJournal, journalSyncInterval, journalSyncInterval, TimeUnit.MILLISECONDS);
+        timer = t;
+        for (UploadJob job : journal.getOutstanding()) {
+            log.info("Replaying retry of file " + job.toString() + " from the retry journal.");
+            t.execute(() -> resubmit.accept(job));
+        }
+    }
+
+    /* Stops the timer. Retries still waiting remain in the journal, which is synced, so they're replayed on the next start.
+       Any retry being resubmitted at the time is interrupted. */
+    public void stop() throws InterruptedException {
+        if (timer == null) return;
+        timer.shutdownNow();
+        timer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        timer = null;
+        waiting.clear();
+        syncJournal();
+    }
+
+    /* Called when a job fails. If the failure is transient and the file has retries left, the retry is journaled and scheduled after a backoff,
+       returning true. Otherwise the file is given up on and removed from the journal, returning false. */
+    public boolean failed(UploadJob job, Throwable cause) {
+        UploadJob next = job.retry();
+        if (!isRetryable(cause)) {
+            resolve(job);
+            return false;
+        }
+        failing = true;
+        if (next.getAttempts() > maxRetries) {
+            resolve(job);
+            return false;
+        }
+        try {
+            journal.recordFailure(next);
+        }
+        catch (IOException e) {
+            log.warning("Failed to journal retry of file " + job.toString() + ", it won't survive a restart. " + e.toString());
+        }
+        long delay = backoff(next.getAttempts());
+        log.log(Level.INFO, "Retrying file {0} in {1} ms (retry {2} of {3}).", new Object[] { job, delay, next.getAttempts(), maxRetries });
+        // If stopped, the retry stays in the journal for the next start
+        ScheduledThreadPoolExecutor t = timer;
+        if (t == null) return true;
+        try {
+            waiting.put(next, t.schedule(() -> fire(next), delay, TimeUnit.MILLISECONDS));
+        }
+        catch (RejectedExecutionException e) {
+            waiting.remove(next);
+        }
+        return true;
+    }
+
+    /* Called when a job is uploaded. Resolves its journal entry if it was a retry,
+       and if uploads had been failing, resubmits every waiting retry immediately since the database has recovered. */
+    public void uploaded(UploadJob job) {
+        if (job.getAttempts() > 0) resolve(job);
+        if (!failing) return;
+        failing = false;
+        ScheduledThreadPoolExecutor t = timer;
+        if (t == null || waiting.isEmpty()) return;
+        log.info("Database recovered, resubmitting " + waiting.size() + " waiting retries.");
+        for (Map.Entry<UploadJob, ScheduledFuture<?>> entry : waiting.entrySet()) {
+            UploadJob retry = entry.getKey();
+            // Only resubmit retries which hadn't already started
+            if (!entry.getValue().cancel(false)) {
+                waiting.remove(retry);
+                continue;
+            }
+            try {
+                t.execute(() -> fire(retry));
+            }
+            catch (RejectedExecutionException e) {
+                waiting.remove(retry);
+            }
+        }
+    }
+
+    // Called when a job's upload is skipped, as the database already holds its content. Resolves its journal entry if it was a retry.
+    public void skipped(UploadJob job) {
+        if (job.getAttempts() > 0) resolve(job);
+    }
+
+    // Resubmits a waiting retry to the pipeline
+    private void fire(UploadJob job) {
+        waiting.remove(job);
+        resubmit.accept(job);
+    }
+
+    // Removes a file from the journal
+    private void resolve(UploadJob job) {
+        try {
+            journal.resolve(job.getFile());
+        }
+        catch (IOException e) {
+            log.warning("Failed to journal resolution of file " + job.toString() + ". " + e.toString());
+        }
+    }
+
+    // Syncs the journal, making recent entries durable
+    private void syncJournal() {
+        try {
+            journal.sync();
+        }
+        catch (IOException e) {
+            log.warning("Failed to sync the retry journal. " + e.toString());
+        }
+    }
+
+    /* Computes the backoff before the given retry: the base delay doubled for each previous retry, capped at the maximum delay,
+       with "equal jitter" (a random delay between half and all of it), so that retries of files which failed together spread out. */
+    private long backoff(int retry) {
+        long delay = Math.min(retryMaxDelay, (long) retryBaseDelay << Math.min(retry - 1, 30));
+        return ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+    }
+
+    // Determines whether a failure may succeed if retried: files which are missing or aren't valid JSON never shall
+    static boolean isRetryable(Throwable cause) {
+        return !(cause instanceof JsonParseException || cause instanceof EOFException || cause instanceof FileNotFoundException
+                || cause instanceof NoSuchFileException || cause instanceof MalformedJsonException);
+    }
+
+    /*
+        Getter and setter methods. Take effect for retries scheduled afterwards.
+    */
+
+    // Setter for max retries
+    public void setMaxRetries(int x) {
+        if (x < 0) throw new IllegalArgumentException("Maximum retries must be at least 0.");
+        this.maxRetries = x;
+    }
+
+    // Setter for retry base delay
+    public void setRetryBaseDelay(int x) {
+        if (x <= 0) throw new IllegalArgumentException("Retry base delay must be greater than 0 ms.");
+        this.retryBaseDelay = x;
+    }
+
+    // Setter for retry max delay
+    public void setRetryMaxDelay(int x) {
+        if (x <= 0) throw new IllegalArgumentException("Retry max delay must be greater than 0 ms.");
+        this.retryMaxDelay = x;
+    }
+
+    // Setter for journal sync interval, which takes effect on the next start()
+    public void setJournalSyncInterval(int x) {
+        if (x <= 0) throw new IllegalArgumentException("Journal sync interval must be greater than 0 ms.");
+        this.journalSyncInterval = x;
+    }
+
+    // Getter for max retries
+    public int getMaxRetries() {
+        return this.maxRetries;
+    }
+
+    // Getter for retry base delay
+    public int getRetryBaseDelay() {
+        return this.retryBaseDelay;
+    }
+
+    // Getter for retry max delay
+    public int getRetryMaxDelay() {
+        return this.retryMaxDelay;
+    }
+
+    // Getter for journal sync interval
+    public int getJournalSyncInterval() {
+        return this.journalSyncInterval;
+    }
+
+    // Getter for the number of retries currently waiting out their backoff
+    public int getWaitingRetries() {
+        return waiting.size();
+    }
+}
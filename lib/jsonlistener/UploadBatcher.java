@@ -0,0 +1,87 @@
+/*
+    Accumulates parsed UploadJobs into batches, so many small files may be uploaded in a single request.
+    A batch is dispatched once it reaches the maximum count or size, or once its first job has lingered for the linger time.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+class UploadBatcher {
+    // Maximum number of jobs within a batch
+    private final int maxCount;
+    // Maximum total size of the files within a batch, in bytes
+    private final long maxBytes;
+    // Maximum time the first job of a batch waits for the batch to fill, in milliseconds
+    private final int lingerMs;
+    // Timer on which linger deadlines are scheduled
+    private final ScheduledExecutorService timer;
+    // Receives each completed batch
+    private final Consumer<List<UploadJob>> dispatcher;
+    // The batch currently being filled, and the total size of its files
+    private List<UploadJob> pending = new ArrayList<>();
+    private long pendingBytes = 0;
+    // Linger deadline of the batch currently being filled
+    private ScheduledFuture<?> lingerTask;
+
+    UploadBatcher(int maxCount, long maxBytes, int lingerMs, ScheduledExecutorService timer, Consumer<List<UploadJob>> dispatcher) {
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.lingerMs = lingerMs;
+        this.timer = timer;
+        this.dispatcher = dispatcher;
+    }
+
+    // Adds a job to the current batch, dispatching the batch if it's now full
+    void add(UploadJob job) {
+        List<UploadJob> full = null;
+        synchronized (this) {
+            pending.add(job);
+            pendingBytes += job.getFile().length();
+            if (pending.size() >= maxCount || pendingBytes >= maxBytes) full = takePending();
+            else if (pending.size() == 1) scheduleLinger();
+        }
+        // Dispatch outside the lock, as the dispatcher may block on a full upload stage
+        if (full != null) dispatcher.accept(full);
+    }
+
+    // Dispatches the current batch immediately, if it holds any jobs
+    void flush() {
+        List<UploadJob> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            batch = takePending();
+        }
+        dispatcher.accept(batch);
+    }
+
+    // Schedules the linger deadline for a newly started batch. If the timer has shut down, the batch is left for flush().
+    private void scheduleLinger() {
+        try {
+            lingerTask = timer.schedule(this::flush, lingerMs, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            lingerTask = null;
+        }
+    }
+
+    // Removes and returns the current batch, starting a new empty one. Must hold the lock.
+    private List<UploadJob> takePending() {
+        List<UploadJob> batch = pending;
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+    A single JSON file travelling through the UploadPipeline.
+    Carries the file, its destination within the database and the state accumulated by each stage.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.io.File;
+import java.util.Map;
+
+public class UploadJob {
+    // The JSON file to upload
+    private final File file;
+    // The directory in the database to POST the file to
+    private final String dbPath;
+    // Number of previous attempts at uploading the file which failed
+    private final int attempts;
+    // Number of times the file has been found locked by the ready-check stage
+    private int lockedTries = 0;
+    // When the file was first detected, as System.nanoTime() and as wall clock time in milliseconds, kept across retries
+    private long detectedNanos;
+    private long detectedMillis;
+    // When this attempt was submitted to the pipeline, as System.nanoTime()
+    private long submittedNanos;
+    // Size of the file in bytes, as seen by the ready-check stage
+    private long size = -1;
+    // The parsed document, set by the parse stage and released once uploaded
+    private Map<String, Object> document;
+    // Hash of the file's content, set by the parse stage when uploads are deduplicated
+    private String contentHash;
+    // Location in the database the document is written to when uploading deltas, and the update writing it, set by the parse stage
+    private String target;
+    private Map<String, Object> update;
+    // Bytes reserved from the pipeline's memory budget for the parsed document, set by the parse stage and released with the document
+    private long reservedBytes = 0;
+    // Whether the file is streamed from disk rather than parsed, as the memory budget was exhausted
+    private boolean spilled = false;
+
+    // One constructs an UploadJob with the File to upload and the directory in the database to POST it to
+    public UploadJob(File file, String dbPath) {
+        this(file, dbPath, 0);
+    }
+
+    // Constructs an UploadJob for a file which has already failed to upload the given number of times
+    UploadJob(File file, String dbPath, int attempts) {
+        if (file == null) throw new IllegalArgumentException("Provided File is null.");
+        this.file = file;
+        this.dbPath = dbPath;
+        this.attempts = attempts;
+    }
+
+    // Constructs a fresh UploadJob to retry this job's file, counting this job as a failed attempt
+    UploadJob retry() {
+        UploadJob next = new UploadJob(file, dbPath, attempts + 1);
+        next.detectedNanos = detectedNanos;
+        next.detectedMillis = detectedMillis;
+        return next;
+    }
+
+    // Records another locked poll of the file, returning the total so far
+    int incrementLockedTries() {
+        return ++lockedTries;
+    }
+
+    // Records the time this attempt was submitted to the pipeline, which is also the time of detection unless this is a retry
+    void submitted() {
+        submittedNanos = System.nanoTime();
+        if (detectedNanos != 0) return;
+        detectedNanos = submittedNanos;
+        detectedMillis = System.currentTimeMillis();
+    }
+
+    // Setter for the size of the file
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    // Setter for the parsed document
+    void setDocument(Map<String, Object> document) {
+        this.document = document;
+    }
+
+    // Setter for the content hash
+    void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    // Setter for the delta target location and the update (whole document or changes only) writing it
+    void setUpdate(String target, Map<String, Object> update) {
+        this.target = target;
+        this.update = update;
+    }
+
+    // Setter for the bytes reserved from the memory budget
+    void setReservedBytes(long reservedBytes) {
+        this.reservedBytes = reservedBytes;
+    }
+
+    // Returns the bytes reserved from the memory budget, which are then no longer held by the job
+    long takeReservedBytes() {
+        long bytes = reservedBytes;
+        reservedBytes = 0;
+        return bytes;
+    }
+
+    // Setter for whether the file is streamed from disk as the memory budget was exhausted
+    void setSpilled(boolean spilled) {
+        this.spilled = spilled;
+    }
+
+    // Getter for the file
+    public File getFile() {
+        return this.file;
+    }
+
+    // Getter for the database directory
+    public String getDbPath() {
+        return this.dbPath;
+    }
+
+    // Getter for the number of previous failed attempts
+    public int getAttempts() {
+        return this.attempts;
+    }
+
+    // Getter for the number of locked polls
+    public int getLockedTries() {
+        return this.lockedTries;
+    }
+
+    // Getter for when the file was first detected, as System.nanoTime()
+    public long getDetectedNanos() {
+        return this.detectedNanos;
+    }
+
+    // Getter for when the file was first detected, as wall clock time in milliseconds
+    public long getDetectedMillis() {
+        return this.detectedMillis;
+    }
+
+    // Getter for when this attempt was submitted to the pipeline, as System.nanoTime()
+    public long getSubmittedNanos() {
+        return this.submittedNanos;
+    }
+
+    // Getter for the size of the file in bytes, as seen by the ready-check stage (-1 before then)
+    public long getSize() {
+        return this.size;
+    }
+
+    // Getter for whether the file is streamed from disk rather than parsed, as the memory budget was exhausted
+    public boolean isSpilled() {
+        return this.spilled;
+    }
+
+    // Getter for the parsed document (null before the parse stage and after upload)
+    public Map<String, Object> getDocument() {
+        return this.document;
+    }
+
+    // Getter for the content hash (null unless uploads are deduplicated)
+    public String getContentHash() {
+        return this.contentHash;
+    }
+
+    // Getter for the location in the database the document is written to (null unless uploading deltas)
+    public String getTarget() {
+        return this.target;
+    }
+
+    // Getter for the multi-location update writing the document (null unless uploading deltas)
+    public Map<String, Object> getUpdate() {
+        return this.update;
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
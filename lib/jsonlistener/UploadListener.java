@@ -0,0 +1,19 @@
+/*
+    Callback notified by the UploadPipeline when a job leaves it, either uploaded, skipped or failed.
+    Callbacks are invoked from the pipeline's worker threads, so implementations must be thread-safe.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+public interface UploadListener {
+    // Called once the job's file has been successfully POSTed to the database
+    void uploaded(UploadJob job);
+
+    // Called when the job's file needn't be uploaded, as the database already holds its content or the file is no longer on disk
+    void skipped(UploadJob job);
+
+    // Called when the job could not be uploaded, with the reason for the failure
+    void failed(UploadJob job, Throwable cause);
+}
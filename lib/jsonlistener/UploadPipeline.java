@@ -0,0 +1,984 @@
+/*
+    A staged pipeline which takes newly detected JSON files through ready-check -> parse -> upload.
+    The ready-check stage is a ReadinessTracker, which waits for each file to be completely written from a single timer wheel thread.
+    The other stages each run on their own bounded executor, and hand-offs between stages block when the next stage's queue is full,
+    so a burst of files applies backpressure to the detector rather than spawning unbounded threads.
+    Likewise, if a MemoryBudget is configured, the parse stage waits for room within it before building each document, so a burst of large files can't exhaust the heap.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import com.google.gson.JsonSyntaxException;
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.error.JacksonUtilityException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import lib.firebasepostjson.FirebasePostJson;
+import lib.firebasepostjson.lib.FanOutUploader;
+import lib.firebasepostjson.lib.FirebaseConnection;
+import lib.firebasepostjson.lib.JsonDiff;
+import lib.firebasepostjson.lib.JsonToMap;
+import lib.firebasepostjson.lib.JsonTransform;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class UploadPipeline {
+    // Metrics listener used until one is set, which discards every metric
+    private static final MetricsListener NO_METRICS = new MetricsListener() {
+        @Override
+        public void latency(Stage stage, long nanos) {
+        }
+
+        @Override
+        public void count(Counter counter, long delta) {
+        }
+    };
+    // Longest shutdown waits for the requests still in flight once the upload stage has finished, in milliseconds (twice a request's own timeout)
+    private static final long SHUTDOWN_REQUEST_TIMEOUT = 120000;
+    // Rejection policy used between stages: wait for space in the next stage's queue instead of failing
+    private static final RejectedExecutionHandler BLOCK_WHEN_FULL = (r, executor) -> {
+        if (executor.isShutdown()) throw new RejectedExecutionException("Stage has been shut down.");
+        try {
+            executor.getQueue().put(r);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for stage capacity.", e);
+        }
+    };
+
+    // FirebaseConnection object which provides a firebase4j connection to the database
+    private final FirebaseConnection dbConnection;
+    // The Logger object which shall be used to send log messages to
+    private final Logger log;
+    // Notified of every job that leaves the pipeline
+    private final UploadListener listener;
+    // Number of threads parsing JSON files
+    private int parseThreads = 2;
+    // Number of concurrent uploads to the database
+    private int uploadThreads = 4;
+    // Capacity of the queue in front of the parse and upload stages
+    private int stageQueueCapacity = 1000;
+    // Maximum number of files which may wait in the ready-check stage (including locked files) before submit blocks
+    private int maxPendingFiles = 10000;
+    // Number of checks finding a file still being written (or locked) before it's given up on
+    private int maxLockedFileTries = 100;
+    // Number of milliseconds between each check of a file still being written, over which it must remain unchanged to be ready
+    private int lockedFilePollCooldown = 100;
+    // Maximum number of files uploaded together in one request (1 disables batching)
+    private int batchSize = 1;
+    // Maximum total size of the files uploaded together in one request, in bytes
+    private long batchBytes = 4 * 1024 * 1024;
+    // Maximum time a file waits for its batch to fill before the batch is uploaded anyway, in milliseconds
+    private int batchLinger = 50;
+    // Whether files are validated by streaming through them and uploaded straight from disk, rather than parsed into a Map
+    private boolean streamingUploads = false;
+    // Whether uploads are sent through the connection's asynchronous transport, so upload threads don't wait for responses
+    private boolean asyncUploads = false;
+    // Size in bytes at which a file is uploaded as many parts in parallel rather than in one request (0 disables)
+    private long fanOutThreshold = 0;
+    // Number of heap bytes the documents within the pipeline may occupy at once (0 for no limit)
+    private long memoryBudgetBytes = 0;
+    // Estimated ratio of the memory a parsed document occupies to the size of its file
+    private double memoryExpansion = 6;
+    // Whether a file which doesn't fit within the memory budget is streamed from disk rather than waiting for room, where it may be
+    private boolean memorySpill = false;
+    // The memory budget, constructed by start() if limited
+    private volatile MemoryBudget memoryBudget;
+    // Reshapes each document as it's parsed, e.g. to drop the fields which needn't be uploaded (null uploads documents as they are)
+    private volatile JsonTransform transform;
+    // Uploads the files at or above the fan-out threshold
+    private final FanOutUploader fanOut;
+    // Notified of the latency of each stage and of what happened to each file
+    private MetricsListener metrics = NO_METRICS;
+    // Requests to the database currently in progress, each a registered party, besides the party of shutdown() waiting for them to end
+    private final Phaser inFlightUploads = new Phaser(1);
+    // Phase of inFlightUploads shutdown() last arrived at, so a shutdown which timed out waiting for it isn't counted twice
+    private int shutdownPhase = -1;
+    // Hashes of the files uploaded, used to skip byte-identical files (null disables deduplication)
+    private ContentHashCache dedupCache;
+    // Whether each file is written to a location named after it, sending only what changed since the previous version uploaded there, as set for the next start()
+    private boolean nextDeltaUploads = false;
+    // Whether the running pipeline uploads deltas, fixed by start() so every job in flight (and the caches below) agree on the mode
+    private volatile boolean deltaUploads = false;
+    // Maximum number of previous versions held to compute deltas against
+    private int deltaCacheSize = 1000;
+    // The previous version uploaded to each delta target location, constructed by start()
+    private LruCache<String, Map<String, Object>> previousVersions;
+    // The content hash of the version last uploaded to each delta target location when deduplicating (guarded by previousVersions), constructed by start()
+    private LruCache<String, String> previousHashes;
+    // The job holding each delta target location from its parse until it leaves the pipeline, so versions written there are diffed one at a time (guarded by itself)
+    private final Map<String, UploadJob> deltaTargets = new HashMap<>();
+    // Stages, constructed by start()
+    private volatile ReadinessTracker readyStage;
+    private volatile ThreadPoolExecutor parseStage;
+    private volatile ThreadPoolExecutor uploadStage;
+    // Timer for batch linger deadlines and the batcher itself, only constructed when batching
+    private ScheduledThreadPoolExecutor batchTimer;
+    private UploadBatcher batcher;
+    // Bounds the number of files waiting in the ready-check stage
+    private Semaphore pendingPermits;
+    // Number of jobs submitted which have not yet left the pipeline
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Paths of the files of those jobs, so a file is never within the pipeline twice
+    private final Set<String> inFlightFiles = ConcurrentHashMap.newKeySet();
+
+    // One constructs an UploadPipeline with the connection to POST through, the log to write to and the listener to notify of results
+    public UploadPipeline(FirebaseConnection con, Logger log, UploadListener listener) {
+        if (con == null) throw new IllegalArgumentException("Provided FirebaseConnection is null.");
+        if (listener == null) throw new IllegalArgumentException("Provided UploadListener is null.");
+        this.dbConnection = con;
+        this.log = log;
+        this.listener = listener;
+        this.fanOut = new FanOutUploader(con);
+    }
+
+    /* Constructs the stage executors. maxThreads is the thread budget available to the pipeline,
+       an IllegalStateException is thrown if the configured stages would exceed it. */
+    public void start(int maxThreads) {
+        if (readyStage != null) throw new IllegalStateException("Pipeline already started!");
+        // One ready-check thread, plus the parse and upload workers, plus a linger timer if batching
+        int threads = 1 + parseThreads + uploadThreads + (batchSize > 1 ? 1 : 0);
+        if (threads > maxThreads) throw new IllegalStateException("Pipeline requires " + threads + " threads - shall exceed maximum threads!");
+        pendingPermits = new Semaphore(maxPendingFiles);
+        memoryBudget = memoryBudgetBytes > 0 ? new MemoryBudget(memoryBudgetBytes) : null;
+        deltaUploads = nextDeltaUploads;
+        if (deltaUploads) {
+            previousVersions = new LruCache<>(deltaCacheSize);
+            previousHashes = new LruCache<>(deltaCacheSize);
+        }
+        parseStage = newStage("json-listener-parse", parseThreads);
+        uploadStage = newStage("json-listener-upload", uploadThreads);
+        if (batchSize > 1) {
+            batchTimer = new ScheduledThreadPoolExecutor(1, threadFactory("json-listener-batch"));
+            batcher = new UploadBatcher(batchSize, batchBytes, batchLinger, batchTimer,
+                    batch -> handOff(uploadStage, () -> uploadBatch(batch), batch));
+        }
+        readyStage = new ReadinessTracker(log, metrics, lockedFilePollCooldown, maxLockedFileTries, this::ready, this::notReady);
+        readyStage.start();
+    }
+
+    /* Submits a newly detected file to the pipeline. Blocks while maxPendingFiles files are already waiting to become ready.
+       Returns false, without submitting, if the file is already within the pipeline. Throws InterruptedException if interrupted while waiting. */
+    public boolean submit(UploadJob job) throws InterruptedException {
+        ReadinessTracker tracker = readyStage;
+        if (tracker == null) throw new IllegalStateException("Pipeline not started!");
+        String path = job.getFile().getPath();
+        if (!inFlightFiles.add(path)) return false;
+        try {
+            pendingPermits.acquire();
+        }
+        catch (InterruptedException e) {
+            inFlightFiles.remove(path);
+            throw e;
+        }
+        inFlight.incrementAndGet();
+        job.submitted();
+        metrics.count(MetricsListener.Counter.DETECTED, 1);
+        try {
+            tracker.track(job);
+        }
+        catch (RejectedExecutionException e) { // Pipeline shutting down, so the file never entered it
+            pendingPermits.release();
+            fail(job, e);
+        }
+        return true;
+    }
+
+    /* Stops accepting new files and waits for the files already in the pipeline to finish, stage by stage.
+       Files still being written when the ready-check stage shuts down are reported as failed. */
+    public void shutdown() throws InterruptedException {
+        ReadinessTracker tracker = readyStage;
+        if (tracker == null) return;
+        // Drain stages in pipeline order, so no stage receives work after it has been shut down
+        tracker.shutdown();
+        parseStage.shutdown();
+        parseStage.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        // No more files shall be parsed, so upload whatever remains in the current batch
+        if (batcher != null) {
+            batchTimer.shutdown();
+            batchTimer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            batcher.flush();
+            batcher = null;
+            batchTimer = null;
+        }
+        uploadStage.shutdown();
+        uploadStage.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        // Asynchronous uploads (and the individual uploads of a rejected batch) are still in flight after their upload threads finish
+        int phase = inFlightUploads.getPhase();
+        if (phase != shutdownPhase) {
+            shutdownPhase = phase;
+            inFlightUploads.arrive();
+        }
+        try {
+            inFlightUploads.awaitAdvanceInterruptibly(phase, SHUTDOWN_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            log.warning("Shutting down with " + getInFlightUploads() + " requests still in flight, whose files may be uploaded again on the next run.");
+        }
+        if (dedupCache != null) {
+            try {
+                dedupCache.sync();
+            }
+            catch (IOException e) {
+                log.warning("Failed to sync the content hash cache. " + e.toString());
+            }
+        }
+        // Allow the pipeline to be started again
+        readyStage = null;
+    }
+
+    // Called by the ready-check stage with each file once completely written, passing it on to the parse stage
+    private void ready(UploadJob job) {
+        pendingPermits.release();
+        metrics.latency(MetricsListener.Stage.LOCK_WAIT, System.nanoTime() - job.getSubmittedNanos());
+        if (job.getLockedTries() > 0) log.log(Level.INFO, "File {0} is now completely written.", job);
+        handOff(parseStage, () -> parse(job), job);
+    }
+
+    // Called by the ready-check stage with each file given up on, as it was removed or still being written after maxLockedFileTries checks
+    private void notReady(UploadJob job, Throwable cause) {
+        pendingPermits.release();
+        fail(job, cause);
+    }
+
+    /* Called when a modification event arrives for a file, which is then still being written.
+       If the file is awaiting the ready-check stage, it won't be deemed ready until it stops changing. */
+    public void touched(File f) {
+        ReadinessTracker tracker = readyStage;
+        if (tracker != null) tracker.touched(f.toPath());
+    }
+
+    /* Parse stage: read the JSON file into its Map representation, or when streaming only validate it.
+       A file whose content has already been uploaded to the same destination, or which hasn't changed since its previous version, is skipped.
+       Before a document is built, room is reserved for it within the memory budget.
+       When uploading deltas, the job first waits for any other job writing to the same location to leave the pipeline, as its version is the one to diff against. */
+    private void parse(UploadJob job) {
+        try {
+            if (deltaUploads) claimTarget(job);
+            admit(job);
+        }
+        catch (InterruptedException e) { // Shutting down
+            Thread.currentThread().interrupt();
+            fail(job, e);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            String destination = deltaUploads ? job.getTarget() : job.getDbPath();
+            if (dedupCache != null) {
+                // The document uploaded depends on the transform's rules as well as the file, so they're part of its hash
+                JsonTransform t = transform;
+                String hash = ContentHashCache.hash(destination, t == null ? null : t.getFingerprint(), job.getFile());
+                // A delta target is overwritten by each version, so a file is only identical to the version last uploaded there, not to any earlier one
+                if (deltaUploads ? hash.equals(previousHash(destination)) : dedupCache.contains(hash)) {
+                    skip(job, deltaUploads ? "identical to the version last uploaded to its location" : "identical to a file already uploaded");
+                    return;
+                }
+                job.setContentHash(hash);
+            }
+            if (deltaUploads) {
+                // Deltas are computed between parsed documents, so the file is parsed even when streaming
+                Map<String, Object> document = JsonToMap.parse(job.getFile(), transform);
+                if (document == null) throw new JsonSyntaxException("Empty JSON file " + job.toString());
+                if (isTransformedAway(document)) {
+                    skip(job, "empty once transformed");
+                    return;
+                }
+                job.setDocument(document);
+                Map<String, Object> previous;
+                synchronized (previousVersions) {
+                    previous = previousVersions.get(destination);
+                }
+                // The first version uploaded to a location is written whole, later versions only as their changes
+                Map<String, Object> update = previous == null ? Collections.singletonMap(destination, document) : JsonDiff.diff(previous, document, destination);
+                if (update.isEmpty()) {
+                    skip(job, "unchanged since its previous version was uploaded");
+                    return;
+                }
+                job.setUpdate(destination, update);
+            }
+            // A large document is split into parts, and a transformed document is rebuilt, so they're parsed even when streaming
+            else if (!isMaterialised(job)) JsonToMap.validate(job.getFile());
+            else {
+                Map<String, Object> document = JsonToMap.parse(job.getFile(), transform);
+                // A null document would be taken for a streamed file, and its bytes posted as they are
+                if (document == null) throw new JsonSyntaxException("Empty JSON file " + job.toString());
+                if (isTransformedAway(document)) {
+                    skip(job, "empty once transformed");
+                    return;
+                }
+                job.setDocument(document);
+            }
+        }
+        // Malformed JSON, or any other failure (e.g. a transform's filter throwing), so the job always leaves the pipeline and releases what it holds
+        catch (IOException | RuntimeException e) {
+            fail(job, e);
+            return;
+        }
+        finally {
+            metrics.latency(MetricsListener.Stage.PARSE, System.nanoTime() - start);
+        }
+        // A large document is already split into many requests, and a spilled file is sent alone, so they're never batched
+        if (batcher != null && !isFanOut(job) && !job.isSpilled()) batcher.add(job);
+        else handOff(uploadStage, () -> upload(job), job);
+    }
+
+    /* Reserves room within the memory budget for the document a job's file is parsed into, estimated from the file's size.
+       If the budget is exhausted, waits for room, or if spilling marks the job to be streamed from disk instead where it may be. */
+    private void admit(UploadJob job) throws InterruptedException {
+        MemoryBudget budget = memoryBudget;
+        if (budget == null || !isMaterialised(job)) return;
+        long bytes = (long) Math.ceil(Math.max(job.getSize(), 0) * memoryExpansion);
+        if (budget.tryReserve(bytes)) {
+            job.setReservedBytes(bytes);
+            return;
+        }
+        if (memorySpill && isSpillable(job)) {
+            job.setSpilled(true);
+            metrics.count(MetricsListener.Counter.SPILLED, 1);
+            log.log(Level.INFO, "Memory budget exhausted, streaming file {0} from disk rather than parsing it.", job);
+            return;
+        }
+        long start = System.nanoTime();
+        budget.reserve(bytes);
+        job.setReservedBytes(bytes);
+        metrics.latency(MetricsListener.Stage.MEMORY_WAIT, System.nanoTime() - start);
+    }
+
+    /* Waits until no other job holds the delta target location a job's file is written to, then holds it for the job until the job leaves the pipeline.
+       Only files whose names map to the same location contend, as a file is never within the pipeline twice. Throws InterruptedException if interrupted while waiting. */
+    private void claimTarget(UploadJob job) throws InterruptedException {
+        String target = deltaTarget(job);
+        synchronized (deltaTargets) {
+            while (deltaTargets.putIfAbsent(target, job) != null) deltaTargets.wait();
+        }
+        job.setUpdate(target, null);
+    }
+
+    // Returns the content hash of the version last uploaded to a delta target location, or null if it isn't known
+    private String previousHash(String target) {
+        synchronized (previousVersions) {
+            return previousHashes.get(target);
+        }
+    }
+
+    // Returns true if a job's file is parsed into a document, rather than only validated and streamed from disk
+    private boolean isMaterialised(UploadJob job) {
+        return deltaUploads || isFanOut(job) || isTransforming() || !(streamingUploads || job.isSpilled());
+    }
+
+    // Returns true if a job's file may be streamed from disk as it is, rather than parsed
+    private boolean isSpillable(UploadJob job) {
+        return !deltaUploads && !isFanOut(job) && !isTransforming();
+    }
+
+    // Returns true if documents are reshaped by a transform with rules
+    private boolean isTransforming() {
+        JsonTransform t = transform;
+        return t != null && !t.isEmpty();
+    }
+
+    // Returns true if the transform left nothing of a document to upload
+    private boolean isTransformedAway(Map<String, Object> document) {
+        return document != null && document.isEmpty() && isTransforming();
+    }
+
+    // Upload stage: POST the parsed document to the database
+    private void upload(UploadJob job) {
+        log.log(Level.INFO, "File {0} is ready, attempting to POST...", job);
+        if (isFanOut(job)) {
+            uploadFanOut(job);
+            return;
+        }
+        if (asyncUploads) {
+            uploadAsync(job);
+            return;
+        }
+        long start = beginRequest();
+        try {
+            FirebaseResponse response;
+            if (job.getUpdate() != null) response = FirebasePostJson.update(dbConnection, job.getUpdate());
+            // A file only validated (streaming, or spilled) is sent from disk, whereas a parsed document (e.g. transformed) must be sent as parsed
+            else if (job.getDocument() == null) response = FirebasePostJson.postStream(dbConnection, job.getFile(), job.getDbPath());
+            else response = FirebasePostJson.post(dbConnection, job.getDocument(), job.getDbPath());
+            if (!response.getSuccess()) throw new FirebaseException("Database responded with HTTP " + response.getCode() + ".");
+        }
+        catch (IOException | JacksonUtilityException | FirebaseException | RuntimeException e) {
+            endRequest(start, false);
+            fail(job, e);
+            return;
+        }
+        endRequest(start, false);
+        succeed(job);
+    }
+
+    /* Upload stage for a batch: POST every document in the batch within a single multi-location update.
+       If the batch as a whole is rejected, each file is retried on its own, so only the files at fault fail. */
+    private void uploadBatch(List<UploadJob> batch) {
+        // Should the transform's rules change whilst a batch fills, some files may be parsed and others only validated, so each is sent alone
+        if (batch.size() == 1 || (!deltaUploads && isMixed(batch))) {
+            for (UploadJob job : batch) upload(job);
+            return;
+        }
+        log.log(Level.INFO, "Batch of {0} files is ready, attempting to POST...", batch.size());
+        if (asyncUploads) {
+            uploadBatchAsync(batch);
+            return;
+        }
+        long start = beginRequest();
+        try {
+            FirebaseResponse response;
+            try {
+                if (deltaUploads) response = FirebasePostJson.update(dbConnection, mergeUpdates(batch));
+                else if (isStreamed(batch)) response = FirebasePostJson.postBatchStream(dbConnection, paths(batch), files(batch));
+                else response = FirebasePostJson.postBatch(dbConnection, paths(batch), documents(batch));
+            }
+            finally {
+                endRequest(start, true);
+            }
+            if (response.getSuccess()) {
+                for (UploadJob job : batch) succeed(job);
+                return;
+            }
+            log.warning("Batch of " + batch.size() + " files rejected with HTTP " + response.getCode() + ", uploading each file individually.");
+        }
+        catch (IOException | JacksonUtilityException | FirebaseException | RuntimeException e) {
+            log.warning("Batch of " + batch.size() + " files failed to upload, uploading each file individually. " + e.toString());
+        }
+        for (UploadJob job : batch) upload(job);
+    }
+
+    // Upload stage when asynchronous: send the request and return, completing the job once the response arrives
+    private void uploadAsync(UploadJob job) {
+        long start = beginRequest();
+        CompletableFuture<FirebaseResponse> request;
+        try {
+            if (job.getUpdate() != null) request = FirebasePostJson.updateAsync(dbConnection, job.getUpdate());
+            else if (job.getDocument() == null) request = FirebasePostJson.postStreamAsync(dbConnection, job.getFile(), job.getDbPath());
+            else request = FirebasePostJson.postAsync(dbConnection, job.getDocument(), job.getDbPath());
+        }
+        catch (RuntimeException e) {
+            endRequest(start, false);
+            fail(job, e);
+            return;
+        }
+        request.whenComplete((response, e) -> complete(job, start, response, e));
+    }
+
+    /* Upload stage for a file at or above the fan-out threshold: split the document into parts uploaded in parallel, each retried on its own.
+       When asynchronous the job is completed once every part is written, otherwise the upload thread waits for them. */
+    private void uploadFanOut(UploadJob job) {
+        log.log(Level.INFO, "File {0} is {1} bytes, uploading in parts...", new Object[] { job, job.getSize() });
+        long start = beginRequest();
+        CompletableFuture<FirebaseResponse> request;
+        try {
+            request = fanOut.post(job.getDocument(), job.getDbPath());
+        }
+        catch (RuntimeException e) {
+            request = new CompletableFuture<>();
+            request.completeExceptionally(e);
+        }
+        if (asyncUploads) {
+            request.whenComplete((response, e) -> complete(job, start, response, e));
+            return;
+        }
+        try {
+            complete(job, start, request.get(), null);
+        }
+        catch (ExecutionException e) {
+            complete(job, start, null, e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            complete(job, start, null, e);
+        }
+    }
+
+    // Completes a job once the response to its request (or the failure to get one) arrives
+    private void complete(UploadJob job, long start, FirebaseResponse response, Throwable e) {
+        endRequest(start, false);
+        if (e == null && !response.getSuccess()) e = new FirebaseException("Database responded with HTTP " + response.getCode() + ".");
+        if (e != null) fail(job, e);
+        else succeed(job);
+    }
+
+    // Returns true if the file is uploaded as many parts in parallel, as it's at or above the fan-out threshold (delta uploads are already small, so never are)
+    private boolean isFanOut(UploadJob job) {
+        return fanOutThreshold > 0 && !deltaUploads && job.getSize() >= fanOutThreshold;
+    }
+
+    // Upload stage for a batch when asynchronous: as uploadBatch, with the individual uploads of a rejected batch sent from the batch's callback
+    private void uploadBatchAsync(List<UploadJob> batch) {
+        long start = beginRequest();
+        CompletableFuture<FirebaseResponse> request;
+        try {
+            if (deltaUploads) request = FirebasePostJson.updateAsync(dbConnection, mergeUpdates(batch));
+            else if (isStreamed(batch)) request = FirebasePostJson.postBatchStreamAsync(dbConnection, paths(batch), files(batch));
+            else request = FirebasePostJson.postBatchAsync(dbConnection, paths(batch), documents(batch));
+        }
+        catch (RuntimeException e) {
+            request = new CompletableFuture<>();
+            request.completeExceptionally(e);
+        }
+        request.whenComplete((response, e) -> {
+            if (e == null && response.getSuccess()) {
+                endRequest(start, true);
+                for (UploadJob job : batch) succeed(job);
+                return;
+            }
+            if (e == null) log.warning("Batch of " + batch.size() + " files rejected with HTTP " + response.getCode() + ", uploading each file individually.");
+            else log.warning("Batch of " + batch.size() + " files failed to upload, uploading each file individually. " + e.toString());
+            // Send the individual uploads before ending the batch's request, so shutdown never sees no requests in flight in between
+            for (UploadJob job : batch) uploadAsync(job);
+            endRequest(start, true);
+        });
+    }
+
+    // Records the start of a request to the database, returning its start time
+    private long beginRequest() {
+        inFlightUploads.register();
+        return System.nanoTime();
+    }
+
+    // Records the end of a request to the database which began at the given time
+    private void endRequest(long start, boolean batch) {
+        inFlightUploads.arriveAndDeregister();
+        metrics.latency(MetricsListener.Stage.UPLOAD, System.nanoTime() - start);
+        metrics.count(MetricsListener.Counter.REQUESTS, 1);
+        if (batch) metrics.count(MetricsListener.Counter.BATCHES, 1);
+    }
+
+    // Lists the database paths of a batch's files
+    private static List<String> paths(List<UploadJob> batch) {
+        List<String> paths = new ArrayList<>(batch.size());
+        for (UploadJob job : batch) paths.add(job.getDbPath());
+        return paths;
+    }
+
+    // Lists the parsed documents of a batch's files
+    private static List<Map<String, Object>> documents(List<UploadJob> batch) {
+        List<Map<String, Object>> documents = new ArrayList<>(batch.size());
+        for (UploadJob job : batch) documents.add(job.getDocument());
+        return documents;
+    }
+
+    // Returns true if none of a batch's files were parsed into documents, as they were only validated, so they're sent from disk
+    private static boolean isStreamed(List<UploadJob> batch) {
+        for (UploadJob job : batch) {
+            if (job.getDocument() != null) return false;
+        }
+        return true;
+    }
+
+    // Returns true if some of a batch's files were parsed into documents and others only validated
+    private static boolean isMixed(List<UploadJob> batch) {
+        int parsed = 0;
+        for (UploadJob job : batch) {
+            if (job.getDocument() != null) parsed++;
+        }
+        return parsed > 0 && parsed < batch.size();
+    }
+
+    // Lists a batch's files
+    private static List<File> files(List<UploadJob> batch) {
+        List<File> files = new ArrayList<>(batch.size());
+        for (UploadJob job : batch) files.add(job.getFile());
+        return files;
+    }
+
+    // Combines the updates of a batch of delta uploads into a single multi-location update
+    private static Map<String, Object> mergeUpdates(List<UploadJob> batch) {
+        Map<String, Object> merged = new LinkedHashMap<>();
+        for (UploadJob job : batch) merged.putAll(job.getUpdate());
+        return merged;
+    }
+
+    // Removes an uploaded job from the pipeline and notifies the listener
+    private void succeed(UploadJob job) {
+        // Remember what was uploaded, so the same content is skipped and the next version is sent as a delta
+        if (job.getTarget() != null) {
+            synchronized (previousVersions) {
+                previousVersions.put(job.getTarget(), job.getDocument());
+                if (job.getContentHash() != null) previousHashes.put(job.getTarget(), job.getContentHash());
+                else previousHashes.remove(job.getTarget());
+            }
+        }
+        else if (job.getContentHash() != null) {
+            try {
+                dedupCache.add(job.getContentHash());
+            }
+            catch (IOException e) {
+                log.warning("Failed to record the content hash of file " + job.toString() + ". " + e.toString());
+            }
+        }
+        metrics.count(MetricsListener.Counter.UPLOADED, 1);
+        metrics.count(MetricsListener.Counter.BYTES_UPLOADED, Math.max(job.getSize(), 0));
+        metrics.latency(MetricsListener.Stage.END_TO_END, System.nanoTime() - job.getDetectedNanos());
+        // The document is no longer needed, so release it before notifying
+        release(job);
+        listener.uploaded(job);
+        leave(job);
+    }
+
+    // Removes a job whose file needn't be uploaded from the pipeline and notifies the listener
+    private void skip(UploadJob job, String reason) {
+        log.log(Level.INFO, "File {0} is {1}, skipping upload.", new Object[] { job, reason });
+        release(job);
+        metrics.count(MetricsListener.Counter.SKIPPED, 1);
+        listener.skipped(job);
+        leave(job);
+    }
+
+    // Passes the job to the next stage, blocking while that stage is full. If the stage has been shut down, the job fails.
+    private void handOff(Executor stage, Runnable task, UploadJob job) {
+        try {
+            stage.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            fail(job, e);
+        }
+    }
+
+    // Passes a batch of jobs to the next stage, blocking while that stage is full. If the stage has been shut down, every job in the batch fails.
+    private void handOff(Executor stage, Runnable task, List<UploadJob> batch) {
+        try {
+            stage.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            for (UploadJob job : batch) fail(job, e);
+        }
+    }
+
+    /* Removes a failed job from the pipeline and notifies the listener. A job which failed as its file is no longer on disk (e.g. it was deleted or archived
+       once an earlier upload of it succeeded) is skipped instead, as there's nothing left to upload and retrying it could never succeed. */
+    private void fail(UploadJob job, Throwable cause) {
+        if (cause instanceof IOException && Files.notExists(job.getFile().toPath())) {
+            skip(job, "no longer on disk");
+            return;
+        }
+        release(job);
+        listener.failed(job, cause);
+        leave(job);
+    }
+
+    // Releases the parsed document and update of a job leaving the pipeline, along with the room reserved for them within the memory budget
+    private void release(UploadJob job) {
+        job.setDocument(null);
+        job.setUpdate(job.getTarget(), null);
+        MemoryBudget budget = memoryBudget;
+        if (budget != null) budget.release(job.takeReservedBytes());
+    }
+
+    /* Determines the location in the database a file is written to when uploading deltas: a child of its database directory named after the file,
+       without its extension, and with the characters Firebase forbids within keys replaced. */
+    private static String deltaTarget(UploadJob job) {
+        String name = job.getFile().getName();
+        if (name.endsWith(".json")) name = name.substring(0, name.length() - 5);
+        name = name.replaceAll("[.#$\\[\\]/]", "_");
+        String path = job.getDbPath();
+        if (path == null || path.isEmpty()) return name;
+        return path.endsWith("/") ? path + name : path + "/" + name;
+    }
+
+    // Removes a job from the pipeline's accounting, after its listener has been notified
+    private void leave(UploadJob job) {
+        if (job.getTarget() != null) {
+            synchronized (deltaTargets) {
+                if (deltaTargets.remove(job.getTarget(), job)) deltaTargets.notifyAll();
+            }
+        }
+        inFlightFiles.remove(job.getFile().getPath());
+        inFlight.decrementAndGet();
+    }
+
+    // Constructs a fixed-size stage executor with a bounded queue which blocks hand-offs when full
+    private ThreadPoolExecutor newStage(String name, int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(stageQueueCapacity), threadFactory(name), BLOCK_WHEN_FULL);
+    }
+
+    // Constructs a ThreadFactory producing numbered daemon threads with the given name prefix
+    static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /*
+        Getter and setter methods. Stage sizes take effect on the next call to start().
+    */
+
+    // Setter for parse threads
+    public void setParseThreads(int x) {
+        if (x < 1) throw new IllegalArgumentException("Parse threads must be at least 1.");
+        this.parseThreads = x;
+    }
+
+    // Setter for concurrent uploads
+    public void setUploadThreads(int x) {
+        if (x < 1) throw new IllegalArgumentException("Upload threads must be at least 1.");
+        this.uploadThreads = x;
+    }
+
+    // Setter for stage queue capacity
+    public void setStageQueueCapacity(int x) {
+        if (x < 1) throw new IllegalArgumentException("Stage queue capacity must be at least 1.");
+        this.stageQueueCapacity = x;
+    }
+
+    // Setter for max pending files
+    public void setMaxPendingFiles(int x) {
+        if (x < 1) throw new IllegalArgumentException("Maximum pending files must be at least 1.");
+        this.maxPendingFiles = x;
+    }
+
+    // Setter for max locked file poll tries
+    public void setMaxLockedFileTries(int x) {
+        if (x < 1) throw new IllegalArgumentException("Maximum tries for locked files must be at least 1.");
+        this.maxLockedFileTries = x;
+    }
+
+    // Setter for locked file poll cooldown
+    public void setLockedFilePollCooldown(int x) {
+        if (x <= 0) throw new IllegalArgumentException("Locked file poll cooldown must be greater than 0 ms.");
+        this.lockedFilePollCooldown = x;
+    }
+
+    // Setter for batch size, the maximum number of files uploaded in one request (1 disables batching)
+    public void setBatchSize(int x) {
+        if (x < 1) throw new IllegalArgumentException("Batch size must be at least 1.");
+        this.batchSize = x;
+    }
+
+    // Setter for batch bytes, the maximum total size of the files uploaded in one request
+    public void setBatchBytes(long x) {
+        if (x < 1) throw new IllegalArgumentException("Batch bytes must be at least 1.");
+        this.batchBytes = x;
+    }
+
+    // Setter for batch linger time
+    public void setBatchLinger(int x) {
+        if (x <= 0) throw new IllegalArgumentException("Batch linger time must be greater than 0 ms.");
+        this.batchLinger = x;
+    }
+
+    // Setter for the metrics listener notified of the latency of each stage and of what happened to each file, which takes effect on the next start()
+    public void setMetricsListener(MetricsListener x) {
+        this.metrics = x == null ? NO_METRICS : x;
+    }
+
+    // Setter for the content hash cache, used to skip byte-identical files (null disables deduplication)
+    public void setDedupCache(ContentHashCache x) {
+        this.dedupCache = x;
+    }
+
+    // Setter for delta uploads, where each file is written to a location named after it and later versions send only their changes, which takes effect on the next start()
+    public void setDeltaUploads(boolean x) {
+        this.nextDeltaUploads = x;
+    }
+
+    // Setter for the number of previous versions held to compute deltas against, which takes effect on the next start()
+    public void setDeltaCacheSize(int x) {
+        if (x < 1) throw new IllegalArgumentException("Delta cache size must be at least 1.");
+        this.deltaCacheSize = x;
+    }
+
+    // Setter for streaming uploads: files are validated without being parsed, and their bytes are streamed straight into the request
+    public void setStreamingUploads(boolean x) {
+        this.streamingUploads = x;
+    }
+
+    // Setter for asynchronous uploads, sent through the connection's asynchronous transport (see FirebaseConnection.getAsync) without holding an upload thread
+    public void setAsyncUploads(boolean x) {
+        this.asyncUploads = x;
+    }
+
+    // Setter for the number of heap bytes the documents within the pipeline may occupy at once (0 for no limit)
+    public void setMemoryBudget(long x) {
+        if (x < 0) throw new IllegalArgumentException("Memory budget must not be negative.");
+        this.memoryBudgetBytes = x;
+    }
+
+    // Setter for the estimated ratio of the memory a parsed document occupies to the size of its file
+    public void setMemoryExpansion(double x) {
+        if (!(x > 0)) throw new IllegalArgumentException("Memory expansion must be greater than 0.");
+        this.memoryExpansion = x;
+    }
+
+    // Setter for whether a file which doesn't fit within the memory budget is streamed from disk rather than waiting for room
+    public void setMemorySpill(boolean x) {
+        this.memorySpill = x;
+    }
+
+    // Setter for the transform reshaping each document as it's parsed (null uploads documents as they are)
+    public void setTransform(JsonTransform x) {
+        this.transform = x;
+    }
+
+    // Setter for the size in bytes at which a file is uploaded as many parts in parallel (0 disables)
+    public void setFanOutThreshold(long x) {
+        if (x < 0) throw new IllegalArgumentException("Fan-out threshold must not be negative.");
+        this.fanOutThreshold = x;
+    }
+
+    // Getter for parse threads
+    public int getParseThreads() {
+        return this.parseThreads;
+    }
+
+    // Getter for concurrent uploads
+    public int getUploadThreads() {
+        return this.uploadThreads;
+    }
+
+    // Getter for stage queue capacity
+    public int getStageQueueCapacity() {
+        return this.stageQueueCapacity;
+    }
+
+    // Getter for max pending files
+    public int getMaxPendingFiles() {
+        return this.maxPendingFiles;
+    }
+
+    // Getter for max locked file poll tries
+    public int getMaxLockedFileTries() {
+        return this.maxLockedFileTries;
+    }
+
+    // Getter for locked file poll cooldown
+    public int getLockedFilePollCooldown() {
+        return this.lockedFilePollCooldown;
+    }
+
+    // Getter for batch size
+    public int getBatchSize() {
+        return this.batchSize;
+    }
+
+    // Getter for batch bytes
+    public long getBatchBytes() {
+        return this.batchBytes;
+    }
+
+    // Getter for batch linger time
+    public int getBatchLinger() {
+        return this.batchLinger;
+    }
+
+    // Getter for streaming uploads
+    public boolean isStreamingUploads() {
+        return this.streamingUploads;
+    }
+
+    // Getter for asynchronous uploads
+    public boolean isAsyncUploads() {
+        return this.asyncUploads;
+    }
+
+    // Getter for the fan-out threshold
+    public long getFanOutThreshold() {
+        return this.fanOutThreshold;
+    }
+
+    // Getter for the memory budget, in bytes (0 for no limit)
+    public long getMemoryBudget() {
+        return this.memoryBudgetBytes;
+    }
+
+    // Getter for the memory expansion
+    public double getMemoryExpansion() {
+        return this.memoryExpansion;
+    }
+
+    // Getter for memory spilling
+    public boolean isMemorySpill() {
+        return this.memorySpill;
+    }
+
+    // Getter for the number of bytes of the memory budget currently reserved
+    public long getMemoryReserved() {
+        MemoryBudget budget = memoryBudget;
+        return budget == null ? 0 : budget.getReserved();
+    }
+
+    // Getter for the transform reshaping each document
+    public JsonTransform getTransform() {
+        return this.transform;
+    }
+
+    // Getter for the uploader of the files at or above the fan-out threshold, to configure how they're split and retried
+    public FanOutUploader getFanOut() {
+        return this.fanOut;
+    }
+
+    // Getter for the content hash cache
+    public ContentHashCache getDedupCache() {
+        return this.dedupCache;
+    }
+
+    // Getter for delta uploads, as set for the next start()
+    public boolean isDeltaUploads() {
+        return this.nextDeltaUploads;
+    }
+
+    // Getter for the number of previous versions held to compute deltas against
+    public int getDeltaCacheSize() {
+        return this.deltaCacheSize;
+    }
+
+    // Getter for the number of files awaiting the ready-check stage, i.e. still being written
+    public int getPendingFiles() {
+        ReadinessTracker tracker = readyStage;
+        return tracker == null ? 0 : tracker.size();
+    }
+
+    // Getter for the number of files queued in front of the parse stage
+    public int getParseQueueDepth() {
+        ThreadPoolExecutor stage = parseStage;
+        return stage == null ? 0 : stage.getQueue().size();
+    }
+
+    // Getter for the number of files (or batches) queued in front of the upload stage
+    public int getUploadQueueDepth() {
+        ThreadPoolExecutor stage = uploadStage;
+        return stage == null ? 0 : stage.getQueue().size();
+    }
+
+    // Getter for the number of requests to the database currently in progress
+    public int getInFlightUploads() {
+        return this.inFlightUploads.getRegisteredParties() - 1;
+    }
+
+    // Getter for the number of files currently within the pipeline
+    public int getInFlight() {
+        return this.inFlight.get();
+    }
+
+    // Returns true if the file is currently within the pipeline
+    public boolean isInFlight(File f) {
+        return inFlightFiles.contains(f.getPath());
+    }
+
+    // Returns true if no files are currently within the pipeline
+    public boolean isDrained() {
+        return this.inFlight.get() == 0;
+    }
+}
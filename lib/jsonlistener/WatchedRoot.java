@@ -0,0 +1,61 @@
+/*
+    A directory watched by the listener, with the directory within the database its JSON files are POSTed to.
+    If the root is recursive, its subdirectories are watched too, and the files within each are POSTed
+    beneath the same relative path within the database (e.g. root/2019/05/a.json is POSTed to dbPath/2019/05).
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import java.nio.file.Path;
+
+public class WatchedRoot {
+    // The local directory being watched
+    private final Path dir;
+    // The directory in the database to POST the root's JSON files to (null for the root of the database)
+    private final String dbPath;
+    // Whether subdirectories of the root are watched as well
+    private final boolean recursive;
+
+    // One constructs a WatchedRoot with the local directory, the directory in the database and whether its subdirectories are watched
+    public WatchedRoot(Path dir, String dbPath, boolean recursive) {
+        if (dir == null) throw new IllegalArgumentException("Provided Path is null.");
+        this.dir = dir;
+        this.dbPath = dbPath;
+        this.recursive = recursive;
+    }
+
+    // Returns the directory in the database for the files within the given directory, which must be the root or one of its subdirectories
+    public String dbPathFor(Path d) {
+        Path relative = dir.relativize(d);
+        if (relative.toString().isEmpty()) return dbPath;
+        // Database paths are always separated by forward slashes, whatever the local file system uses
+        StringBuilder sb = new StringBuilder(dbPath == null ? "" : dbPath);
+        for (Path name : relative) {
+            if (sb.length() > 0) sb.append('/');
+            sb.append(name.toString());
+        }
+        return sb.toString();
+    }
+
+    // Getter for the local directory
+    public Path getDir() {
+        return this.dir;
+    }
+
+    // Getter for the directory in the database
+    public String getDbPath() {
+        return this.dbPath;
+    }
+
+    // Getter for whether subdirectories are watched
+    public boolean isRecursive() {
+        return this.recursive;
+    }
+
+    @Override
+    public String toString() {
+        return dir.toString();
+    }
+}
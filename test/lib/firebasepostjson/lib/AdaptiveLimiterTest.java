@@ -0,0 +1,60 @@
+/*
+    Tests that the AdaptiveLimiter is opt-in: until enabled it neither caps the requests in flight nor pauses them,
+    whereas once enabled requests beyond its limit wait, and failures shrink the limit.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import org.junit.jupiter.api.Test;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveLimiterTest {
+    @Test
+    public void disabledByDefaultAndCapsNothing() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter();
+        assertFalse(limiter.isEnabled());
+        limiter.setMaxLimit(2);
+        List<AdaptiveLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 5; i++) permits.add(limiter.acquire("items"));
+        // A throttled response neither shrinks the limit nor pauses requests
+        permits.get(0).release(429, 1000);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getPauseRemaining());
+        assertEquals(0, limiter.getThrottled());
+        for (AdaptiveLimiter.Permit permit : permits) permit.release(200, 0);
+    }
+
+    @Test
+    public void enabledCapsRequestsAtLimit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter();
+        limiter.setMaxLimit(2);
+        limiter.setEnabled(true);
+        AdaptiveLimiter.Permit first = limiter.acquire("items");
+        AdaptiveLimiter.Permit second = limiter.acquire("items");
+        CompletableFuture<AdaptiveLimiter.Permit> third = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire("items");
+            }
+            catch (InterruptedIOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+        // A failure halves the limit to one, so the third request waits until the second ends
+        first.release(500, 0);
+        assertEquals(1, limiter.getLimit());
+        Thread.sleep(100);
+        assertFalse(third.isDone());
+        second.release(200, 0);
+        third.get(1000, TimeUnit.MILLISECONDS).release(200, 0);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+    Tests of the AsyncFirebaseRest transport against a StubDatabase: the cap of requests in flight, requests sent from completing threads
+    being deferred rather than blocking, requests held back by a Retry-After pause or a path's rate cap, and PATCH and gzip encoded bodies.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncFirebaseRestTest {
+    // Longest each response is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+    // A small document to send
+    private static final byte[] BODY = "{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+
+    // The database requests are sent to
+    private StubDatabase stub;
+    private FirebaseConnection con;
+    // The transport under test, constructed by each test
+    private AsyncFirebaseRest rest;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        stub = new StubDatabase();
+        con = new FirebaseConnection(stub.getBaseUrl());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (rest != null) rest.close();
+        stub.close();
+    }
+
+    @Test
+    public void requestsInFlightAreCapped() throws Exception {
+        rest = new AsyncFirebaseRest(con, 2, 2);
+        stub.setLatency(200);
+        List<CompletableFuture<FirebaseResponse>> sent = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) sent.add(rest.send("POST", "items", BODY));
+        // The last two could only be sent once the first four completed, two at a time
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 350);
+        for (CompletableFuture<FirebaseResponse> f : sent) assertTrue(f.get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        assertEquals(6, stub.getRequests().size());
+        assertEquals(2, stub.getMaxConcurrent());
+        assertEquals(0, rest.getInFlight());
+    }
+
+    @Test
+    public void sendsFromCompletingThreadsAreDeferred() throws Exception {
+        // A single completing thread, which would never free a request if it blocked waiting for one
+        rest = new AsyncFirebaseRest(con, 1, 1);
+        stub.setLatency(100);
+        CompletableFuture<List<CompletableFuture<FirebaseResponse>>> chained = rest.send("POST", "items", BODY).thenApply(response -> {
+            List<CompletableFuture<FirebaseResponse>> sent = new ArrayList<>();
+            for (int i = 0; i < 3; i++) sent.add(rest.send("POST", "items", BODY));
+            return sent;
+        });
+        List<CompletableFuture<FirebaseResponse>> sent = chained.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        for (CompletableFuture<FirebaseResponse> f : sent) assertTrue(f.get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        assertEquals(4, stub.getRequests().size());
+        assertEquals(1, stub.getMaxConcurrent());
+        assertEquals(0, rest.getInFlight());
+    }
+
+    @Test
+    public void retryAfterPausesLaterRequests() throws Exception {
+        con.getLimiter().setEnabled(true);
+        rest = new AsyncFirebaseRest(con, 4, 2);
+        AtomicInteger received = new AtomicInteger();
+        stub.setResponder(r -> received.getAndIncrement() == 0 ? new StubDatabase.Response(429, "{}").header("Retry-After", "1") : StubDatabase.OK);
+        assertEquals(429, rest.send("POST", "items", BODY).get(TIMEOUT, TimeUnit.MILLISECONDS).getCode());
+        assertTrue(con.getLimiter().getPauseRemaining() > 0);
+        // Sending returns at once, the request being dispatched once the pause ends
+        long start = System.nanoTime();
+        CompletableFuture<FirebaseResponse> later = rest.send("POST", "items", BODY);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertTrue(later.get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        List<StubDatabase.Request> requests = stub.getRequests();
+        assertEquals(2, requests.size());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(requests.get(1).getReceivedNanos() - requests.get(0).getReceivedNanos()) >= 900);
+    }
+
+    @Test
+    public void pathRateDelaysOnlyRequestsWithinThePath() throws Exception {
+        con.getLimiter().setPathRate("limited", 2, 1);
+        rest = new AsyncFirebaseRest(con, 4, 2);
+        CompletableFuture<FirebaseResponse> first = rest.send("POST", "limited/a", BODY);
+        CompletableFuture<FirebaseResponse> second = rest.send("POST", "limited/b", BODY);
+        CompletableFuture<FirebaseResponse> other = rest.send("POST", "other", BODY);
+        assertTrue(first.get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        assertTrue(second.get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        assertTrue(other.get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        List<StubDatabase.Request> requests = stub.getRequests();
+        assertEquals(3, requests.size());
+        // The second request within the path waits half a second for its token, whilst the request outside it doesn't
+        assertEquals("/limited/b.json", requests.get(2).getPath());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(requests.get(2).getReceivedNanos() - requests.get(0).getReceivedNanos()) >= 400);
+    }
+
+    @Test
+    public void patchIsSentAsPatch() throws Exception {
+        rest = new AsyncFirebaseRest(con, 4, 2);
+        Map<String, Object> update = JsonToMap.parse("{\"a/b\":1,\"c\":\"d\"}");
+        assertTrue(rest.send("PATCH", null, JsonToMap.toJson(update).getBytes(StandardCharsets.UTF_8)).get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        StubDatabase.Request request = stub.awaitRequests(1, TIMEOUT).get(0);
+        assertEquals("PATCH", request.getMethod());
+        assertEquals("/.json", request.getPath());
+        assertEquals(update, JsonToMap.parse(request.getText()));
+    }
+
+    @Test
+    public void gzippedBodyIsSentWithContentEncoding() throws Exception {
+        rest = new AsyncFirebaseRest(con, 4, 2);
+        String json = "{\"items/a\":{\"name\":\"" + new String(new char[1000]).replace('\0', 'x') + "\"}}";
+        byte[] gzipped = gzip(json.getBytes(StandardCharsets.UTF_8));
+        assertTrue(rest.sendGzipped("PATCH", null, gzipped).get(TIMEOUT, TimeUnit.MILLISECONDS).getSuccess());
+        StubDatabase.Request request = stub.awaitRequests(1, TIMEOUT).get(0);
+        assertEquals("PATCH", request.getMethod());
+        assertEquals("gzip", request.getContentEncoding());
+        assertEquals(gzipped.length, request.getBody().length);
+        assertEquals(json, request.getText());
+    }
+
+    // Compresses the given bytes with gzip
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+            out.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+}
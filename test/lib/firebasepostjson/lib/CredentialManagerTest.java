@@ -0,0 +1,168 @@
+/*
+    Tests of the CredentialManager against a fake token endpoint (a StubDatabase answering with access tokens):
+    tokens refreshed in the background before they expire, requests waiting for a refresh once the token has expired,
+    failed refreshes surfaced and retried, and shared managers counting their references.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CredentialManagerTest {
+    // Longest a token is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+
+    // The fake token endpoint
+    private StubDatabase endpoint;
+    // Number of tokens the endpoint has been asked for
+    private final AtomicInteger fetches = new AtomicInteger();
+    // The manager under test, constructed by each test
+    private CredentialManager manager;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        endpoint = new StubDatabase();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (manager != null) manager.release();
+        endpoint.close();
+    }
+
+    @Test
+    public void shortLivedTokenIsRefreshedBeforeItExpires() throws Exception {
+        // Tokens live for two seconds, so are refreshed after 1.6
+        respondWithTokens(2);
+        manager = new CredentialManager(source());
+        assertEquals("t1", manager.getToken());
+        assertEquals("t1", manager.getToken());
+        assertEquals(1, fetches.get());
+        CredentialManager.Token first = manager.getCurrent();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (manager.getCurrent() == first && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(System.currentTimeMillis() < first.getExpiresAt());
+        assertEquals("t2", manager.getToken());
+        assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void expiredTokenWaitsForRefresh() throws Exception {
+        // The first token has already expired when it arrives, the second lives for an hour
+        endpoint.setResponder(r -> {
+            int n = fetches.incrementAndGet();
+            return token(n, n == 1 ? 0 : 3600);
+        });
+        manager = new CredentialManager(source());
+        assertEquals("t2", manager.getToken());
+        // The hour long token isn't refreshed again
+        Thread.sleep(200);
+        assertEquals(2, fetches.get());
+        assertEquals("t2", manager.getToken());
+    }
+
+    @Test
+    public void failedRefreshIsSurfacedThenRetried() throws Exception {
+        endpoint.setResponder(r -> {
+            int n = fetches.incrementAndGet();
+            return n == 1 ? new StubDatabase.Response(500, "{}") : token(n, 3600);
+        });
+        // Slow enough that the first fetch is still in progress when the token is asked for
+        endpoint.setLatency(200);
+        manager = new CredentialManager(source());
+        assertThrows(IOException.class, () -> manager.getToken());
+        // Retried in the background after a second's backoff
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (manager.getCurrent() == null && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals("t2", manager.getToken());
+    }
+
+    @Test
+    public void currentTokenIsUsedWhilstRefreshesFail() throws Exception {
+        // The first token lives for two seconds, every refresh of it fails
+        endpoint.setResponder(r -> {
+            int n = fetches.incrementAndGet();
+            return n == 1 ? token(n, 2) : new StubDatabase.Response(503, "{}");
+        });
+        manager = new CredentialManager(source());
+        assertEquals("t1", manager.getToken());
+        // The refresh at 1.6 seconds fails, but the token is still usable until 1.8
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (fetches.get() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals("t1", manager.getToken());
+        Thread.sleep(Math.max(0, manager.getCurrent().getExpiresAt() - System.currentTimeMillis()));
+        assertThrows(IOException.class, () -> manager.getToken());
+    }
+
+    @Test
+    public void sharedManagerStopsRefreshingOnceEveryReferenceIsReleased() throws Exception {
+        respondWithTokens(3600);
+        CredentialManager a = CredentialManager.shared("db\ntoken", source());
+        CredentialManager b = CredentialManager.shared("db\ntoken", source());
+        assertSame(a, b);
+        assertEquals("t1", a.getToken());
+        a.release();
+        assertFalse(b.isReleased());
+        assertEquals("t1", b.getToken());
+        b.release();
+        assertTrue(b.isReleased());
+        // A later holder gets a manager of its own
+        manager = CredentialManager.shared("db\ntoken", source());
+        assertNotSame(a, manager);
+        assertEquals("t2", manager.getToken());
+    }
+
+    // Answers each request for a token with the next token, living for the given number of seconds
+    private void respondWithTokens(int lifetime) {
+        endpoint.setResponder(r -> token(fetches.incrementAndGet(), lifetime));
+    }
+
+    // The endpoint's response giving the nth token, living for the given number of seconds
+    private static StubDatabase.Response token(int n, int lifetime) {
+        return new StubDatabase.Response(200, "{\"access_token\":\"t" + n + "\",\"expires_in\":" + lifetime + "}");
+    }
+
+    // A TokenSource fetching tokens from the fake endpoint, as one would from Google's
+    private CredentialManager.TokenSource source() {
+        return () -> {
+            HttpURLConnection c = (HttpURLConnection) new URL(endpoint.getBaseUrl() + "/token").openConnection();
+            c.setRequestMethod("POST");
+            c.setDoOutput(true);
+            try (OutputStream out = c.getOutputStream()) {
+                out.write("grant_type=client_credentials".getBytes(StandardCharsets.UTF_8));
+            }
+            int code = c.getResponseCode();
+            if (code != 200) throw new IOException("Token endpoint responded with HTTP " + code + ".");
+            Map<String, Object> body;
+            try (InputStream in = c.getInputStream()) {
+                body = JsonToMap.parse(read(in));
+            }
+            long lifetime = ((Number) body.get("expires_in")).longValue() * 1000;
+            return new CredentialManager.Token((String) body.get("access_token"), System.currentTimeMillis() + lifetime);
+        };
+    }
+
+    // Reads a stream to its end as text
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int n;
+        while ((n = in.read(chunk)) != -1) buffer.write(chunk, 0, n);
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+    Tests of the FanOutUploader against a StubDatabase: a document split along its keys to the configured depth and packed into parts,
+    a sub-tree larger than a part sent alone, gzip compressed parts, parts retried on their own, and what was written deleted
+    once a part runs out of retries or is rejected outright.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import net.thegreshams.firebase4j.error.FirebaseException;
+import net.thegreshams.firebase4j.model.FirebaseResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FanOutUploaderTest {
+    // Longest each document's upload is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+
+    // The database uploaded to
+    private StubDatabase stub;
+    private FirebaseConnection con;
+    // The uploader under test
+    private FanOutUploader uploader;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        stub = new StubDatabase();
+        con = new FirebaseConnection(stub.getBaseUrl());
+        uploader = new FanOutUploader(con);
+        uploader.setRetryDelay(10);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        con.close();
+        stub.close();
+    }
+
+    @Test
+    public void documentIsSplitByTopLevelKeyIntoPackedParts() throws Exception {
+        // Four sub-trees of about 300 bytes each, two of which fit within a part
+        uploader.setPartBytes(700);
+        Map<String, Object> document = document("a", 300, "b", 300, "c", 300, "d", 300);
+        String pushId = pushId(uploader.post(document, "db").get(TIMEOUT, TimeUnit.MILLISECONDS));
+        List<StubDatabase.Request> requests = stub.getRequests();
+        assertEquals(2, requests.size());
+        for (StubDatabase.Request request : requests) {
+            assertEquals("PATCH", request.getMethod());
+            assertEquals("/db/" + pushId + ".json", request.getPath());
+            assertEquals(2, JsonToMap.parse(request.getText()).size());
+        }
+        assertEquals(document, merge(requests));
+    }
+
+    @Test
+    public void deeperSplitKeysPartsByNestedPath() throws Exception {
+        uploader.setDepth(2);
+        uploader.setPartBytes(1);
+        Map<String, Object> document = JsonToMap.parse("{\"a\":{\"x\":1,\"y\":{\"z\":2}},\"b\":3,\"c\":{}}");
+        uploader.post(document, "").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        // Every sub-tree at depth two is a part of its own, whereas values shallower than it are sent as they are
+        Map<String, Object> sent = merge(stub.getRequests());
+        assertEquals(4, stub.getRequests().size());
+        assertEquals(1.0, sent.get("a/x"));
+        assertEquals(JsonToMap.parse("{\"z\":2}"), sent.get("a/y"));
+        assertEquals(3.0, sent.get("b"));
+        assertEquals(new HashMap<>(), sent.get("c"));
+    }
+
+    @Test
+    public void subtreeLargerThanAPartIsSentAlone() throws Exception {
+        uploader.setPartBytes(1000);
+        Map<String, Object> document = document("small1", 100, "huge", 5000, "small2", 100);
+        uploader.post(document, "db").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        List<StubDatabase.Request> requests = stub.getRequests();
+        assertEquals(3, requests.size());
+        for (StubDatabase.Request request : requests) {
+            Map<String, Object> part = JsonToMap.parse(request.getText());
+            assertEquals(1, part.size());
+            if (part.containsKey("huge")) assertTrue(request.getBody().length > 5000);
+        }
+        assertEquals(document, merge(requests));
+    }
+
+    @Test
+    public void gzippedPartsAreSentCompressed() throws Exception {
+        uploader.setGzip(true);
+        Map<String, Object> document = document("a", 5000, "b", 5000);
+        uploader.post(document, "db").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        StubDatabase.Request request = stub.getRequests().get(0);
+        assertEquals("gzip", request.getContentEncoding());
+        assertTrue(request.getBody().length < 1000);
+        assertEquals(document, JsonToMap.parse(request.getText()));
+    }
+
+    @Test
+    public void failedPartIsRetriedAlone() throws Exception {
+        uploader.setPartBytes(1);
+        AtomicInteger failures = new AtomicInteger();
+        // The part holding "b" fails twice with a transient error before it's written
+        stub.setResponder(r -> r.getText().contains("\"b\"") && failures.incrementAndGet() <= 2 ? new StubDatabase.Response(503, "{}") : StubDatabase.OK);
+        Map<String, Object> document = document("a", 10, "b", 10, "c", 10);
+        uploader.post(document, "db").get(TIMEOUT, TimeUnit.MILLISECONDS);
+        List<StubDatabase.Request> requests = stub.getRequests();
+        assertEquals(5, requests.size());
+        int b = 0;
+        for (StubDatabase.Request request : requests) if (request.getText().contains("\"b\"")) b++;
+        assertEquals(3, b);
+    }
+
+    @Test
+    public void partOutOfRetriesDeletesWhatWasWritten() throws Exception {
+        uploader.setPartBytes(1);
+        uploader.setMaxRetries(2);
+        stub.setResponder(r -> "PATCH".equals(r.getMethod()) && r.getText().contains("\"b\"") ? new StubDatabase.Response(500, "{}") : StubDatabase.OK);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> uploader.post(document("a", 10, "b", 10), "db").get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(e.getCause() instanceof FirebaseException);
+        // One attempt at "a", three at "b", then the delete of the document's push id
+        List<StubDatabase.Request> requests = stub.awaitRequests(5, TIMEOUT);
+        StubDatabase.Request delete = requests.get(4);
+        assertEquals("DELETE", delete.getMethod());
+        assertEquals(requests.get(0).getPath(), delete.getPath());
+    }
+
+    @Test
+    public void rejectedPartIsNotRetried() throws Exception {
+        uploader.setPartBytes(1);
+        stub.setResponder(r -> "PATCH".equals(r.getMethod()) && r.getText().contains("\"b\"") ? new StubDatabase.Response(400, "{}") : StubDatabase.OK);
+        CompletableFuture<FirebaseResponse> upload = uploader.post(document("a", 10, "b", 10), "db");
+        ExecutionException e = assertThrows(ExecutionException.class, () -> upload.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(e.getCause().getMessage().contains("HTTP 400"));
+        List<StubDatabase.Request> requests = stub.awaitRequests(3, TIMEOUT);
+        assertEquals(3, requests.size());
+        assertEquals("DELETE", requests.get(2).getMethod());
+    }
+
+    // Builds a document of the given keys, each holding a string of the given length
+    private static Map<String, Object> document(Object... keysAndLengths) {
+        Map<String, Object> document = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndLengths.length; i += 2) {
+            document.put((String) keysAndLengths[i], new String(new char[(Integer) keysAndLengths[i + 1]]).replace('\0', 'x'));
+        }
+        return document;
+    }
+
+    // Returns the push id named by the response to a document's upload
+    private static String pushId(FirebaseResponse response) {
+        assertTrue(response.getSuccess());
+        String pushId = (String) response.getBody().get("name");
+        assertEquals(20, pushId.length());
+        return pushId;
+    }
+
+    // Combines the bodies of the PATCH requests received into a single update
+    private static Map<String, Object> merge(List<StubDatabase.Request> requests) {
+        Map<String, Object> merged = new HashMap<>();
+        for (StubDatabase.Request request : requests) {
+            if ("PATCH".equals(request.getMethod())) merged.putAll(JsonToMap.parse(request.getText()));
+        }
+        return merged;
+    }
+}
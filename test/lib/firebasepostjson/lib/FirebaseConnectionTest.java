@@ -0,0 +1,99 @@
+/*
+    Tests of a FirebaseConnection authenticating with a CredentialManager, whose tokens come from a slow fake token endpoint:
+    callers aren't held up by another waiting on the endpoint, the firebase4j connection follows the token as it's refreshed,
+    and closing the connection releases the manager.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import net.thegreshams.firebase4j.service.Firebase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FirebaseConnectionTest {
+    // Longest a token is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+    // Time the fake token endpoint takes to answer, in milliseconds
+    private static final long ENDPOINT_LATENCY = 1000;
+
+    // Number of tokens fetched
+    private final AtomicInteger fetches = new AtomicInteger();
+    // The manager of the connection's tokens, and the connection under test
+    private CredentialManager credentials;
+    private FirebaseConnection con;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        // A slow endpoint, whose tokens live for two seconds so are refreshed after 1.6
+        credentials = new CredentialManager(() -> {
+            try {
+                Thread.sleep(ENDPOINT_LATENCY);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return new CredentialManager.Token("t" + fetches.incrementAndGet(), System.currentTimeMillis() + 2000);
+        });
+        con = new FirebaseConnection("https://test.firebaseio.com", credentials);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        con.close();
+    }
+
+    @Test
+    public void waitingForTokenDoesNotHoldUpOtherCallers() throws Exception {
+        CompletableFuture<Firebase> waiting = CompletableFuture.supplyAsync(con::get);
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+        // The connection's lock is free whilst the token is awaited
+        long start = System.nanoTime();
+        con.getMaxInFlightRequests();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < ENDPOINT_LATENCY / 2);
+        assertNotNull(waiting.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("t1", con.getAccessToken());
+    }
+
+    @Test
+    public void connectionFollowsRefreshedToken() throws Exception {
+        Firebase first = con.get();
+        assertSame(first, con.get());
+        CredentialManager.Token token = credentials.getCurrent();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (credentials.getCurrent() == token && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals("t2", con.getAccessToken());
+        assertNotSame(first, con.get());
+    }
+
+    @Test
+    public void tokenFailureIsSurfacedAsIllegalState() throws Exception {
+        con.close();
+        IOException failure = new IOException("Token endpoint unreachable.");
+        con = new FirebaseConnection("https://test.firebaseio.com", new CredentialManager(() -> {
+            throw failure;
+        }));
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> con.get());
+        assertTrue(e.getCause() instanceof IOException);
+        assertSame(failure, e.getCause().getCause());
+    }
+
+    @Test
+    public void closingReleasesCredentials() throws Exception {
+        assertEquals("t1", con.getAccessToken());
+        con.close();
+        assertTrue(credentials.isReleased());
+        assertFalse(con.isEstablished());
+        assertThrows(IllegalStateException.class, () -> con.get());
+    }
+}
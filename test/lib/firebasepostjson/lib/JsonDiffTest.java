@@ -0,0 +1,93 @@
+/*
+    Tests of JsonDiff: objects changed in place are descended into so only their changed keys are sent, removed keys are set to null,
+    arrays and values changing type are replaced whole, and applying the update to the previous version yields the current version.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonDiffTest {
+    @Test
+    public void identicalVersionsGiveEmptyUpdate() {
+        Map<String, Object> doc = JsonToMap.parse("{\"a\":1,\"b\":{\"c\":[1,2]}}");
+        assertTrue(JsonDiff.diff(doc, JsonToMap.parse("{\"b\":{\"c\":[1,2]},\"a\":1}"), "db/x").isEmpty());
+    }
+
+    @Test
+    public void nestedChangeSendsOnlyTheChangedKey() {
+        Map<String, Object> update = JsonDiff.diff(
+                JsonToMap.parse("{\"a\":1,\"b\":{\"c\":{\"d\":1,\"e\":2},\"f\":\"g\"}}"),
+                JsonToMap.parse("{\"a\":1,\"b\":{\"c\":{\"d\":1,\"e\":3},\"f\":\"g\"}}"), "db/x");
+        assertEquals(1, update.size());
+        assertEquals(3.0, update.get("db/x/b/c/e"));
+    }
+
+    @Test
+    public void removedKeysAreSetToNull() {
+        Map<String, Object> update = JsonDiff.diff(
+                JsonToMap.parse("{\"a\":1,\"b\":{\"c\":1,\"d\":2},\"e\":{\"f\":1}}"),
+                JsonToMap.parse("{\"a\":1,\"b\":{\"c\":1}}"), "db/x");
+        assertEquals(2, update.size());
+        assertTrue(update.containsKey("db/x/b/d") && update.get("db/x/b/d") == null);
+        assertTrue(update.containsKey("db/x/e") && update.get("db/x/e") == null);
+    }
+
+    @Test
+    public void arraysAreReplacedWhole() {
+        Map<String, Object> update = JsonDiff.diff(
+                JsonToMap.parse("{\"a\":[1,2,3],\"b\":[{\"c\":1}]}"),
+                JsonToMap.parse("{\"a\":[1,2,4],\"b\":[{\"c\":1}]}"), "db/x");
+        assertEquals(1, update.size());
+        assertEquals(Arrays.asList(1.0, 2.0, 4.0), update.get("db/x/a"));
+    }
+
+    @Test
+    public void valueChangingTypeIsReplacedWhole() {
+        Map<String, Object> update = JsonDiff.diff(
+                JsonToMap.parse("{\"a\":{\"b\":1},\"c\":5,\"d\":{\"e\":1}}"),
+                JsonToMap.parse("{\"a\":\"flat\",\"c\":{\"f\":1},\"d\":{}}"), "");
+        assertEquals(3, update.size());
+        assertEquals("flat", update.get("a"));
+        assertEquals(JsonToMap.parse("{\"f\":1}"), update.get("c"));
+        // An emptied object holds nothing in the database, so is written whole (as empty) rather than descended into
+        assertEquals(new LinkedHashMap<>(), update.get("d"));
+    }
+
+    @Test
+    public void applyingUpdateYieldsCurrentVersion() {
+        Map<String, Object> previous = JsonToMap.parse("{\"a\":1,\"b\":{\"c\":{\"d\":1,\"e\":[1]},\"f\":\"g\"},\"h\":true}");
+        Map<String, Object> current = JsonToMap.parse("{\"a\":2,\"b\":{\"c\":{\"d\":1,\"e\":[1,2],\"x\":{\"y\":1}}},\"i\":null,\"j\":\"k\"}");
+        Map<String, Object> update = JsonDiff.diff(previous, current, "db/x/");
+        Map<String, Object> database = new LinkedHashMap<>();
+        database.put("db", new LinkedHashMap<>(Collections.singletonMap("x", previous)));
+        for (Map.Entry<String, Object> e : update.entrySet()) set(database, e.getKey(), e.getValue());
+        Map<String, Object> expected = JsonToMap.parse("{\"a\":2,\"b\":{\"c\":{\"d\":1,\"e\":[1,2],\"x\":{\"y\":1}}},\"j\":\"k\"}");
+        assertEquals(expected, ((Map<?, ?>) database.get("db")).get("x"));
+    }
+
+    // Sets the location at the given path within a database held as nested maps to a value, removing it if null, as a multi-location update would
+    @SuppressWarnings("unchecked")
+    private static void set(Map<String, Object> database, String path, Object value) {
+        List<String> keys = Arrays.asList(path.split("/"));
+        Map<String, Object> node = database;
+        for (String key : keys.subList(0, keys.size() - 1)) {
+            Object child = node.get(key);
+            if (!(child instanceof Map)) node.put(key, child = new LinkedHashMap<String, Object>());
+            else if (!(child instanceof LinkedHashMap)) node.put(key, child = new LinkedHashMap<>((Map<String, Object>) child));
+            node = (Map<String, Object>) child;
+        }
+        String last = keys.get(keys.size() - 1);
+        if (value == null) node.remove(last);
+        else node.put(last, value);
+    }
+}
@@ -0,0 +1,232 @@
+/*
+    An in-process HTTP server standing in for a Google Firebase (or its token endpoint) within the tests.
+    Every request is recorded - its method (including a PATCH sent as a POST with X-HTTP-Method-Override), path, headers and body -
+    and answered with the status chosen by the responder (200 OK by default) after an optional latency.
+    The most requests handled at once is also recorded, so caps on the requests in flight may be checked.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.firebasepostjson.lib;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+public class StubDatabase implements Closeable {
+    // A request received by the stub
+    public static final class Request {
+        private final String method;
+        private final String uri;
+        private final String contentEncoding;
+        private final byte[] body;
+        private final long receivedNanos;
+
+        Request(String method, String uri, String contentEncoding, byte[] body) {
+            this.method = method;
+            this.uri = uri;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+            this.receivedNanos = System.nanoTime();
+        }
+
+        // Getter for the method, with a method override applied (e.g. PATCH)
+        public String getMethod() {
+            return this.method;
+        }
+
+        // Getter for the path and query of the request
+        public String getUri() {
+            return this.uri;
+        }
+
+        // Getter for the path of the request, without its query
+        public String getPath() {
+            int q = uri.indexOf('?');
+            return q < 0 ? uri : uri.substring(0, q);
+        }
+
+        // Getter for the Content-Encoding header, or null if there was none
+        public String getContentEncoding() {
+            return this.contentEncoding;
+        }
+
+        // Getter for the body as sent
+        public byte[] getBody() {
+            return this.body;
+        }
+
+        // Getter for the body as text, decompressed if it was sent with gzip
+        public String getText() {
+            if (!"gzip".equals(contentEncoding)) return new String(body, StandardCharsets.UTF_8);
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                return new String(readFully(in), StandardCharsets.UTF_8);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Getter for when the request was received, in nanoseconds
+        public long getReceivedNanos() {
+            return this.receivedNanos;
+        }
+    }
+
+    // A response chosen for a request: its status, body and any headers besides Content-Type
+    public static final class Response {
+        private final int status;
+        private final String body;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        public Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        // Adds a header to the response, returning the response
+        public Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    // The response to a successful POST, as Firebase answers with the push id it generated
+    public static final Response OK = new Response(200, "{\"name\":\"-StubPushId000000000\"}");
+
+    // The server, listening on an ephemeral port of the loopback address
+    private final HttpServer server;
+    // Threads handling requests, enough that requests are never held back by the stub
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "stub-database");
+        t.setDaemon(true);
+        return t;
+    });
+    // The requests received, in order (guarded by itself)
+    private final List<Request> requests = new ArrayList<>();
+    // Chooses the response to each request
+    private volatile Function<Request, Response> responder = r -> OK;
+    // Time each request is held before it's answered, in milliseconds
+    private volatile int latency = 0;
+    // Number of requests being handled, and the most handled at once
+    private final AtomicInteger handling = new AtomicInteger();
+    private final AtomicInteger maxHandling = new AtomicInteger();
+
+    // Starts a stub on an ephemeral port of the loopback address
+    public StubDatabase() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    // Returns the base url of the stub, as a FirebaseConnection is constructed with
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    // Records a request, then answers it once the latency has passed
+    private void handle(HttpExchange exchange) throws IOException {
+        int now = handling.incrementAndGet();
+        maxHandling.accumulateAndGet(now, Math::max);
+        try {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = readFully(in);
+            }
+            String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+            Request request = new Request(override != null ? override : exchange.getRequestMethod(), exchange.getRequestURI().toString(),
+                    exchange.getRequestHeaders().getFirst("Content-Encoding"), body);
+            synchronized (requests) {
+                requests.add(request);
+                requests.notifyAll();
+            }
+            if (latency > 0) Thread.sleep(latency);
+            Response response = responder.apply(request);
+            byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            for (Map.Entry<String, String> header : response.headers.entrySet()) exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+            exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        catch (InterruptedException e) { // Closing
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            handling.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    // Waits until at least n requests have been received, returning them, or fails once the timeout passes
+    public List<Request> awaitRequests(int n, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (requests) {
+            while (requests.size() < n) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) throw new AssertionError("Expected " + n + " requests but received " + requests.size() + ".");
+                requests.wait(remaining);
+            }
+            return new ArrayList<>(requests);
+        }
+    }
+
+    // Returns the requests received so far
+    public List<Request> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    // Setter for the responder choosing the response to each request
+    public void setResponder(Function<Request, Response> x) {
+        this.responder = x;
+    }
+
+    // Setter for the time each request is held before it's answered, in milliseconds
+    public void setLatency(int x) {
+        this.latency = x;
+    }
+
+    // Getter for the most requests handled at once
+    public int getMaxConcurrent() {
+        return this.maxHandling.get();
+    }
+
+    // Stops the server
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // Reads a stream to its end
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) != -1) buffer.write(chunk, 0, n);
+        return buffer.toByteArray();
+    }
+}
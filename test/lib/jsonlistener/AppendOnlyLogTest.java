@@ -0,0 +1,153 @@
+/*
+    Tests that the append-only logs survive a crash mid-write: a torn final line is cut off when the log is opened,
+    so the next line appended doesn't join onto it, and malformed entries are skipped rather than stopping the journal or index from opening.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AppendOnlyLogTest {
+    // Directory holding each test's files
+    private Path dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("append-only-log-test");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void tornLineIsCutOffWhenOpened() throws IOException {
+        Path file = dir.resolve("log.txt");
+        write(file, "first\nsecond\nthir");
+        try (AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(4, log.getTruncated());
+            log.append("third");
+        }
+        try (AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(0, log.getTruncated());
+            assertEquals(Arrays.asList("first", "second", "third"), log.readLines());
+        }
+    }
+
+    @Test
+    public void logWithoutCompleteLineIsEmptiedWhenOpened() throws IOException {
+        Path file = dir.resolve("log.txt");
+        write(file, "torn");
+        try (AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(4, log.getTruncated());
+            log.append("whole");
+        }
+        try (AppendOnlyLog log = new AppendOnlyLog(file)) {
+            assertEquals(Arrays.asList("whole"), log.readLines());
+        }
+    }
+
+    @Test
+    public void retryJournalReopensAfterTornEntryAndAppend() throws IOException {
+        Path file = dir.resolve("journal.txt");
+        try (RetryJournal journal = new RetryJournal(file)) {
+            journal.recordFailure(new UploadJob(new File("a.json"), "db", 1));
+        }
+        // A crash mid-write leaves half of an entry at the end of the journal
+        append(file, "+\t2\tdb\tb.js");
+        try (RetryJournal journal = new RetryJournal(file)) {
+            assertEquals(1, journal.getSkippedEntries());
+            assertEquals(1, journal.getOutstanding().size());
+            journal.recordFailure(new UploadJob(new File("c.json"), "db", 3));
+        }
+        try (RetryJournal journal = new RetryJournal(file)) {
+            assertEquals(0, journal.getSkippedEntries());
+            List<UploadJob> outstanding = journal.getOutstanding();
+            assertEquals(2, outstanding.size());
+            assertEquals("c.json", outstanding.get(1).getFile().getPath());
+            assertEquals(3, outstanding.get(1).getAttempts());
+        }
+    }
+
+    @Test
+    public void retryJournalSkipsMalformedEntries() throws IOException {
+        Path file = dir.resolve("journal.txt");
+        write(file, "+\tnot-a-number\tdb\ta.json\ngarbage\n+\t2\tdb\tb.json\n");
+        try (RetryJournal journal = new RetryJournal(file)) {
+            assertEquals(2, journal.getSkippedEntries());
+            assertEquals(1, journal.getOutstanding().size());
+            assertTrue(journal.isOutstanding(new File("b.json")));
+        }
+    }
+
+    @Test
+    public void processedIndexReopensAfterTornEntryAndAppend() throws IOException {
+        Path file = dir.resolve("index.txt");
+        Path a = jsonFile("a.json"), b = jsonFile("b.json");
+        try (ProcessedIndex index = new ProcessedIndex(file)) {
+            index.record(a, attributes(a));
+        }
+        append(file, "12\t15");
+        try (ProcessedIndex index = new ProcessedIndex(file)) {
+            assertEquals(1, index.getSkippedEntries());
+            index.record(b, attributes(b));
+        }
+        try (ProcessedIndex index = new ProcessedIndex(file)) {
+            assertEquals(0, index.getSkippedEntries());
+            assertEquals(2, index.size());
+            assertTrue(index.isProcessed(a, attributes(a)));
+            assertTrue(index.isProcessed(b, attributes(b)));
+        }
+    }
+
+    @Test
+    public void processedIndexSkipsMalformedEntries() throws IOException {
+        Path file = dir.resolve("index.txt");
+        write(file, "x\t1\t2\ta.json\n1\t2\tb.json\n3\t4\t5\tc.json\n");
+        try (ProcessedIndex index = new ProcessedIndex(file)) {
+            assertEquals(2, index.getSkippedEntries());
+            assertEquals(1, index.size());
+        }
+    }
+
+    // Writes the given content to a file, replacing it
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Appends the given content to a file, as a write cut off by a crash would
+    private static void append(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    // Creates a small JSON file within the test directory
+    private Path jsonFile(String name) throws IOException {
+        Path f = dir.resolve(name);
+        write(f, "{\"name\":\"" + name + "\"}");
+        return f;
+    }
+
+    private static BasicFileAttributes attributes(Path f) throws IOException {
+        return Files.readAttributes(f, BasicFileAttributes.class);
+    }
+}
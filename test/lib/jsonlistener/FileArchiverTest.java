@@ -0,0 +1,193 @@
+/*
+    Tests of the FileArchiver: uploaded files deleted or archived and removed from the processed file index, archived files sharded by day or by a hash
+    of their name, a name already taken within the archive given a free suffix, files given up on quarantined, and a file already gone left be.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileArchiverTest {
+    // Directory holding each test's files, the watched directory within it, and the archive and quarantine directories beside it
+    private Path dir;
+    private Path watched;
+    private Path archive;
+    private Path quarantine;
+    // Index of the files processed
+    private ProcessedIndex index;
+    // The archiver under test
+    private FileArchiver archiver;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("file-archiver-test");
+        watched = Files.createDirectories(dir.resolve("watched"));
+        archive = dir.resolve("archive");
+        quarantine = dir.resolve("quarantine");
+        index = new ProcessedIndex(dir.resolve("index.txt"));
+        Logger log = Logger.getAnonymousLogger();
+        log.setLevel(Level.SEVERE);
+        archiver = new FileArchiver(index, log);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        archiver.stop();
+        index.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void keptFilesAreLeftBe() throws Exception {
+        assertFalse(archiver.isEnabled());
+        archiver.start();
+        Path a = processed("a.json");
+        archiver.uploaded(job(a));
+        archiver.stop();
+        assertTrue(Files.exists(a));
+        assertTrue(index.isProcessed(a, attributes(a)));
+    }
+
+    @Test
+    public void deletedFileIsRemovedFromIndex() throws Exception {
+        archiver.setDisposition(FileArchiver.Disposition.DELETE);
+        archiver.start();
+        Path a = processed("a.json");
+        BasicFileAttributes attrs = attributes(a);
+        archiver.uploaded(job(a));
+        archiver.stop();
+        assertFalse(Files.exists(a));
+        assertFalse(index.isProcessed(a, attrs));
+    }
+
+    @Test
+    public void archivedFileIsShardedByDay() throws Exception {
+        archive();
+        archiver.start();
+        Path a = processed("a.json");
+        UploadJob job = job(a);
+        archiver.uploaded(job);
+        archiver.stop();
+        String day = DateTimeFormatter.ofPattern("yyyy/MM/dd").withZone(ZoneId.systemDefault()).format(Instant.ofEpochMilli(job.getDetectedMillis()));
+        assertFalse(Files.exists(a));
+        assertEquals("{}", new String(Files.readAllBytes(archive.resolve(day).resolve("a.json")), StandardCharsets.UTF_8));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void archivedFileIsShardedByHashOfItsName() throws Exception {
+        archive();
+        archiver.setSharding(FileArchiver.Sharding.BY_HASH);
+        archiver.start();
+        Path a = processed("a.json");
+        archiver.uploaded(job(a));
+        archiver.stop();
+        CRC32 crc = new CRC32();
+        crc.update("a.json".getBytes(StandardCharsets.UTF_8));
+        long h = crc.getValue();
+        assertTrue(Files.exists(archive.resolve(String.format("%02x", (h >>> 8) & 0xff)).resolve(String.format("%02x", h & 0xff)).resolve("a.json")));
+    }
+
+    @Test
+    public void takenNameIsGivenAFreeSuffix() throws Exception {
+        archive();
+        archiver.setSharding(FileArchiver.Sharding.NONE);
+        // A file of the same name archived by an earlier run, and another from a different watched directory
+        Files.createDirectories(archive);
+        Files.write(archive.resolve("a.json"), "earlier".getBytes(StandardCharsets.UTF_8));
+        Path a = processed("a.json");
+        Path other = Files.createDirectories(watched.resolve("other")).resolve("a.json");
+        Files.write(other, "other".getBytes(StandardCharsets.UTF_8));
+        archiver.start();
+        archiver.uploaded(job(a));
+        archiver.uploaded(job(other));
+        archiver.stop();
+        assertEquals("earlier", new String(Files.readAllBytes(archive.resolve("a.json")), StandardCharsets.UTF_8));
+        assertEquals("{}", new String(Files.readAllBytes(archive.resolve("a-1.json")), StandardCharsets.UTF_8));
+        assertEquals("other", new String(Files.readAllBytes(archive.resolve("a-2.json")), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(a) || Files.exists(other));
+    }
+
+    @Test
+    public void failedFileIsQuarantined() throws Exception {
+        archiver.setQuarantineDirectory(quarantine);
+        archiver.setSharding(FileArchiver.Sharding.NONE);
+        assertTrue(archiver.isEnabled());
+        archiver.start();
+        Path a = processed("a.json"), b = processed("b.json");
+        archiver.failed(job(a));
+        // Uploaded files are kept, as the disposition is KEEP
+        archiver.uploaded(job(b));
+        archiver.stop();
+        assertTrue(Files.exists(quarantine.resolve("a.json")));
+        assertFalse(Files.exists(a));
+        assertTrue(Files.exists(b));
+        assertTrue(archiver.isArchiveDirectory(quarantine.resolve("2019")));
+        assertFalse(archiver.isArchiveDirectory(watched));
+    }
+
+    @Test
+    public void fileMissingAtDisposalIsLeftBe() throws Exception {
+        archive();
+        archiver.setQuarantineDirectory(quarantine);
+        archiver.start();
+        Path a = processed("a.json"), b = processed("b.json");
+        Files.delete(a);
+        archiver.uploaded(job(a));
+        // Disposal carries on with the files after it
+        archiver.uploaded(job(b));
+        archiver.stop();
+        assertEquals(0, index.size());
+        try (Stream<Path> archived = Files.walk(archive)) {
+            assertEquals(1, archived.filter(Files::isRegularFile).count());
+        }
+        assertFalse(Files.exists(quarantine.resolve("a.json")));
+    }
+
+    // Archives uploaded files within the archive directory
+    private void archive() {
+        archiver.setDisposition(FileArchiver.Disposition.ARCHIVE);
+        archiver.setArchiveDirectory(archive);
+    }
+
+    // Writes an empty document to a file within the watched directory, recording it as processed
+    private Path processed(String name) throws IOException {
+        Path file = watched.resolve(name);
+        Files.write(file, "{}".getBytes(StandardCharsets.UTF_8));
+        index.record(file, attributes(file));
+        return file;
+    }
+
+    // A job uploading the given file, as detected now
+    private static UploadJob job(Path file) {
+        UploadJob job = new UploadJob(file.toFile(), "db");
+        job.submitted();
+        return job;
+    }
+
+    // Reads a file's attributes
+    private static BasicFileAttributes attributes(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
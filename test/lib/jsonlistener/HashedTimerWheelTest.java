@@ -0,0 +1,99 @@
+/*
+    Tests of the HashedTimerWheel: tasks run no earlier than their delay and in the order they fall due, including delays longer than a turn of the wheel,
+    a task which throws doesn't stop the wheel, and once stopped no task runs and none may be scheduled.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HashedTimerWheelTest {
+    // Longest a task is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+
+    // The wheel under test, constructed by each test
+    private HashedTimerWheel wheel;
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        if (wheel != null) wheel.stop();
+    }
+
+    @Test
+    public void tasksRunAfterTheirDelayInDeadlineOrder() throws Exception {
+        wheel = new HashedTimerWheel(10, 64, UploadPipeline.threadFactory("test-wheel"));
+        wheel.start();
+        List<String> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        long start = System.nanoTime();
+        long[] elapsed = new long[3];
+        wheel.schedule(() -> { elapsed[2] = sinceMillis(start); ran.add("c"); done.countDown(); }, 150);
+        wheel.schedule(() -> { elapsed[0] = sinceMillis(start); ran.add("a"); done.countDown(); }, 0);
+        wheel.schedule(() -> { elapsed[1] = sinceMillis(start); ran.add("b"); done.countDown(); }, 60);
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("a", "b", "c"), ran);
+        assertTrue(elapsed[1] >= 60);
+        assertTrue(elapsed[2] >= 150);
+    }
+
+    @Test
+    public void delayLongerThanATurnWaitsOutItsRounds() throws Exception {
+        // Four buckets of 10 ms, so the wheel turns every 40 ms and the task's bucket comes round five times before it's due
+        wheel = new HashedTimerWheel(10, 4, UploadPipeline.threadFactory("test-wheel"));
+        wheel.start();
+        CountDownLatch done = new CountDownLatch(2);
+        long start = System.nanoTime();
+        long[] elapsed = new long[2];
+        wheel.schedule(() -> { elapsed[0] = sinceMillis(start); done.countDown(); }, 200);
+        // Falls within the same bucket, a turn earlier
+        wheel.schedule(() -> { elapsed[1] = sinceMillis(start); done.countDown(); }, 160);
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(elapsed[0] >= 200);
+        assertTrue(elapsed[1] >= 160 && elapsed[1] < elapsed[0]);
+    }
+
+    @Test
+    public void throwingTaskDoesNotStopTheWheel() throws Exception {
+        List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+        wheel = new HashedTimerWheel(10, 64, r -> {
+            Thread t = UploadPipeline.threadFactory("test-wheel").newThread(r);
+            t.setUncaughtExceptionHandler((thread, e) -> uncaught.add(e));
+            return t;
+        });
+        wheel.start();
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(() -> { throw new IllegalStateException("Task failed"); }, 0);
+        wheel.schedule(done::countDown, 50);
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, uncaught.size());
+        assertTrue(uncaught.get(0) instanceof IllegalStateException);
+    }
+
+    @Test
+    public void stoppedWheelDiscardsPendingTasksAndRejectsNewOnes() throws Exception {
+        wheel = new HashedTimerWheel(10, 64, UploadPipeline.threadFactory("test-wheel"));
+        wheel.start();
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(ran::countDown, 200);
+        wheel.stop();
+        assertThrows(RejectedExecutionException.class, () -> wheel.schedule(ran::countDown, 0));
+        assertFalse(ran.await(400, TimeUnit.MILLISECONDS));
+        wheel = null;
+    }
+
+    // Milliseconds elapsed since the given System.nanoTime()
+    private static long sinceMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
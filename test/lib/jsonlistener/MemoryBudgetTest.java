@@ -0,0 +1,87 @@
+/*
+    Tests of the MemoryBudget: a reservation which doesn't fit waits for room whereas tryReserve refuses it at once,
+    a reservation larger than the whole budget is admitted once nothing else is reserved, and a waiting reservation may be interrupted.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import org.junit.jupiter.api.Test;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoryBudgetTest {
+    // Longest a reservation is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+
+    @Test
+    public void reservationWaitsForRoom() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.reserve(60);
+        CountDownLatch reserved = new CountDownLatch(1);
+        Thread waiting = new Thread(() -> {
+            try {
+                budget.reserve(60);
+                reserved.countDown();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        assertFalse(reserved.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(60, budget.getReserved());
+        budget.release(60);
+        assertTrue(reserved.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(60, budget.getReserved());
+    }
+
+    @Test
+    public void tryReserveRefusesWithoutWaiting() {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(60));
+        assertFalse(budget.tryReserve(41));
+        assertEquals(60, budget.getReserved());
+        assertTrue(budget.tryReserve(40));
+        assertEquals(100, budget.getReserved());
+    }
+
+    @Test
+    public void reservationLargerThanBudgetIsAdmittedAlone() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        assertTrue(budget.tryReserve(10));
+        assertFalse(budget.tryReserve(500));
+        budget.release(10);
+        // Nothing else is reserved, so it's admitted rather than refused forever
+        budget.reserve(500);
+        assertEquals(500, budget.getReserved());
+        assertFalse(budget.tryReserve(1));
+        budget.release(500);
+        assertEquals(0, budget.getReserved());
+    }
+
+    @Test
+    public void waitingReservationMayBeInterrupted() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        budget.reserve(100);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread waiting = new Thread(() -> {
+            try {
+                budget.reserve(1);
+            }
+            catch (InterruptedException e) {
+                thrown.set(e);
+            }
+        });
+        waiting.start();
+        Thread.sleep(100);
+        waiting.interrupt();
+        waiting.join(TIMEOUT);
+        assertTrue(thrown.get() instanceof InterruptedException);
+        assertEquals(100, budget.getReserved());
+    }
+}
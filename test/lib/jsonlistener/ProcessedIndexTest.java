@@ -0,0 +1,77 @@
+/*
+    Tests that the ProcessedIndex tells a file rewritten in place from one unchanged since it was processed,
+    and that removing the files no longer on disk bounds the index, surviving a reopen.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProcessedIndexTest {
+    // Directory holding each test's files
+    private Path dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("processed-index-test");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void fileRewrittenInPlaceIsNoLongerProcessed() throws IOException {
+        Path f = dir.resolve("a.json");
+        Files.write(f, "{\"v\":1}".getBytes(StandardCharsets.UTF_8));
+        try (ProcessedIndex index = new ProcessedIndex(dir.resolve("index.txt"))) {
+            index.record(f, attributes(f));
+            assertTrue(index.isProcessed(f, attributes(f)));
+            // The same size, though modified later
+            Files.write(f, "{\"v\":2}".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(f, FileTime.fromMillis(Files.getLastModifiedTime(f).toMillis() + 5000));
+            assertFalse(index.isProcessed(f, attributes(f)));
+        }
+    }
+
+    @Test
+    public void removeMissingDropsOnlyFilesNoLongerOnDisk() throws IOException {
+        Path index = dir.resolve("index.txt");
+        Path kept = dir.resolve("kept.json"), deleted = dir.resolve("deleted.json");
+        Files.write(kept, "{}".getBytes(StandardCharsets.UTF_8));
+        Files.write(deleted, "{}".getBytes(StandardCharsets.UTF_8));
+        try (ProcessedIndex processed = new ProcessedIndex(index)) {
+            processed.record(kept, attributes(kept));
+            processed.record(deleted, attributes(deleted));
+            Files.delete(deleted);
+            assertEquals(1, processed.removeMissing());
+            assertEquals(1, processed.size());
+            assertEquals(0, processed.removeMissing());
+        }
+        try (ProcessedIndex processed = new ProcessedIndex(index)) {
+            assertEquals(1, processed.size());
+            assertTrue(processed.isProcessed(kept, attributes(kept)));
+        }
+    }
+
+    private static BasicFileAttributes attributes(Path f) throws IOException {
+        return Files.readAttributes(f, BasicFileAttributes.class);
+    }
+}
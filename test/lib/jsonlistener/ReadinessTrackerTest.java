@@ -0,0 +1,210 @@
+/*
+    Tests that the ReadinessTracker only passes a file on once it's completely written: quiescent, or long unmodified, and unlocked.
+    A file still growing, touched by a modification event or locked is rechecked until it's ready, whereas one removed, or still not ready
+    after the maximum checks or at shutdown, is given up on.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadinessTrackerTest {
+    // Longest each file's outcome is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+    // Interval between checks of a pending file, in milliseconds
+    private static final int CHECK_INTERVAL = 100;
+    // Metrics listener discarding every metric
+    private static final MetricsListener NO_METRICS = new MetricsListener() {
+        @Override
+        public void latency(Stage stage, long nanos) {
+        }
+
+        @Override
+        public void count(Counter counter, long delta) {
+        }
+    };
+
+    // Directory holding each test's files
+    private Path dir;
+    // The tracker under test
+    private ReadinessTracker tracker;
+    // The outcome of each file leaving the tracker
+    private final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+
+    // A file leaving the tracker: ready, or failed with the given cause
+    private static final class Outcome {
+        final String file;
+        final Throwable cause;
+        final long nanos = System.nanoTime();
+
+        Outcome(UploadJob job, Throwable cause) {
+            this.file = job.getFile().getName();
+            this.cause = cause;
+        }
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("readiness-tracker-test");
+        Logger log = Logger.getAnonymousLogger();
+        log.setLevel(Level.SEVERE);
+        tracker = new ReadinessTracker(log, NO_METRICS, CHECK_INTERVAL, 20, job -> outcomes.add(new Outcome(job, null)), (job, e) -> outcomes.add(new Outcome(job, e)));
+        tracker.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        tracker.shutdown();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void fileLongUnmodifiedIsReadyOnFirstCheck() throws Exception {
+        Path a = write("a.json", -60000);
+        tracker.track(new UploadJob(a.toFile(), "db"));
+        Outcome outcome = await();
+        assertEquals("a.json", outcome.file);
+        assertNull(outcome.cause);
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void growingFileIsReadyOnceItStopsChanging() throws Exception {
+        Path a = write("a.json", 0);
+        UploadJob job = new UploadJob(a.toFile(), "db");
+        tracker.track(job);
+        long lastWrite = 0;
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(CHECK_INTERVAL / 4);
+            Files.write(a, ",0".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            lastWrite = System.nanoTime();
+            assertTrue(outcomes.isEmpty());
+        }
+        Outcome outcome = await();
+        assertNull(outcome.cause);
+        assertTrue(outcome.nanos > lastWrite);
+        assertTrue(job.getLockedTries() >= 2);
+        assertEquals(Files.size(a), job.getSize());
+    }
+
+    @Test
+    public void touchedFileIsRecheckedEvenIfUnchanged() throws Exception {
+        // Modified in the future, so only an unchanged size and modification time deem it quiescent, not its age
+        Path a = write("a.json", 60000);
+        UploadJob job = new UploadJob(a.toFile(), "db");
+        tracker.track(job);
+        // The first check finds it new, so the second deems it quiescent unless a modification event arrives in between
+        Thread.sleep(CHECK_INTERVAL / 2);
+        tracker.touched(a);
+        assertNull(outcomes.poll(CHECK_INTERVAL, TimeUnit.MILLISECONDS));
+        assertNull(await().cause);
+        assertEquals(2, job.getLockedTries());
+    }
+
+    @Test
+    public void lockedFileIsReadyOnceUnlocked() throws Exception {
+        Path a = write("a.json", -60000);
+        try (FileChannel channel = FileChannel.open(a, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            tracker.track(new UploadJob(a.toFile(), "db"));
+            // Rechecked whilst locked, however long it has been unmodified
+            assertNull(outcomes.poll(CHECK_INTERVAL * 3, TimeUnit.MILLISECONDS));
+            assertEquals(1, tracker.size());
+            lock.release();
+        }
+        assertNull(await().cause);
+    }
+
+    @Test
+    public void removedFileFails() throws Exception {
+        Path a = write("a.json", 0);
+        tracker.track(new UploadJob(a.toFile(), "db"));
+        Files.delete(a);
+        assertTrue(await().cause instanceof NoSuchFileException);
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void fileStillChangingAfterMaxChecksFails() throws Exception {
+        Logger log = Logger.getAnonymousLogger();
+        log.setLevel(Level.SEVERE);
+        ReadinessTracker impatient = new ReadinessTracker(log, NO_METRICS, CHECK_INTERVAL, 2, job -> outcomes.add(new Outcome(job, null)), (job, e) -> outcomes.add(new Outcome(job, e)));
+        impatient.start();
+        try {
+            Path a = write("a.json", 60000);
+            UploadJob job = new UploadJob(a.toFile(), "db");
+            impatient.track(job);
+            // Touched before every check, so it's never quiescent
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (outcomes.isEmpty() && System.currentTimeMillis() < deadline) {
+                impatient.touched(a);
+                Thread.sleep(CHECK_INTERVAL / 4);
+            }
+            Outcome outcome = await();
+            assertTrue(outcome.cause instanceof IOException);
+            assertTrue(outcome.cause.getMessage().contains("after 2 checks"));
+            assertEquals(3, job.getLockedTries());
+        }
+        finally {
+            impatient.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownGivesPendingFilesAFinalCheck() throws Exception {
+        Path locked = write("locked.json", -60000);
+        try (FileChannel channel = FileChannel.open(locked, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            tracker.track(new UploadJob(locked.toFile(), "db"));
+            assertNull(outcomes.poll(CHECK_INTERVAL, TimeUnit.MILLISECONDS));
+            tracker.shutdown();
+            Outcome outcome = await();
+            assertEquals("locked.json", outcome.file);
+            assertTrue(outcome.cause instanceof IOException);
+            lock.release();
+        }
+        // No further files are accepted
+        assertThrows(RejectedExecutionException.class, () -> tracker.track(new UploadJob(locked.toFile(), "db")));
+        assertEquals(0, tracker.size());
+    }
+
+    // Writes a small file, whose modification time is offset from now by the given number of milliseconds
+    private Path write(String name, long offset) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, "[0".getBytes(StandardCharsets.UTF_8));
+        if (offset != 0) Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + offset));
+        return file;
+    }
+
+    // Returns the next file to leave the tracker
+    private Outcome await() throws InterruptedException {
+        Outcome outcome = outcomes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(outcome, "No file left the tracker.");
+        return outcome;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+    Tests of the UploadPipeline against a StubDatabase, uploading through the asynchronous transport.
+    Each file is submitted and its outcome awaited, then the requests the database received are checked.
+
+    Author: Omar Tanner, 2019 -- open source.
+*/
+
+package lib.jsonlistener;
+
+import lib.firebasepostjson.lib.FirebaseConnection;
+import lib.firebasepostjson.lib.JsonToMap;
+import lib.firebasepostjson.lib.JsonTransform;
+import lib.firebasepostjson.lib.StubDatabase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UploadPipelineTest {
+    // Longest each file's outcome is awaited, in milliseconds
+    private static final long TIMEOUT = 10000;
+
+    // Directory holding each test's files
+    private Path dir;
+    // The database uploaded to
+    private StubDatabase stub;
+    private FirebaseConnection con;
+    // The pipeline under test, constructed by each test once configured
+    private UploadPipeline pipeline;
+    // The outcome of each job leaving the pipeline, e.g. "uploaded a.json"
+    private final BlockingQueue<String> outcomes = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("upload-pipeline-test");
+        stub = new StubDatabase();
+        con = new FirebaseConnection(stub.getBaseUrl());
+        Logger log = Logger.getAnonymousLogger();
+        log.setLevel(Level.WARNING);
+        pipeline = new UploadPipeline(con, log, new UploadListener() {
+            @Override
+            public void uploaded(UploadJob job) {
+                outcomes.add("uploaded " + job.getFile().getName());
+            }
+
+            @Override
+            public void skipped(UploadJob job) {
+                outcomes.add("skipped " + job.getFile().getName());
+            }
+
+            @Override
+            public void failed(UploadJob job, Throwable cause) {
+                outcomes.add("failed " + job.getFile().getName() + " " + cause);
+            }
+        });
+        pipeline.setAsyncUploads(true);
+        pipeline.setLockedFilePollCooldown(10);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        pipeline.shutdown();
+        con.close();
+        stub.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void deltaRevertToEarlierVersionIsUploaded() throws Exception {
+        pipeline.setDeltaUploads(true);
+        pipeline.setDedupCache(new ContentHashCache(100, null));
+        pipeline.start(16);
+        Path a = dir.resolve("a.json");
+        write(a, "{\"v\":1,\"w\":0}");
+        assertEquals("uploaded a.json", submit(a));
+        write(a, "{\"v\":2,\"w\":0}");
+        assertEquals("uploaded a.json", submit(a));
+        // Reverting to the first version must still be sent, as the location now holds the second
+        write(a, "{\"v\":1,\"w\":0}");
+        assertEquals("uploaded a.json", submit(a));
+        List<StubDatabase.Request> requests = stub.awaitRequests(3, TIMEOUT);
+        assertEquals(3, requests.size());
+        Map<String, Object> revert = JsonToMap.parse(requests.get(2).getText());
+        assertEquals(1, revert.size());
+        assertEquals(1, ((Number) revert.get("db/a/v")).intValue());
+        // Whereas the same version again is identical to what the location holds
+        assertEquals("skipped a.json", submit(a));
+        assertEquals(3, stub.getRequests().size());
+    }
+
+    @Test
+    public void deltaVersionsOfSameTargetAreDiffedInTurn() throws Exception {
+        pipeline.setDeltaUploads(true);
+        pipeline.start(16);
+        stub.setLatency(300);
+        // Both files are written to db/x_y, so the second must be diffed against the first once it's uploaded
+        Path a = dir.resolve("x.y.json"), b = dir.resolve("x_y.json");
+        write(a, "{\"v\":1,\"w\":0}");
+        write(b, "{\"v\":2,\"w\":0}");
+        assertTrue(pipeline.submit(new UploadJob(a.toFile(), "db")));
+        assertTrue(pipeline.submit(new UploadJob(b.toFile(), "db")));
+        for (int i = 0; i < 2; i++) assertTrue(outcomes.poll(TIMEOUT, TimeUnit.MILLISECONDS).startsWith("uploaded "));
+        List<StubDatabase.Request> requests = stub.awaitRequests(2, TIMEOUT);
+        assertEquals(1, stub.getMaxConcurrent());
+        assertTrue(JsonToMap.parse(requests.get(0).getText()).containsKey("db/x_y"));
+        Map<String, Object> delta = JsonToMap.parse(requests.get(1).getText());
+        assertEquals(1, delta.size());
+        assertTrue(delta.containsKey("db/x_y/v"));
+    }
+
+    @Test
+    public void deltaModeSwitchedWhilstRunningTakesEffectOnRestart() throws Exception {
+        pipeline.start(16);
+        pipeline.setDeltaUploads(true);
+        Path a = dir.resolve("a.json");
+        write(a, "{\"v\":1}");
+        // Still posted beneath a new push id, as the pipeline was started without delta uploads
+        assertEquals("uploaded a.json", submit(a));
+        assertEquals("POST", stub.awaitRequests(1, TIMEOUT).get(0).getMethod());
+        pipeline.shutdown();
+        pipeline.start(16);
+        assertEquals("uploaded a.json", submit(a));
+        StubDatabase.Request request = stub.awaitRequests(2, TIMEOUT).get(1);
+        assertEquals("PATCH", request.getMethod());
+        assertTrue(JsonToMap.parse(request.getText()).containsKey("db/a"));
+    }
+
+    @Test
+    public void fileBeyondMemoryBudgetWaitsForRoom() throws Exception {
+        // Room for one file's document at a time
+        pipeline.setMemoryBudget(150);
+        pipeline.setMemoryExpansion(1);
+        pipeline.start(16);
+        stub.setLatency(300);
+        Path a = dir.resolve("a.json"), b = dir.resolve("b.json");
+        write(a, padded("a", 100));
+        write(b, padded("b", 100));
+        assertTrue(pipeline.submit(new UploadJob(a.toFile(), "db")));
+        stub.awaitRequests(1, TIMEOUT);
+        assertEquals(100, pipeline.getMemoryReserved());
+        assertTrue(pipeline.submit(new UploadJob(b.toFile(), "db")));
+        for (int i = 0; i < 2; i++) assertTrue(outcomes.poll(TIMEOUT, TimeUnit.MILLISECONDS).startsWith("uploaded "));
+        // The second file was only parsed once the first was uploaded and released its room
+        List<StubDatabase.Request> requests = stub.awaitRequests(2, TIMEOUT);
+        assertEquals(1, stub.getMaxConcurrent());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(requests.get(1).getReceivedNanos() - requests.get(0).getReceivedNanos()) >= 250);
+        assertEquals(0, pipeline.getMemoryReserved());
+    }
+
+    @Test
+    public void fileBeyondMemoryBudgetIsSpilledWhenEnabled() throws Exception {
+        pipeline.setMemoryBudget(150);
+        pipeline.setMemoryExpansion(1);
+        pipeline.setMemorySpill(true);
+        pipeline.start(16);
+        stub.setLatency(300);
+        Path a = dir.resolve("a.json"), b = dir.resolve("b.json");
+        write(a, padded("a", 100));
+        write(b, padded("b", 100));
+        assertTrue(pipeline.submit(new UploadJob(a.toFile(), "db")));
+        stub.awaitRequests(1, TIMEOUT);
+        assertTrue(pipeline.submit(new UploadJob(b.toFile(), "db")));
+        for (int i = 0; i < 2; i++) assertTrue(outcomes.poll(TIMEOUT, TimeUnit.MILLISECONDS).startsWith("uploaded "));
+        // The second file was streamed from disk as it is whilst the first was uploading, rather than parsed and reserialised
+        List<StubDatabase.Request> requests = stub.awaitRequests(2, TIMEOUT);
+        assertEquals(2, stub.getMaxConcurrent());
+        assertNotEquals(padded("a", 100), requests.get(0).getText());
+        assertEquals(padded("b", 100), requests.get(1).getText());
+        assertEquals(0, pipeline.getMemoryReserved());
+    }
+
+    @Test
+    public void fileNoLongerOnDiskIsSkipped() throws Exception {
+        pipeline.start(16);
+        // e.g. resubmitted by a backfill or retry after an earlier upload of it succeeded and it was deleted or archived
+        Path gone = dir.resolve("gone.json");
+        assertEquals("skipped gone.json", submit(gone));
+        assertEquals(0, stub.getRequests().size());
+    }
+
+    @Test
+    public void emptyFileFailsOnceParsed() throws Exception {
+        pipeline.start(16);
+        Path empty = dir.resolve("empty.json"), literal = dir.resolve("null.json");
+        write(empty, "");
+        write(literal, "null");
+        assertTrue(submit(empty).startsWith("failed empty.json com.google.gson.JsonSyntaxException"));
+        assertTrue(submit(literal).startsWith("failed null.json com.google.gson.JsonSyntaxException"));
+        assertEquals(0, stub.getRequests().size());
+    }
+
+    @Test
+    public void transformedDocumentIsSentWhenStreaming() throws Exception {
+        pipeline.setStreamingUploads(true);
+        pipeline.setTransform(dropSecret());
+        pipeline.start(16);
+        Path a = dir.resolve("a.json");
+        write(a, "{\"name\":\"a\",\"secret\":\"x\"}");
+        assertEquals("uploaded a.json", submit(a));
+        StubDatabase.Request request = stub.awaitRequests(1, TIMEOUT).get(0);
+        assertEquals("POST", request.getMethod());
+        assertEquals("/db.json", request.getPath());
+        Map<String, Object> sent = JsonToMap.parse(request.getText());
+        assertEquals("a", sent.get("name"));
+        assertFalse(sent.containsKey("secret"));
+    }
+
+    @Test
+    public void transformedBatchIsSentWhenStreaming() throws Exception {
+        pipeline.setStreamingUploads(true);
+        pipeline.setTransform(dropSecret());
+        pipeline.setBatchSize(2);
+        pipeline.setBatchLinger(1000);
+        pipeline.start(16);
+        Path a = dir.resolve("a.json"), b = dir.resolve("b.json");
+        write(a, "{\"name\":\"a\",\"secret\":\"x\"}");
+        write(b, "{\"name\":\"b\",\"secret\":\"y\"}");
+        assertTrue(pipeline.submit(new UploadJob(a.toFile(), "db")));
+        assertTrue(pipeline.submit(new UploadJob(b.toFile(), "db")));
+        for (int i = 0; i < 2; i++) assertTrue(outcomes.poll(TIMEOUT, TimeUnit.MILLISECONDS).startsWith("uploaded "));
+        List<StubDatabase.Request> requests = stub.awaitRequests(1, TIMEOUT);
+        assertEquals(1, requests.size());
+        assertEquals("PATCH", requests.get(0).getMethod());
+        String body = requests.get(0).getText();
+        assertTrue(body.contains("\"a\"") && body.contains("\"b\""));
+        assertFalse(body.contains("secret"));
+    }
+
+    @Test
+    public void throwingTransformFailsJobAndReleasesIt() throws Exception {
+        JsonTransform transform = new JsonTransform();
+        transform.filter("v", v -> {
+            if (v == null) throw new IllegalStateException("No value");
+            return true;
+        });
+        pipeline.setTransform(transform);
+        pipeline.setDeltaUploads(true);
+        pipeline.setMemoryBudget(1 << 20);
+        pipeline.start(16);
+        Path a = dir.resolve("a.json");
+        write(a, "{\"v\":null}");
+        assertTrue(submit(a).startsWith("failed a.json java.lang.IllegalStateException"));
+        assertEquals(0, pipeline.getInFlight());
+        assertEquals(0, pipeline.getMemoryReserved());
+        // The file's delta target was released, so a later version of it isn't held up
+        write(a, "{\"v\":1}");
+        assertEquals("uploaded a.json", submit(a));
+    }
+
+    @Test
+    public void changingTransformRulesChangesContentHash() throws Exception {
+        JsonTransform transform = dropSecret();
+        pipeline.setTransform(transform);
+        pipeline.setDedupCache(new ContentHashCache(100, null));
+        pipeline.start(16);
+        Path a = dir.resolve("a.json");
+        write(a, "{\"name\":\"a\",\"size\":1,\"secret\":\"x\"}");
+        assertEquals("uploaded a.json", submit(a));
+        assertEquals("skipped a.json", submit(a));
+        // The same file now uploads as a different document, so it's no longer identical to what was uploaded
+        transform.exclude("size");
+        assertEquals("uploaded a.json", submit(a));
+        List<StubDatabase.Request> requests = stub.awaitRequests(2, TIMEOUT);
+        assertEquals(2, requests.size());
+        assertFalse(JsonToMap.parse(requests.get(1).getText()).containsKey("size"));
+        assertEquals("skipped a.json", submit(a));
+    }
+
+    @Test
+    public void namedFilterIsDedupedAcrossRestarts() throws Exception {
+        Path hashes = dir.resolve("dedup.txt");
+        Path a = dir.resolve("a.json");
+        write(a, "{\"name\":\"a\",\"size\":1}");
+        for (int run = 0; run < 2; run++) {
+            // Each run constructs its rules and cache afresh, as after a restart
+            JsonTransform transform = new JsonTransform();
+            transform.filter("size", "positive", v -> ((Number) v).doubleValue() > 0);
+            try (ContentHashCache cache = new ContentHashCache(100, hashes)) {
+                pipeline.setTransform(transform);
+                pipeline.setDedupCache(cache);
+                pipeline.start(16);
+                assertEquals(run == 0 ? "uploaded a.json" : "skipped a.json", submit(a));
+                pipeline.shutdown();
+            }
+        }
+        assertEquals(1, stub.getRequests().size());
+        // Whereas an unnamed filter can't be told apart from a different test, so is never taken to be the same rules
+        JsonTransform unnamed = new JsonTransform(), other = new JsonTransform();
+        unnamed.filter("size", v -> true);
+        other.filter("size", v -> true);
+        assertNotEquals(unnamed.getFingerprint(), other.getFingerprint());
+    }
+
+    // Writes the given content to a file, replacing it
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // A JSON file of the given length, laid out with spaces so a document sent as parsed can be told from the file sent as it is
+    private static String padded(String name, int length) {
+        String json = "{ \"name\" : \"" + name + "\", \"pad\" : \"";
+        return json + new String(new char[length - json.length() - 3]).replace('\0', 'x') + "\" }";
+    }
+
+    // A transform dropping the "secret" field of each document
+    private static JsonTransform dropSecret() {
+        JsonTransform transform = new JsonTransform();
+        transform.exclude("secret");
+        return transform;
+    }
+
+    // Submits a file to be uploaded to "db", returning its outcome once it leaves the pipeline
+    private String submit(Path file) throws InterruptedException {
+        assertTrue(pipeline.submit(new UploadJob(file.toFile(), "db")));
+        String outcome = outcomes.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(outcome, "No outcome for " + file.getFileName() + ".");
+        // The listener is notified just before the job leaves the pipeline, so the file may be resubmitted once it has
+        while (pipeline.isInFlight(file.toFile())) Thread.sleep(1);
+        return outcome;
+    }
+}